@@ -0,0 +1,103 @@
+package org.svlahov.sleepcalc.config;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.io.Decoders;
+import io.jsonwebtoken.security.Keys;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.ServletException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of authenticating one request through {@link JwtAuthFilter}. Both benchmarks run the
+ * same filter, request and user cache; {@code previousImplementation} only swaps in a
+ * {@link JwtService} that verifies the token the way it was before the key and parser were cached:
+ * decoding the key and building a parser per verification, and verifying twice, once for the
+ * username and once for the validity check. The user lookup is an in-memory stub behind the
+ * cache, so the difference is the token handling alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JwtAuthFilterBenchmark {
+
+    private String token;
+    private JwtAuthFilter filter;
+    private JwtAuthFilter previousFilter;
+
+    @Setup
+    public void setUp() {
+        String secretKey = Base64.getEncoder().encodeToString("benchmark-signing-key-of-32-bytes".getBytes());
+        UserDetails userDetails = new AuthenticatedUser(1L, "benchmark-user", "password", List.of());
+        UserDetailsCache userDetailsCache = new UserDetailsCache(username -> userDetails,
+                new SimpleMeterRegistry(), 1000, Duration.ofMinutes(5));
+
+        JwtService jwtService = new JwtService(secretKey);
+        token = jwtService.generateToken(userDetails);
+        filter = new JwtAuthFilter(jwtService, userDetailsCache);
+        previousFilter = new JwtAuthFilter(new PerCallParsingJwtService(secretKey), userDetailsCache);
+    }
+
+    @Benchmark
+    public void filter(Blackhole blackhole) throws ServletException, IOException {
+        authenticate(filter, blackhole);
+    }
+
+    @Benchmark
+    public void previousImplementation(Blackhole blackhole) throws ServletException, IOException {
+        authenticate(previousFilter, blackhole);
+    }
+
+    private void authenticate(JwtAuthFilter authFilter, Blackhole blackhole) throws ServletException, IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/sleep/state");
+        request.addHeader("Authorization", "Bearer " + token);
+        authFilter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+        blackhole.consume(SecurityContextHolder.getContext().getAuthentication());
+        SecurityContextHolder.clearContext();
+    }
+
+    private static class PerCallParsingJwtService extends JwtService {
+
+        private final String secretKey;
+
+        PerCallParsingJwtService(String secretKey) {
+            super(secretKey);
+            this.secretKey = secretKey;
+        }
+
+        @Override
+        public Claims parseClaims(String token) {
+            // The old filter verified once in extractUsername and again in isTokenValid(token, user)
+            parsePerCall(token);
+            return parsePerCall(token);
+        }
+
+        private Claims parsePerCall(String jwt) {
+            SecretKey key = Keys.hmacShaKeyFor(Decoders.BASE64.decode(secretKey));
+            return Jwts.parser()
+                    .verifyWith(key)
+                    .build()
+                    .parseSignedClaims(jwt)
+                    .getPayload();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.svlahov.sleepcalc.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.svlahov.sleepcalc.SleepCalcApplication;
+import org.svlahov.sleepcalc.entity.SleepEvent;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.SleepEventRepository;
+import org.svlahov.sleepcalc.repository.UserRepository;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to replay event logs into a fresh projection: one user's five years (plus an edit for
+ * every tenth night), and {@value #USERS} such users one after another and in parallel with
+ * {@link SleepProjectionRebuilder}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SleepEventReplayBenchmark {
+
+    private static final int USERS = 8;
+    private static final LocalDate FIRST_NIGHT = LocalDate.of(2020, 1, 1);
+    private static final LocalDate LAST_NIGHT = FIRST_NIGHT.plusYears(5).minusDays(1);
+    private static final String[] HOURS = { "5.50", "6.25", "7.00", "7.50", "8.25", "9.00" };
+
+    private ConfigurableApplicationContext context;
+    private SleepEventProjector sleepEventProjector;
+    private SleepProjectionRebuilder sleepProjectionRebuilder;
+    private List<User> users;
+
+    @Setup
+    public void setUp() {
+        String secretKey = Base64.getEncoder().encodeToString("benchmark-signing-key-of-32-bytes".getBytes());
+        context = new SpringApplicationBuilder(SleepCalcApplication.class).run(
+                "--spring.profiles.active=benchmark",
+                "--spring.main.web-application-type=none",
+                "--spring.datasource.url=jdbc:h2:mem:replay-benchmark",
+                "--spring.datasource.username=sa",
+                "--spring.jpa.show-sql=false",
+                "--sleep.projection.rebuild-threads=4",
+                "--jwt.secret.key=" + secretKey);
+        sleepEventProjector = context.getBean(SleepEventProjector.class);
+        sleepProjectionRebuilder = context.getBean(SleepProjectionRebuilder.class);
+
+        UserRepository userRepository = context.getBean(UserRepository.class);
+        SleepEventRepository sleepEventRepository = context.getBean(SleepEventRepository.class);
+        Random random = new Random(42);
+        LocalDateTime recordedAt = LocalDateTime.of(2025, 1, 1, 7, 0);
+        users = new ArrayList<>();
+        for (int u = 0; u < USERS; u++) {
+            User user = userRepository.save(new User("replay-user-" + u, "password"));
+            users.add(user);
+
+            List<SleepEvent> events = new ArrayList<>();
+            long sequenceNumber = 0;
+            for (LocalDate night = FIRST_NIGHT; !night.isAfter(LAST_NIGHT); night = night.plusDays(1)) {
+                events.add(new SleepEvent(user.getId(), ++sequenceNumber, night, SleepEvent.Type.RECORDED,
+                        hours(random), recordedAt));
+                if (random.nextInt(10) == 0) {
+                    events.add(new SleepEvent(user.getId(), ++sequenceNumber, night, SleepEvent.Type.EDITED,
+                            hours(random), recordedAt));
+                }
+            }
+            sleepEventRepository.saveAll(events);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public int replayOneUser() {
+        return sleepEventProjector.rebuild(users.get(0));
+    }
+
+    @Benchmark
+    public int replayAllUsersSequentially() {
+        int replayed = 0;
+        for (User user : users) {
+            replayed += sleepEventProjector.rebuild(user);
+        }
+        return replayed;
+    }
+
+    @Benchmark
+    public int replayAllUsersInParallel() {
+        return sleepProjectionRebuilder.rebuildAll();
+    }
+
+    private static BigDecimal hours(Random random) {
+        return new BigDecimal(HOURS[random.nextInt(HOURS.length)]);
+    }
+}
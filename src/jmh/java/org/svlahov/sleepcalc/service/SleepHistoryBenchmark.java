@@ -0,0 +1,101 @@
+package org.svlahov.sleepcalc.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.svlahov.sleepcalc.SleepCalcApplication;
+import org.svlahov.sleepcalc.dto.SleepDataRow;
+import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.UserRepository;
+import org.svlahov.sleepcalc.service.SleepService.SleepHistoryEntry;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of reading five years of history, as managed entities (the previous read path) and as
+ * {@link SleepDataRow} projections. Both run in a read-only transaction and map to
+ * {@link SleepHistoryEntry} the same way. Heap per call is reported as {@code gc.alloc.rate.norm}
+ * when run with {@code -PjmhProfilers=gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SleepHistoryBenchmark {
+
+    private static final LocalDate FIRST_NIGHT = LocalDate.of(2020, 1, 1);
+    private static final LocalDate LAST_NIGHT = FIRST_NIGHT.plusYears(5).minusDays(1);
+
+    private ConfigurableApplicationContext context;
+    private SleepDataRepository sleepDataRepository;
+    private TransactionTemplate readOnlyTransaction;
+    private Long userId;
+
+    @Setup
+    public void setUp() {
+        String secretKey = Base64.getEncoder().encodeToString("benchmark-signing-key-of-32-bytes".getBytes());
+        context = new SpringApplicationBuilder(SleepCalcApplication.class).run(
+                "--spring.profiles.active=benchmark",
+                "--spring.main.web-application-type=none",
+                "--spring.datasource.url=jdbc:h2:mem:history-benchmark",
+                "--spring.datasource.username=sa",
+                "--spring.jpa.show-sql=false",
+                "--jwt.secret.key=" + secretKey);
+        sleepDataRepository = context.getBean(SleepDataRepository.class);
+        readOnlyTransaction = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+        readOnlyTransaction.setReadOnly(true);
+
+        User user = context.getBean(UserRepository.class).save(new User("benchmark-user", "password"));
+        userId = user.getId();
+        List<SleepData> history = new ArrayList<>();
+        BigDecimal debt = BigDecimal.ZERO;
+        for (LocalDate night = FIRST_NIGHT; !night.isAfter(LAST_NIGHT); night = night.plusDays(1)) {
+            debt = debt.add(new BigDecimal("0.5"));
+            history.add(new SleepData(user, night, new BigDecimal("7.0"), debt, BigDecimal.ZERO));
+        }
+        sleepDataRepository.saveAll(history);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public List<SleepHistoryEntry> entities() {
+        return readOnlyTransaction.execute(status -> sleepDataRepository
+                .findByUser_IdAndSleepDateBetween(userId, FIRST_NIGHT, LAST_NIGHT).stream()
+                .map(data -> new SleepHistoryEntry(data.getSleepDate(), format(data.getHoursSlept()),
+                        format(data.getSleepDebt()), format(data.getSleepSurplus())))
+                .toList());
+    }
+
+    @Benchmark
+    public List<SleepHistoryEntry> projections() {
+        return readOnlyTransaction.execute(status -> sleepDataRepository
+                .findRowsBetween(userId, FIRST_NIGHT, LAST_NIGHT).stream()
+                .map(row -> new SleepHistoryEntry(row.sleepDate(), format(row.hoursSlept()),
+                        format(row.sleepDebt()), format(row.sleepSurplus())))
+                .toList());
+    }
+
+    private static double format(BigDecimal value) {
+        return value.setScale(2, RoundingMode.HALF_UP).doubleValue();
+    }
+}
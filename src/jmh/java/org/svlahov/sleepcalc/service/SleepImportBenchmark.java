@@ -0,0 +1,106 @@
+package org.svlahov.sleepcalc.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.svlahov.sleepcalc.SleepCalcApplication;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.UserRepository;
+import org.svlahov.sleepcalc.service.SleepService.SleepImportResult;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Nights per second through a CSV import of five years into an empty history, and through
+ * rebuilding the weekly rollups and prefix sums of such a history, which every import does. Each
+ * import goes to a new user, so every invocation writes the same amount.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SleepImportBenchmark {
+
+    private static final LocalDate FIRST_NIGHT = LocalDate.of(2020, 1, 1);
+    private static final LocalDate LAST_NIGHT = FIRST_NIGHT.plusYears(5).minusDays(1);
+    private static final int NIGHTS = 1827;
+    private static final String[] HOURS = { "5.50", "6:15", "7.00", "7:30", "8.25", "9:00" };
+
+    private final AtomicInteger importUsers = new AtomicInteger();
+
+    private ConfigurableApplicationContext context;
+    private SleepService sleepService;
+    private WeeklyRollupService weeklyRollupService;
+    private PrefixSumService prefixSumService;
+    private UserRepository userRepository;
+    private byte[] csv;
+    private User importedUser;
+
+    @Setup
+    public void setUp() {
+        String secretKey = Base64.getEncoder().encodeToString("benchmark-signing-key-of-32-bytes".getBytes());
+        context = new SpringApplicationBuilder(SleepCalcApplication.class).run(
+                "--spring.profiles.active=benchmark",
+                "--spring.main.web-application-type=none",
+                "--spring.datasource.url=jdbc:h2:mem:import-benchmark",
+                "--spring.datasource.username=sa",
+                "--spring.jpa.show-sql=false",
+                "--jwt.secret.key=" + secretKey);
+        sleepService = context.getBean(SleepService.class);
+        weeklyRollupService = context.getBean(WeeklyRollupService.class);
+        prefixSumService = context.getBean(PrefixSumService.class);
+        userRepository = context.getBean(UserRepository.class);
+
+        Random random = new Random(42);
+        StringBuilder lines = new StringBuilder("Date,Hours Slept,Sleep Debt,Sleep Surplus\n");
+        for (LocalDate night = FIRST_NIGHT; !night.isAfter(LAST_NIGHT); night = night.plusDays(1)) {
+            lines.append(night).append(',').append(HOURS[random.nextInt(HOURS.length)]).append(",0.00,0.00\n");
+        }
+        csv = lines.toString().getBytes(StandardCharsets.UTF_8);
+
+        importedUser = userRepository.save(new User("import-benchmark-user", "password"));
+        importAs(importedUser);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+        context.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NIGHTS)
+    public SleepImportResult importFiveYears() {
+        User user = userRepository.save(new User("import-user-" + importUsers.incrementAndGet(), "password"));
+        return importAs(user);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NIGHTS)
+    public void rebuildDerivedTables() {
+        weeklyRollupService.rebuild(importedUser);
+        prefixSumService.rebuild(importedUser);
+    }
+
+    private SleepImportResult importAs(User user) {
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken(user.getUsername(), null, List.of()));
+        return sleepService.importSleep(new ByteArrayInputStream(csv));
+    }
+}
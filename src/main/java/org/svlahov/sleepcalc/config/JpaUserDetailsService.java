@@ -1,6 +1,5 @@
 package org.svlahov.sleepcalc.config;
 
-import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
@@ -21,7 +20,8 @@ public class JpaUserDetailsService implements UserDetailsService {
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
         return userRepository.findByUsername(username)
-                .map(user -> new User(
+                .map(user -> new AuthenticatedUser(
+                        user.getId(),
                         user.getUsername(),
                         user.getPassword(),
                         new ArrayList<>()))
@@ -1,6 +1,7 @@
 package org.svlahov.sleepcalc.config;
 
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.io.Decoders;
 import io.jsonwebtoken.security.Keys;
@@ -16,18 +17,47 @@ import java.util.function.Function;
 @Service
 public class JwtService {
 
-    private final String secretKey;
+    private static final String USER_ID_CLAIM = "uid";
+
+    // Both are immutable and thread-safe, so they are built once instead of per token
+    private final SecretKey signInKey;
+    private final JwtParser jwtParser;
 
     public JwtService(@Value("${jwt.secret.key}") String secretKey) {
-        this.secretKey = secretKey;
+        this.signInKey = Keys.hmacShaKeyFor(Decoders.BASE64.decode(secretKey));
+        this.jwtParser = Jwts.parser()
+                .verifyWith(signInKey)
+                .build();
+    }
+
+    /**
+     * Verifies the token's signature and expiry once and returns its claims, or {@code null} if it is invalid.
+     */
+    public Claims parseClaims(String token) {
+        try {
+            return jwtParser.parseSignedClaims(token).getPayload();
+        } catch (JwtException | IllegalArgumentException e) {
+            return null;
+        }
     }
 
     public String extractUsername(String token) {
         return extractClaim(token, Claims::getSubject);
     }
 
+    /**
+     * Returns the user id the token was issued for, or {@code null} for tokens issued without one.
+     */
+    public Long extractUserId(String token) {
+        return extractClaim(token, claims -> extractUserId(claims));
+    }
+
+    public Long extractUserId(Claims claims) {
+        return claims.get(USER_ID_CLAIM, Long.class);
+    }
+
     public <T> T extractClaim(String token, Function<Claims, T> claimsResolver) {
-        final Claims claims = extractAllClaims(token);
+        final Claims claims = parseClaims(token);
         if (claims == null) {
             return null;
         }
@@ -35,17 +65,33 @@ public class JwtService {
     }
 
     public String generateToken(UserDetails userDetails) {
+        Long userId = userDetails instanceof AuthenticatedUser authenticatedUser ? authenticatedUser.getId() : null;
         return Jwts.builder()
                 .subject(userDetails.getUsername())
+                .claim(USER_ID_CLAIM, userId)
                 .issuedAt(new Date(System.currentTimeMillis()))
                 .expiration(new Date(System.currentTimeMillis() + 1000 * 60 * 60 * 24))
-                .signWith(getSignInKey())
+                .signWith(signInKey)
                 .compact();
     }
 
     public boolean isTokenValid(String token, UserDetails userDetails) {
-        final String username = extractUsername(token);
-        return (username != null && username.equals(userDetails.getUsername()));
+        final Claims claims = parseClaims(token);
+        return claims != null && isTokenValid(claims, userDetails);
+    }
+
+    /**
+     * Checks already verified claims against the loaded user, without verifying the signature again.
+     */
+    public boolean isTokenValid(Claims claims, UserDetails userDetails) {
+        final String username = claims.getSubject();
+        if (username == null || !username.equals(userDetails.getUsername())) {
+            return false;
+        }
+        // A username that was deleted and registered again must not accept the old account's tokens
+        final Long userId = extractUserId(claims);
+        return userId == null || !(userDetails instanceof AuthenticatedUser authenticatedUser)
+                || userId.equals(authenticatedUser.getId());
     }
 
     public String generatePasswordResetToken(String username) {
@@ -54,32 +100,15 @@ public class JwtService {
                 .claim("type", "PASSWORD_RESET")
                 .issuedAt(new Date(System.currentTimeMillis()))
                 .expiration(new Date(System.currentTimeMillis() + 1000 * 60 * 15))
-                .signWith(getSignInKey())
+                .signWith(signInKey)
                 .compact();
     }
 
     public String validatePasswordResetToken(String token) {
-        Claims claims = extractAllClaims(token);
+        Claims claims = parseClaims(token);
         if (claims == null || !"PASSWORD_RESET".equals(claims.get("type"))) {
             throw new IllegalArgumentException("Invalid or expired password reset token");
         }
         return claims.getSubject();
     }
-
-    private Claims extractAllClaims(String token) {
-        try {
-            return Jwts.parser()
-                    .verifyWith(getSignInKey())
-                    .build()
-                    .parseSignedClaims(token)
-                    .getPayload();
-        } catch (JwtException e) {
-            return null;
-        }
-    }
-
-    private SecretKey getSignInKey() {
-        byte[] keyBytes = Decoders.BASE64.decode(secretKey);
-        return Keys.hmacShaKeyFor(keyBytes);
-    }
 }
@@ -0,0 +1,124 @@
+package org.svlahov.sleepcalc.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends connections for read-only transactions to a replica and everything else to the primary.
+ * The replica is only used while it answers and, when a lag query is configured, is at most
+ * {@code maxLag} behind. It is checked once on creation and then every {@code checkInterval} on a
+ * background thread, so routing a connection only reads the result and never waits for the replica.
+ * <p>
+ * The read-only flag is only known once the transaction has started, so this must sit behind a
+ * {@link org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy}.
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    enum Target {
+        PRIMARY, REPLICA
+    }
+
+    private final DataSource primary;
+    private final DataSource replica;
+    private final Duration maxLag;
+    private final String lagQuery;
+    private final ScheduledExecutorService checker;
+    private volatile boolean replicaUsable;
+
+    public ReplicaRoutingDataSource(DataSource primary, DataSource replica, Duration maxLag, String lagQuery,
+            Duration checkInterval) {
+        this.primary = primary;
+        this.replica = replica;
+        this.maxLag = maxLag;
+        this.lagQuery = lagQuery;
+        setTargetDataSources(Map.of(Target.PRIMARY, primary, Target.REPLICA, replica));
+        setDefaultTargetDataSource(primary);
+        setLenientFallback(false);
+        afterPropertiesSet();
+
+        checkReplica();
+        this.checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(this::checkReplica, checkInterval.toNanos(), checkInterval.toNanos(),
+                TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return TransactionSynchronizationManager.isCurrentTransactionReadOnly() && replicaUsable
+                ? Target.REPLICA
+                : Target.PRIMARY;
+    }
+
+    @Override
+    public void close() {
+        checker.shutdownNow();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        DataSource target = determineTargetDataSource();
+        if (target != replica) {
+            return target.getConnection();
+        }
+        try {
+            return replica.getConnection();
+        } catch (SQLException e) {
+            // Went away since the last check: don't fail the read, and don't wait for the next check
+            setReplicaUsable(false, e.getMessage());
+            return primary.getConnection();
+        }
+    }
+
+    // Synchronized so that a slow check cannot overwrite the result of a later one
+    synchronized void checkReplica() {
+        try (Connection connection = replica.getConnection()) {
+            if (lagQuery == null || lagQuery.isBlank()) {
+                setReplicaUsable(connection.isValid(VALIDATION_TIMEOUT_SECONDS), "connection is not valid");
+                return;
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.setQueryTimeout(VALIDATION_TIMEOUT_SECONDS);
+                try (ResultSet resultSet = statement.executeQuery(lagQuery)) {
+                    // No row, or NULL, means nothing to replay
+                    double lagSeconds = resultSet.next() ? resultSet.getDouble(1) : 0;
+                    setReplicaUsable(lagSeconds * 1000 <= maxLag.toMillis(),
+                            "lagging " + lagSeconds + "s behind the primary");
+                }
+            }
+        } catch (SQLException e) {
+            setReplicaUsable(false, e.getMessage());
+        }
+    }
+
+    private void setReplicaUsable(boolean usable, String reason) {
+        if (usable != replicaUsable) {
+            if (usable) {
+                logger.info("Routing read-only transactions to the replica");
+            } else {
+                logger.warn("Routing read-only transactions to the primary, replica unusable: {}", reason);
+            }
+        }
+        replicaUsable = usable;
+    }
+}
@@ -0,0 +1,63 @@
+package org.svlahov.sleepcalc.config;
+
+import com.github.benmanes.caffeine.jcache.configuration.CaffeineConfiguration;
+import com.github.benmanes.caffeine.jcache.spi.CaffeineCachingProvider;
+import org.hibernate.cache.jcache.ConfigSettings;
+import org.hibernate.cfg.AvailableSettings;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.svlahov.sleepcalc.entity.User;
+
+import javax.cache.CacheManager;
+import java.net.URI;
+import java.time.Duration;
+import java.util.OptionalLong;
+import java.util.UUID;
+
+/**
+ * Hibernate's second-level cache, backed by Caffeine through JCache. Only {@link User} rows and
+ * the username to id mapping are cached; both are updated by Hibernate when a user is written,
+ * so {@code register} and {@code resetPassword} need no extra invalidation.
+ * <p>
+ * Hits and misses are published through Hibernate's statistics as
+ * {@code hibernate.second.level.cache.requests} and {@code hibernate.cache.natural.id.requests}.
+ */
+@Configuration
+public class SecondLevelCacheConfig {
+
+    /**
+     * A cache manager of this application context's own: the provider's default one is shared by
+     * every context in the JVM and closed by whichever Hibernate shuts down first.
+     */
+    @Bean(destroyMethod = "close")
+    public CacheManager hibernateCacheManager(@Value("${sleep.user-l2-cache.max-size:10000}") long maxSize,
+            @Value("${sleep.user-l2-cache.ttl:30m}") Duration ttl) {
+        CacheManager cacheManager = new CaffeineCachingProvider().getCacheManager(
+                URI.create("sleepcalc:hibernate-" + UUID.randomUUID()), getClass().getClassLoader());
+        cacheManager.createCache(User.CACHE_REGION, bounded(maxSize, ttl));
+        cacheManager.createCache(User.NATURAL_ID_CACHE_REGION, bounded(maxSize, ttl));
+        return cacheManager;
+    }
+
+    @Bean
+    public HibernatePropertiesCustomizer secondLevelCacheProperties(CacheManager hibernateCacheManager) {
+        return properties -> {
+            properties.put(AvailableSettings.USE_SECOND_LEVEL_CACHE, true);
+            properties.put(AvailableSettings.CACHE_REGION_FACTORY, "jcache");
+            properties.put(ConfigSettings.CACHE_MANAGER, hibernateCacheManager);
+            // Every region is created above with a bound; an unknown one is a mapping mistake
+            properties.put(ConfigSettings.MISSING_CACHE_STRATEGY, "fail");
+        };
+    }
+
+    private static CaffeineConfiguration<Object, Object> bounded(long maxSize, Duration ttl) {
+        CaffeineConfiguration<Object, Object> configuration = new CaffeineConfiguration<>();
+        configuration.setMaximumSize(OptionalLong.of(maxSize));
+        configuration.setExpireAfterWrite(OptionalLong.of(ttl.toNanos()));
+        // Hibernate's cache entries are already disassembled copies; copying them again gains nothing
+        configuration.setStoreByValue(false);
+        return configuration;
+    }
+}
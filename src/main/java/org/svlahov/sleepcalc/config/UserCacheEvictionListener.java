@@ -0,0 +1,27 @@
+package org.svlahov.sleepcalc.config;
+
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.springframework.beans.factory.ObjectProvider;
+import org.svlahov.sleepcalc.entity.User;
+
+/**
+ * Evicts cached {@link org.springframework.security.core.userdetails.UserDetails} whenever a user
+ * row is changed or deleted, whichever code path did it. Hibernate builds this through Spring, so
+ * the cache is injected; it is looked up lazily because the cache is created after the
+ * persistence unit.
+ */
+public class UserCacheEvictionListener {
+
+    private final ObjectProvider<UserDetailsCache> userDetailsCache;
+
+    public UserCacheEvictionListener(ObjectProvider<UserDetailsCache> userDetailsCache) {
+        this.userDetailsCache = userDetailsCache;
+    }
+
+    @PostUpdate
+    @PostRemove
+    public void evict(User user) {
+        userDetailsCache.ifAvailable(cache -> cache.evict(user.getId(), user.getUsername()));
+    }
+}
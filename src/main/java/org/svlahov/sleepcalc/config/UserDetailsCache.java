@@ -0,0 +1,76 @@
+package org.svlahov.sleepcalc.config;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Resolved {@link UserDetails} for authenticated requests, keyed by username. The token signature
+ * already proves who the caller is, so the database only needs to be asked again when the entry
+ * expires or the user changes.
+ * <p>
+ * Hits and misses are published as the {@code cache.gets} metric with {@code cache=userDetails}.
+ */
+@Component
+public class UserDetailsCache {
+
+    static final String CACHE_NAME = "userDetails";
+
+    private final UserDetailsService userDetailsService;
+    private final Cache<String, UserDetails> cache;
+
+    public UserDetailsCache(UserDetailsService userDetailsService, MeterRegistry meterRegistry,
+            @Value("${sleep.user-cache.max-size:10000}") long maxSize,
+            @Value("${sleep.user-cache.ttl:5m}") Duration ttl) {
+        this.userDetailsService = userDetailsService;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+    }
+
+    public UserDetails get(String username) {
+        // Inside a transaction the row may not be committed yet, so it must not outlive it
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return userDetailsService.loadUserByUsername(username);
+        }
+        return cache.get(username, userDetailsService::loadUserByUsername);
+    }
+
+    /**
+     * Drops the user's entry now and again once the current transaction commits, so a request
+     * racing the commit cannot put the old row back.
+     */
+    public void evict(Long userId, String username) {
+        evictNow(userId, username);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    evictNow(userId, username);
+                }
+            });
+        }
+    }
+
+    private void evictNow(Long userId, String username) {
+        cache.invalidate(username);
+        // Also catches the entry under a previous username
+        if (userId != null) {
+            cache.asMap().values().removeIf(details -> details instanceof AuthenticatedUser authenticated
+                    && Objects.equals(authenticated.getId(), userId));
+        }
+    }
+}
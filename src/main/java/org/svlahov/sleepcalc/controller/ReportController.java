@@ -1,15 +1,22 @@
 package org.svlahov.sleepcalc.controller;
 
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.svlahov.sleepcalc.dto.MonthlyReportDTO;
+import org.svlahov.sleepcalc.dto.RangeReportDTO;
 import org.svlahov.sleepcalc.dto.WeeklyReportDTO;
+import org.svlahov.sleepcalc.dto.YearReportDTO;
 import org.svlahov.sleepcalc.service.ReportService;
+import org.svlahov.sleepcalc.service.ReportService.CsvExport;
+import org.svlahov.sleepcalc.service.ReportService.TaggedReport;
 
 import java.time.LocalDate;
+import java.util.zip.GZIPOutputStream;
 
 @RestController
 @RequestMapping("/api/reports")
@@ -27,7 +34,7 @@ public class ReportController {
         if (date == null) {
             date = LocalDate.now();
         }
-        return ResponseEntity.ok(reportService.getWeeklyReport(date));
+        return withETag(reportService.getTaggedWeeklyReport(date));
     }
 
     @GetMapping("/monthly")
@@ -36,19 +43,85 @@ public class ReportController {
         if (date == null) {
             date = LocalDate.now();
         }
-        return ResponseEntity.ok(reportService.getMonthlyReport(date));
+        return withETag(reportService.getTaggedMonthlyReport(date));
+    }
+
+    @GetMapping("/range")
+    public ResponseEntity<RangeReportDTO> getRangeReport(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @RequestParam(defaultValue = "day") String bucket) {
+        return ResponseEntity.ok(reportService.getRangeReport(from, to, bucket));
+    }
+
+    // Compact columnar arrays for a heatmap, as JSON or, when asked for explicitly, as raw bytes
+    @GetMapping("/year")
+    public ResponseEntity<?> getYearReport(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        YearReportDTO report = reportService.getYearReport(to != null ? to : LocalDate.now());
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().header(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        if (acceptsBinary(accept)) {
+            return response.contentType(MediaType.APPLICATION_OCTET_STREAM).body(report.toBytes());
+        }
+        return response.contentType(MediaType.APPLICATION_JSON).body(report);
     }
 
     @GetMapping("/export")
-    public ResponseEntity<String> exportReport(
+    public ResponseEntity<StreamingResponseBody> exportReport(
             @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
-            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
 
-        String csvContent = reportService.exportReport(from, to);
+        CsvExport export = reportService.exportReport(from, to);
 
-        return ResponseEntity.ok()
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
                 .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=sleep_report.csv")
-                .contentType(MediaType.parseMediaType("text/csv"))
-                .body(csvContent);
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .contentType(MediaType.parseMediaType("text/csv"));
+
+        // Rows are written as they are read, so the file is never held in memory
+        if (acceptsGzip(acceptEncoding)) {
+            return response.header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                    .body(out -> {
+                        GZIPOutputStream gzip = new GZIPOutputStream(out);
+                        export.writeTo(gzip);
+                        gzip.finish();
+                    });
+        }
+        return response.body(export::writeTo);
+    }
+
+    private boolean acceptsBinary(String accept) {
+        if (accept == null) {
+            return false;
+        }
+        // Wildcards keep JSON; only a client that names the binary form gets it
+        return MediaType.parseMediaTypes(accept).stream()
+                .anyMatch(type -> type.equalsTypeAndSubtype(MediaType.APPLICATION_OCTET_STREAM)
+                        && type.getQualityValue() > 0);
+    }
+
+    private boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                // "gzip;q=0" explicitly refuses it
+                return parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    // A matching If-None-Match turns this into a 304 without a body
+    private <T> ResponseEntity<T> withETag(TaggedReport<T> report) {
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .eTag(report.etag())
+                .body(report.report());
     }
 }
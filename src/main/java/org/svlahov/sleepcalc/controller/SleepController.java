@@ -2,6 +2,7 @@ package org.svlahov.sleepcalc.controller;
 
 import org.springframework.web.bind.annotation.*;
 
+import java.io.InputStream;
 import java.time.LocalDate;
 import java.util.List;
 
@@ -9,6 +10,9 @@ import org.springframework.format.annotation.DateTimeFormat;
 import org.svlahov.sleepcalc.service.SleepService;
 import org.svlahov.sleepcalc.service.SleepService.SleepState;
 import org.svlahov.sleepcalc.service.SleepService.SleepHistoryEntry;
+import org.svlahov.sleepcalc.service.SleepService.SleepHistoryPage;
+import org.svlahov.sleepcalc.service.SleepService.SleepImportResult;
+import org.svlahov.sleepcalc.service.SleepService.SleepRecord;
 
 @RestController
 @RequestMapping("api/sleep")
@@ -37,11 +41,38 @@ public class SleepController {
         return sleepService.getSleepHistory(from, to);
     }
 
+    @GetMapping("/history/page")
+    public SleepHistoryPage getSleepHistoryPage(
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate before,
+            @RequestParam(defaultValue = "20") int limit) {
+        return sleepService.getSleepHistoryPage(cursor, before, limit);
+    }
+
+    // Hands the body over as a stream; the service reads it up to sleep.import.max-size
+    @PostMapping(value = "/import", consumes = "text/csv")
+    public SleepImportResult importSleep(InputStream csv) {
+        return sleepService.importSleep(csv);
+    }
+
     @PostMapping
     public SleepState recordSleep(@RequestBody SleepInput sleepInput) {
         return sleepService.recordSleep(sleepInput.getTimeSlept(), sleepInput.getDate());
     }
 
+    @PostMapping("/bulk")
+    public SleepState recordSleepBulk(@RequestBody List<SleepInput> sleepInputs) {
+        return sleepService.recordSleep(sleepInputs.stream()
+                .map(input -> new SleepRecord(input.getTimeSlept(), input.getDate()))
+                .toList());
+    }
+
+    @DeleteMapping
+    public SleepState deleteSleep(
+            @RequestParam("date") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate date) {
+        return sleepService.deleteSleep(date);
+    }
+
     public static class SleepInput {
         private String timeSlept;
         private LocalDate date;
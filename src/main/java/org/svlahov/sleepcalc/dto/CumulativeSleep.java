@@ -0,0 +1,10 @@
+package org.svlahov.sleepcalc.dto;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+public record CumulativeSleep(
+        LocalDate sleepDate,
+        BigDecimal hours, // slept up to and including sleepDate
+        int nights) {
+}
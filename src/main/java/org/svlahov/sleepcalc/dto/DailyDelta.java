@@ -0,0 +1,11 @@
+package org.svlahov.sleepcalc.dto;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+public record DailyDelta(
+        LocalDate sleepDate,
+        BigDecimal hoursSlept,
+        BigDecimal debtChange, // vs the previous stored entry, or vs zero for the first one
+        BigDecimal surplusChange) {
+}
@@ -0,0 +1,14 @@
+package org.svlahov.sleepcalc.dto;
+
+import org.svlahov.sleepcalc.service.SleepService.SleepHistoryEntry;
+import org.svlahov.sleepcalc.service.SleepService.SleepState;
+
+import java.util.List;
+
+// Everything the frontend loads when a session opens, in one response
+public record DashboardDTO(
+        SleepState state,
+        List<SleepHistoryEntry> history, // last 5 entries, newest first
+        WeeklyReportDTO weeklyReport,
+        MonthlyReportDTO monthlyReport) {
+}
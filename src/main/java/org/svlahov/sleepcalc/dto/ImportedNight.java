@@ -0,0 +1,9 @@
+package org.svlahov.sleepcalc.dto;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+public record ImportedNight(
+        LocalDate sleepDate,
+        BigDecimal hoursSlept) {
+}
@@ -0,0 +1,8 @@
+package org.svlahov.sleepcalc.dto;
+
+import java.util.List;
+
+public record RangeReportDTO(
+        RangeTotalsItem total,
+        List<RangeTotalsItem> buckets) { // days, ISO weeks or calendar months, cut off at the range ends
+}
@@ -0,0 +1,12 @@
+package org.svlahov.sleepcalc.dto;
+
+import java.time.LocalDate;
+
+public record RangeTotalsItem(
+        LocalDate from,
+        LocalDate to, // inclusive
+        int nights, // nights with an entry
+        double totalHours,
+        double averageHours, // per recorded night
+        double deviationFromTarget) { // totalHours minus the 7.5h target for each recorded night
+}
@@ -0,0 +1,11 @@
+package org.svlahov.sleepcalc.dto;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+public record SleepDataRow(
+        LocalDate sleepDate,
+        BigDecimal hoursSlept,
+        BigDecimal sleepDebt,
+        BigDecimal sleepSurplus) {
+}
@@ -0,0 +1,13 @@
+package org.svlahov.sleepcalc.dto;
+
+import org.svlahov.sleepcalc.entity.SleepEvent;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+public record SleepEventRow(
+        Long sequenceNumber,
+        LocalDate sleepDate,
+        SleepEvent.Type eventType,
+        BigDecimal hoursSlept) {
+}
@@ -0,0 +1,11 @@
+package org.svlahov.sleepcalc.dto;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+public record WeekTotals(
+        LocalDate weekStart,
+        int nights,
+        BigDecimal hoursSum,
+        BigDecimal deviationSum) { // sum of (hours slept - target)
+}
@@ -0,0 +1,31 @@
+package org.svlahov.sleepcalc.dto;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+
+/**
+ * One value per day from {@code startDate}, in hundredths of an hour, with {@link #MISSING} for
+ * days without an entry. Element {@code i} of each array belongs to {@code startDate.plusDays(i)}.
+ */
+public record YearReportDTO(
+        LocalDate startDate,
+        int[] hours,
+        int[] debt,
+        int[] surplus) {
+
+    public static final int MISSING = -1;
+
+    /**
+     * The same report for {@code application/octet-stream}: the start date as a 4-byte epoch day,
+     * the day count as 4 bytes, then the hours, debt and surplus arrays as 4-byte values, all
+     * big-endian.
+     */
+    public byte[] toBytes() {
+        int days = hours.length;
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * (2 + 3 * days));
+        buffer.putInt((int) startDate.toEpochDay());
+        buffer.putInt(days);
+        buffer.asIntBuffer().put(hours).put(debt).put(surplus);
+        return buffer.array();
+    }
+}
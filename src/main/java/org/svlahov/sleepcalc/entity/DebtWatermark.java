@@ -0,0 +1,30 @@
+package org.svlahov.sleepcalc.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDate;
+
+/**
+ * Marks the first date from which a user's stored debt/surplus values may be out of date.
+ * A row only exists while part of the history still has to be recalculated.
+ */
+@Entity
+@Table(name = "debt_watermarks")
+public class DebtWatermark {
+
+    @Id
+    private Long userId;
+
+    @Column(nullable = false)
+    private LocalDate staleFrom;
+
+    protected DebtWatermark() {}
+
+    public DebtWatermark(Long userId, LocalDate staleFrom) {
+        this.userId = userId;
+        this.staleFrom = staleFrom;
+    }
+
+    public Long getUserId() { return userId; }
+    public LocalDate getStaleFrom() { return staleFrom; }
+    public void setStaleFrom(LocalDate staleFrom) { this.staleFrom = staleFrom; }
+}
@@ -5,6 +5,8 @@ import java.time.LocalDate;
 import java.math.BigDecimal;
 
 @Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "ux_sleep_data_user_date",
+        columnNames = { "user_id", "sleep_date" }))
 public class SleepData {
 
     @Id
@@ -27,6 +29,10 @@ public class SleepData {
     @Column(nullable = false)
     private LocalDate sleepDate;
 
+    @Version
+    @Column(nullable = false)
+    private long version;
+
     protected SleepData() {
     }
 
@@ -83,4 +89,8 @@ public class SleepData {
     public void setSleepDate(LocalDate sleepDate) {
         this.sleepDate = sleepDate;
     }
+
+    public long getVersion() {
+        return version;
+    }
 }
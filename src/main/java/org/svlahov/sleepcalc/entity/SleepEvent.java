@@ -0,0 +1,104 @@
+package org.svlahov.sleepcalc.entity;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.Immutable;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+import org.springframework.data.domain.Persistable;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+/**
+ * Something a user did to the night of {@code sleepDate}. Events are only ever appended, numbered
+ * per user from 1 in the order they were written; {@link SleepData} is their projection.
+ */
+@Entity
+@Table(name = "sleep_events")
+@IdClass(SleepEvent.Key.class)
+@Immutable
+public class SleepEvent implements Persistable<SleepEvent.Key> {
+
+    public enum Type {
+        RECORDED, EDITED, DELETED
+    }
+
+    @Id
+    private Long userId;
+
+    @Id
+    private Long sequenceNumber;
+
+    @Column(nullable = false)
+    private LocalDate sleepDate;
+
+    @Enumerated(EnumType.STRING)
+    @JdbcTypeCode(SqlTypes.VARCHAR)
+    @Column(nullable = false, length = 16)
+    private Type eventType;
+
+    // Null for DELETED
+    @Column
+    private BigDecimal hoursSlept;
+
+    // UTC
+    @Column(nullable = false)
+    private LocalDateTime recordedAt;
+
+    protected SleepEvent() {}
+
+    public SleepEvent(Long userId, long sequenceNumber, LocalDate sleepDate, Type eventType, BigDecimal hoursSlept,
+            LocalDateTime recordedAt) {
+        this.userId = userId;
+        this.sequenceNumber = sequenceNumber;
+        this.sleepDate = sleepDate;
+        this.eventType = eventType;
+        this.hoursSlept = hoursSlept;
+        this.recordedAt = recordedAt;
+    }
+
+    public Long getUserId() { return userId; }
+    public Long getSequenceNumber() { return sequenceNumber; }
+    public LocalDate getSleepDate() { return sleepDate; }
+    public Type getEventType() { return eventType; }
+    public BigDecimal getHoursSlept() { return hoursSlept; }
+    public LocalDateTime getRecordedAt() { return recordedAt; }
+
+    @Override
+    public Key getId() {
+        return new Key(userId, sequenceNumber);
+    }
+
+    // Events are never updated, so saving one is always an insert, without a lookup first
+    @Override
+    public boolean isNew() {
+        return true;
+    }
+
+    public static class Key implements Serializable {
+
+        private Long userId;
+        private Long sequenceNumber;
+
+        protected Key() {}
+
+        public Key(Long userId, Long sequenceNumber) {
+            this.userId = userId;
+            this.sequenceNumber = sequenceNumber;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other && Objects.equals(userId, other.userId)
+                    && Objects.equals(sequenceNumber, other.sequenceNumber);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, sequenceNumber);
+        }
+    }
+}
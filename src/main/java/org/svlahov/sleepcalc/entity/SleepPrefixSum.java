@@ -0,0 +1,68 @@
+package org.svlahov.sleepcalc.entity;
+
+import jakarta.persistence.*;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Objects;
+
+/**
+ * Hours slept and nights recorded by a user up to and including {@code sleepDate}. The totals of
+ * any range are the difference of two of these rows.
+ */
+@Entity
+@Table(name = "sleep_prefix_sums")
+@IdClass(SleepPrefixSum.Key.class)
+public class SleepPrefixSum {
+
+    @Id
+    private Long userId;
+
+    @Id
+    private LocalDate sleepDate;
+
+    @Column(nullable = false)
+    private BigDecimal cumulativeHours;
+
+    @Column(nullable = false)
+    private int cumulativeNights;
+
+    protected SleepPrefixSum() {}
+
+    public SleepPrefixSum(Long userId, LocalDate sleepDate, BigDecimal cumulativeHours, int cumulativeNights) {
+        this.userId = userId;
+        this.sleepDate = sleepDate;
+        this.cumulativeHours = cumulativeHours;
+        this.cumulativeNights = cumulativeNights;
+    }
+
+    public Long getUserId() { return userId; }
+    public LocalDate getSleepDate() { return sleepDate; }
+    public BigDecimal getCumulativeHours() { return cumulativeHours; }
+    public int getCumulativeNights() { return cumulativeNights; }
+
+    public static class Key implements Serializable {
+
+        private Long userId;
+        private LocalDate sleepDate;
+
+        protected Key() {}
+
+        public Key(Long userId, LocalDate sleepDate) {
+            this.userId = userId;
+            this.sleepDate = sleepDate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other && Objects.equals(userId, other.userId)
+                    && Objects.equals(sleepDate, other.sleepDate);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, sleepDate);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.svlahov.sleepcalc.entity;
+
+import jakarta.persistence.*;
+
+/**
+ * The last {@link SleepEvent} of a user that {@link SleepData} includes. A user without a row has
+ * none projected yet.
+ */
+@Entity
+@Table(name = "sleep_projection_checkpoints")
+public class SleepProjectionCheckpoint {
+
+    @Id
+    private Long userId;
+
+    @Column(nullable = false)
+    private long sequenceNumber;
+
+    protected SleepProjectionCheckpoint() {}
+
+    public SleepProjectionCheckpoint(Long userId, long sequenceNumber) {
+        this.userId = userId;
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    public Long getUserId() { return userId; }
+    public long getSequenceNumber() { return sequenceNumber; }
+    public void setSequenceNumber(long sequenceNumber) { this.sequenceNumber = sequenceNumber; }
+}
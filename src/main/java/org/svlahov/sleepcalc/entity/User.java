@@ -1,15 +1,29 @@
 package org.svlahov.sleepcalc.entity;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.NaturalId;
+import org.hibernate.annotations.NaturalIdCache;
+import org.svlahov.sleepcalc.config.UserCacheEvictionListener;
 
 @Entity
 @Table(name = "app_users")
+@EntityListeners(UserCacheEvictionListener.class)
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = User.CACHE_REGION)
+@NaturalIdCache(region = User.NATURAL_ID_CACHE_REGION)
 public class User {
 
+    // Second-level cache regions, created with their bounds by SecondLevelCacheConfig
+    public static final String CACHE_REGION = "users";
+    public static final String NATURAL_ID_CACHE_REGION = "usernames";
+
     @Id
     @GeneratedValue
     private Long id;
 
+    @NaturalId
     @Column(unique = true, nullable = false)
     private String username;
 
@@ -0,0 +1,78 @@
+package org.svlahov.sleepcalc.entity;
+
+import jakarta.persistence.*;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Objects;
+
+/**
+ * Totals of one user's entries in one ISO week, so reports can read a row per week instead of
+ * every night. {@code weekStart} is the Monday of the week.
+ */
+@Entity
+@Table(name = "weekly_sleep_rollups")
+@IdClass(WeeklySleepRollup.Key.class)
+public class WeeklySleepRollup {
+
+    @Id
+    private Long userId;
+
+    @Id
+    private LocalDate weekStart;
+
+    @Column(nullable = false)
+    private int nights;
+
+    @Column(nullable = false)
+    private BigDecimal hoursSum;
+
+    // Sum of (hours slept - target) over the week's nights
+    @Column(nullable = false)
+    private BigDecimal deviationSum;
+
+    protected WeeklySleepRollup() {}
+
+    public WeeklySleepRollup(Long userId, LocalDate weekStart, int nights, BigDecimal hoursSum,
+            BigDecimal deviationSum) {
+        this.userId = userId;
+        this.weekStart = weekStart;
+        this.nights = nights;
+        this.hoursSum = hoursSum;
+        this.deviationSum = deviationSum;
+    }
+
+    public Long getUserId() { return userId; }
+    public LocalDate getWeekStart() { return weekStart; }
+    public int getNights() { return nights; }
+    public void setNights(int nights) { this.nights = nights; }
+    public BigDecimal getHoursSum() { return hoursSum; }
+    public void setHoursSum(BigDecimal hoursSum) { this.hoursSum = hoursSum; }
+    public BigDecimal getDeviationSum() { return deviationSum; }
+    public void setDeviationSum(BigDecimal deviationSum) { this.deviationSum = deviationSum; }
+
+    public static class Key implements Serializable {
+
+        private Long userId;
+        private LocalDate weekStart;
+
+        protected Key() {}
+
+        public Key(Long userId, LocalDate weekStart) {
+            this.userId = userId;
+            this.weekStart = weekStart;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other && Objects.equals(userId, other.userId)
+                    && Objects.equals(weekStart, other.weekStart);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, weekStart);
+        }
+    }
+}
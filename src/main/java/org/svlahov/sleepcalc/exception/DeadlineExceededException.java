@@ -0,0 +1,11 @@
+package org.svlahov.sleepcalc.exception;
+
+/**
+ * A request that fans out to several reads did not get all of them back within its deadline.
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
@@ -1,5 +1,6 @@
 package org.svlahov.sleepcalc.exception;
 
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -20,4 +21,26 @@ public class RestExceptionHandler extends ResponseEntityExceptionHandler {
         );
         return new ResponseEntity<>(errorBody, HttpStatus.BAD_REQUEST);
     }
+
+    // Another instance changed the same entries concurrently; the client can simply retry
+    @ExceptionHandler(OptimisticLockingFailureException.class)
+    protected ResponseEntity<Object> handleOptimisticLockingFailure(OptimisticLockingFailureException ex) {
+        Map<String, String> errorBody = Map.of(
+                "status", "409",
+                "error", "Conflict",
+                "message", "The sleep history was modified concurrently, please retry."
+        );
+        return new ResponseEntity<>(errorBody, HttpStatus.CONFLICT);
+    }
+
+    // One of the dashboard's reads was too slow; nothing partial is returned
+    @ExceptionHandler(DeadlineExceededException.class)
+    protected ResponseEntity<Object> handleDeadlineExceeded(DeadlineExceededException ex) {
+        Map<String, String> errorBody = Map.of(
+                "status", "503",
+                "error", "Service Unavailable",
+                "message", ex.getMessage()
+        );
+        return new ResponseEntity<>(errorBody, HttpStatus.SERVICE_UNAVAILABLE);
+    }
 }
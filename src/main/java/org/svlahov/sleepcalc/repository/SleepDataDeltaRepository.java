@@ -0,0 +1,15 @@
+package org.svlahov.sleepcalc.repository;
+
+import org.svlahov.sleepcalc.dto.DailyDelta;
+
+import java.time.LocalDate;
+import java.util.List;
+
+public interface SleepDataDeltaRepository {
+
+    /**
+     * The entries from {@code from} through {@code to}, each with how much its debt and surplus
+     * moved since the entry stored before it, which may lie before {@code from}. One statement.
+     */
+    List<DailyDelta> findDailyDeltas(Long userId, LocalDate from, LocalDate to);
+}
@@ -0,0 +1,51 @@
+package org.svlahov.sleepcalc.repository;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.query.NativeQuery;
+import org.svlahov.sleepcalc.dto.DailyDelta;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+public class SleepDataDeltaRepositoryImpl implements SleepDataDeltaRepository {
+
+    // The window starts at the last entry before the range, so LAG has a predecessor for the
+    // first day; that extra row is filtered out again once the deltas are computed
+    private static final String DAILY_DELTAS = """
+            SELECT w.sleep_date, w.hours_slept, w.debt_change, w.surplus_change
+            FROM (SELECT s.sleep_date, s.hours_slept,
+                         s.sleep_debt - LAG(s.sleep_debt, 1, 0) OVER (ORDER BY s.sleep_date) AS debt_change,
+                         s.sleep_surplus - LAG(s.sleep_surplus, 1, 0) OVER (ORDER BY s.sleep_date) AS surplus_change
+                  FROM sleep_data s
+                  WHERE s.user_id = :userId
+                    AND s.sleep_date <= :to
+                    AND s.sleep_date >= COALESCE((SELECT MAX(p.sleep_date) FROM sleep_data p
+                                                  WHERE p.user_id = :userId AND p.sleep_date < :from), :from)) w
+            WHERE w.sleep_date >= :from
+            ORDER BY w.sleep_date
+            """;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<DailyDelta> findDailyDeltas(Long userId, LocalDate from, LocalDate to) {
+        List<Object[]> rows = entityManager.createNativeQuery(DAILY_DELTAS)
+                .unwrap(NativeQuery.class)
+                .addScalar("sleep_date", LocalDate.class)
+                .addScalar("hours_slept", BigDecimal.class)
+                .addScalar("debt_change", BigDecimal.class)
+                .addScalar("surplus_change", BigDecimal.class)
+                .setParameter("userId", userId)
+                .setParameter("from", from)
+                .setParameter("to", to)
+                .getResultList();
+        return rows.stream()
+                .map(row -> new DailyDelta((LocalDate) row[0], (BigDecimal) row[1], (BigDecimal) row[2],
+                        (BigDecimal) row[3]))
+                .toList();
+    }
+}
@@ -0,0 +1,19 @@
+package org.svlahov.sleepcalc.repository;
+
+import org.svlahov.sleepcalc.dto.ImportedNight;
+
+import java.util.Iterator;
+
+public interface SleepDataImportRepository {
+
+    /**
+     * Writes the hours of every night in {@code nights} for the user, inserting or overwriting the
+     * stored entry; a later night for the same date wins. New entries get zero debt and surplus,
+     * so the caller has to recalculate the chain from the earliest night. Consumes the iterator
+     * as it goes and bypasses the persistence context.
+     * <p>
+     * Every night is also appended to the user's event log, numbered on from
+     * {@code lastSequenceNumber}: as EDITED when the date already had an entry, RECORDED otherwise.
+     */
+    void importNights(Long userId, long lastSequenceNumber, Iterator<ImportedNight> nights);
+}
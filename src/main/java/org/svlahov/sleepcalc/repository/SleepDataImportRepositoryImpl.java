@@ -0,0 +1,220 @@
+package org.svlahov.sleepcalc.repository;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.Session;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.generator.BeforeExecutionGenerator;
+import org.hibernate.generator.EventType;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.svlahov.sleepcalc.dto.ImportedNight;
+import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.entity.SleepEvent;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+public class SleepDataImportRepositoryImpl implements SleepDataImportRepository {
+
+    private static final int STORED_SCALE = 2;
+    private static final int COPY_CHUNK_BYTES = 64 * 1024;
+    private static final int BATCH_SIZE = 500;
+
+    private static final String CREATE_STAGING = """
+            CREATE TEMP TABLE sleep_import (
+                line_no     BIGINT         NOT NULL,
+                sleep_date  DATE           NOT NULL,
+                hours_slept NUMERIC(38, 2) NOT NULL
+            ) ON COMMIT DROP
+            """;
+
+    // Each row takes its id straight from the sequence. Hibernate hands out the 50 ids below each
+    // value it draws, so a value drawn here is never part of one of its blocks.
+    private static final String MERGE_STAGING = """
+            INSERT INTO sleep_data (id, user_id, sleep_date, hours_slept, sleep_debt, sleep_surplus, version)
+            SELECT nextval('sleep_data_seq'), ?, i.sleep_date, i.hours_slept, 0, 0, 0
+            FROM (SELECT DISTINCT ON (sleep_date) sleep_date, hours_slept
+                  FROM sleep_import
+                  ORDER BY sleep_date, line_no DESC) i
+            ON CONFLICT (user_id, sleep_date) DO UPDATE
+            SET hours_slept = EXCLUDED.hours_slept,
+                version = sleep_data.version + 1
+            WHERE sleep_data.hours_slept <> EXCLUDED.hours_slept
+            """;
+
+    // Runs before the merge, so an existing entry still tells an edit from a new night. line_no
+    // numbers the nights from 1, in file order.
+    private static final String APPEND_STAGED_EVENTS = """
+            INSERT INTO sleep_events (user_id, sequence_number, sleep_date, event_type, hours_slept, recorded_at)
+            SELECT ?, ? + i.line_no, i.sleep_date,
+                   CASE WHEN ROW_NUMBER() OVER (PARTITION BY i.sleep_date ORDER BY i.line_no) > 1
+                             OR EXISTS (SELECT 1 FROM sleep_data d WHERE d.user_id = ? AND d.sleep_date = i.sleep_date)
+                        THEN 'EDITED' ELSE 'RECORDED' END,
+                   i.hours_slept, CAST(? AS TIMESTAMP)
+            FROM sleep_import i
+            """;
+
+    // Fallback for the other databases we run against (H2 in tests): one batched MERGE per night
+    private static final String MERGE_NIGHT = """
+            MERGE INTO sleep_data t
+            USING (SELECT CAST(? AS BIGINT) AS id, CAST(? AS BIGINT) AS user_id, CAST(? AS DATE) AS sleep_date,
+                          CAST(? AS NUMERIC(38, 2)) AS hours_slept) s
+            ON t.user_id = s.user_id AND t.sleep_date = s.sleep_date
+            WHEN MATCHED AND t.hours_slept <> s.hours_slept THEN
+                UPDATE SET hours_slept = s.hours_slept, version = t.version + 1
+            WHEN NOT MATCHED THEN
+                INSERT (id, user_id, sleep_date, hours_slept, sleep_debt, sleep_surplus, version)
+                VALUES (s.id, s.user_id, s.sleep_date, s.hours_slept, 0, 0, 0)
+            """;
+
+    // Batched ahead of each night's MERGE; the caller passes EDITED for a date that already
+    // appeared earlier in the file, RECORDED otherwise
+    private static final String APPEND_EVENT = """
+            INSERT INTO sleep_events (user_id, sequence_number, sleep_date, event_type, hours_slept, recorded_at)
+            SELECT CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS DATE),
+                   CASE WHEN EXISTS (SELECT 1 FROM sleep_data d WHERE d.user_id = ? AND d.sleep_date = ?)
+                        THEN 'EDITED' ELSE CAST(? AS VARCHAR(16)) END,
+                   CAST(? AS NUMERIC(38, 2)), CAST(? AS TIMESTAMP)
+            """;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public void importNights(Long userId, long lastSequenceNumber, Iterator<ImportedNight> nights) {
+        SharedSessionContractImplementor session = entityManager.unwrap(SharedSessionContractImplementor.class);
+        boolean postgres = session.getFactory().getJdbcServices().getDialect() instanceof PostgreSQLDialect;
+        Timestamp recordedAt = Timestamp.valueOf(LocalDateTime.now(ZoneOffset.UTC));
+        entityManager.unwrap(Session.class).doWork(connection -> {
+            try {
+                if (postgres) {
+                    copyAndMerge(connection, userId, lastSequenceNumber, recordedAt, nights);
+                } else {
+                    mergeInBatches(connection, session, userId, lastSequenceNumber, recordedAt, nights);
+                }
+            } catch (SQLException e) {
+                // Numbered on from the last event like a single append, so it can collide the same way
+                if (SleepEventAppendRepositoryImpl.isUniqueViolation(e)) {
+                    throw SleepEventAppendRepositoryImpl.concurrentAppend(userId, e);
+                }
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Streams the nights into a temporary table with {@code COPY}, then appends them to the log and
+     * merges them into {@code sleep_data} with one statement each.
+     */
+    private void copyAndMerge(Connection connection, Long userId, long lastSequenceNumber, Timestamp recordedAt,
+            Iterator<ImportedNight> nights) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(CREATE_STAGING);
+        }
+
+        CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI()
+                .copyIn("COPY sleep_import (line_no, sleep_date, hours_slept) FROM STDIN (FORMAT csv)");
+        try {
+            StringBuilder chunk = new StringBuilder(COPY_CHUNK_BYTES + 64);
+            long lineNo = 0;
+            while (nights.hasNext()) {
+                ImportedNight night = nights.next();
+                chunk.append(++lineNo).append(',').append(night.sleepDate()).append(',')
+                        .append(toStoredScale(night.hoursSlept()).toPlainString()).append('\n');
+                if (chunk.length() >= COPY_CHUNK_BYTES) {
+                    writeToCopy(copyIn, chunk);
+                }
+            }
+            writeToCopy(copyIn, chunk);
+            copyIn.endCopy();
+        } finally {
+            // Only still active if reading the input failed
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+
+        try (PreparedStatement append = connection.prepareStatement(APPEND_STAGED_EVENTS)) {
+            append.setLong(1, userId);
+            append.setLong(2, lastSequenceNumber);
+            append.setLong(3, userId);
+            append.setTimestamp(4, recordedAt);
+            append.executeUpdate();
+        }
+        try (PreparedStatement merge = connection.prepareStatement(MERGE_STAGING)) {
+            merge.setLong(1, userId);
+            merge.executeUpdate();
+        }
+    }
+
+    private void writeToCopy(CopyIn copyIn, StringBuilder chunk) throws SQLException {
+        byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+        chunk.setLength(0);
+    }
+
+    private void mergeInBatches(Connection connection, SharedSessionContractImplementor session, Long userId,
+            long lastSequenceNumber, Timestamp recordedAt, Iterator<ImportedNight> nights) throws SQLException {
+        // Ids come from the entity's own generator, as for the single-night upsert
+        BeforeExecutionGenerator generator = (BeforeExecutionGenerator) session.getFactory().getMappingMetamodel()
+                .getEntityDescriptor(SleepData.class).getGenerator();
+        Set<LocalDate> seenDates = new HashSet<>();
+        long sequenceNumber = lastSequenceNumber;
+        try (PreparedStatement append = connection.prepareStatement(APPEND_EVENT);
+                PreparedStatement merge = connection.prepareStatement(MERGE_NIGHT)) {
+            int batched = 0;
+            while (nights.hasNext()) {
+                ImportedNight night = nights.next();
+                Date sleepDate = Date.valueOf(night.sleepDate());
+                BigDecimal hoursSlept = toStoredScale(night.hoursSlept());
+
+                append.setLong(1, userId);
+                append.setLong(2, ++sequenceNumber);
+                append.setDate(3, sleepDate);
+                append.setLong(4, userId);
+                append.setDate(5, sleepDate);
+                append.setString(6, seenDates.add(night.sleepDate())
+                        ? SleepEvent.Type.RECORDED.name()
+                        : SleepEvent.Type.EDITED.name());
+                append.setBigDecimal(7, hoursSlept);
+                append.setTimestamp(8, recordedAt);
+                append.addBatch();
+
+                merge.setObject(1, generator.generate(session, null, null, EventType.INSERT));
+                merge.setLong(2, userId);
+                merge.setDate(3, sleepDate);
+                merge.setBigDecimal(4, hoursSlept);
+                merge.addBatch();
+                if (++batched == BATCH_SIZE) {
+                    append.executeBatch();
+                    merge.executeBatch();
+                    batched = 0;
+                }
+            }
+            if (batched > 0) {
+                append.executeBatch();
+                merge.executeBatch();
+            }
+        }
+    }
+
+    private BigDecimal toStoredScale(BigDecimal value) {
+        return value.setScale(STORED_SCALE, RoundingMode.HALF_UP);
+    }
+}
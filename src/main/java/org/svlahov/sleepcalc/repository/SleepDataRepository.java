@@ -1,24 +1,80 @@
 package org.svlahov.sleepcalc.repository;
 
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.AvailableHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.svlahov.sleepcalc.dto.SleepDataRow;
 import org.svlahov.sleepcalc.entity.SleepData;
 
+import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
-public interface SleepDataRepository extends JpaRepository<SleepData, Long> {
+public interface SleepDataRepository extends JpaRepository<SleepData, Long>, SleepDataUpsertRepository,
+        SleepDataDeltaRepository, SleepDataImportRepository {
 
     Optional<SleepData> findTopByUser_UsernameOrderBySleepDateDesc(String username);
 
-    Optional<SleepData> findTopByUser_UsernameAndSleepDateLessThanOrderBySleepDateDesc(String username, LocalDate date);
-
-    List<SleepData> findByUser_UsernameAndSleepDateGreaterThanOrderBySleepDateAsc(String username, LocalDate date);
-
     Optional<SleepData> findByUser_UsernameAndSleepDate(String username, LocalDate date);
 
     List<SleepData> findTop5ByUser_UsernameOrderBySleepDateDesc(String username);
 
     List<SleepData> findByUser_UsernameAndSleepDateBetween(String username, LocalDate startDate, LocalDate endDate);
 
+    // By user id: filters on the sleep_data.user_id column directly, without joining app_users
+
+    Optional<SleepData> findTopByUser_IdOrderBySleepDateDesc(Long userId);
+
+    Optional<SleepData> findTopByUser_IdAndSleepDateLessThanOrderBySleepDateDesc(Long userId, LocalDate date);
+
+    List<SleepData> findByUser_IdAndSleepDateBetween(Long userId, LocalDate startDate, LocalDate endDate);
+
+    List<SleepData> findByUser_IdAndSleepDateBetweenOrderBySleepDateAsc(Long userId, LocalDate startDate,
+            LocalDate endDate);
+
+    boolean existsByUser_IdAndSleepDateGreaterThan(Long userId, LocalDate date);
+
+    @Query("select s.hoursSlept from SleepData s where s.user.id = :userId and s.sleepDate = :date")
+    Optional<BigDecimal> findHoursSlept(@Param("userId") Long userId, @Param("date") LocalDate date);
+
+    long deleteByUser_IdAndSleepDate(Long userId, LocalDate date);
+
+    // Only for replacing the whole projection; nothing of the user's may be managed at that point
+    @Modifying(flushAutomatically = true)
+    @Query("delete from SleepData s where s.user.id = :userId")
+    int deleteAllForUser(@Param("userId") Long userId);
+
+    // Reads that only display entries select the four columns as unmanaged rows: no entity
+    // hydration, no User proxy and nothing for the persistence context to track
+
+    String SELECT_ROWS = "select new org.svlahov.sleepcalc.dto.SleepDataRow("
+            + "s.sleepDate, s.hoursSlept, s.sleepDebt, s.sleepSurplus) from SleepData s where s.user.id = :userId";
+
+    @Query(SELECT_ROWS + " order by s.sleepDate desc")
+    List<SleepDataRow> findRecentRows(@Param("userId") Long userId, Limit limit);
+
+    // Keyset page: seeks into the (user_id, sleep_date) index instead of skipping an OFFSET
+    @Query(SELECT_ROWS + " and s.sleepDate < :before order by s.sleepDate desc")
+    List<SleepDataRow> findRowsBefore(@Param("userId") Long userId, @Param("before") LocalDate before, Limit limit);
+
+    @Query(SELECT_ROWS + " and s.sleepDate between :from and :to order by s.sleepDate")
+    List<SleepDataRow> findRowsBetween(@Param("userId") Long userId, @Param("from") LocalDate from,
+            @Param("to") LocalDate to);
+
+    /**
+     * Rows for the CSV export, read through a cursor so memory stays flat however long the range
+     * is. Must be consumed and closed inside a transaction.
+     */
+    @QueryHints(@QueryHint(name = AvailableHints.HINT_FETCH_SIZE, value = "500"))
+    @Query(SELECT_ROWS + " and s.sleepDate between :from and :to order by s.sleepDate")
+    Stream<SleepDataRow> streamExportRows(@Param("userId") Long userId, @Param("from") LocalDate from,
+            @Param("to") LocalDate to);
+
 }
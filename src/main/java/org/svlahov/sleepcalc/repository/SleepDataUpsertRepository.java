@@ -0,0 +1,14 @@
+package org.svlahov.sleepcalc.repository;
+
+import org.svlahov.sleepcalc.entity.SleepData;
+
+public interface SleepDataUpsertRepository {
+
+    /**
+     * Inserts {@code entry}, or overwrites the stored entry for the same user and night, in one statement.
+     * Bypasses the persistence context, so managed copies of that night are stale afterwards.
+     *
+     * @return whether a row was written; {@code false} if the stored entry already had these values
+     */
+    boolean upsert(SleepData entry);
+}
@@ -0,0 +1,84 @@
+package org.svlahov.sleepcalc.repository;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.generator.BeforeExecutionGenerator;
+import org.hibernate.generator.EventType;
+import org.hibernate.query.NativeQuery;
+import org.svlahov.sleepcalc.entity.SleepData;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+public class SleepDataUpsertRepositoryImpl implements SleepDataUpsertRepository {
+
+    // Matches the numeric(38,2) columns, so an unchanged night compares equal
+    private static final int STORED_SCALE = 2;
+
+    private static final String POSTGRES_UPSERT = """
+            INSERT INTO sleep_data (id, user_id, sleep_date, hours_slept, sleep_debt, sleep_surplus, version)
+            VALUES (:id, :userId, :sleepDate, :hoursSlept, :sleepDebt, :sleepSurplus, 0)
+            ON CONFLICT (user_id, sleep_date) DO UPDATE
+            SET hours_slept = EXCLUDED.hours_slept,
+                sleep_debt = EXCLUDED.sleep_debt,
+                sleep_surplus = EXCLUDED.sleep_surplus,
+                version = sleep_data.version + 1
+            WHERE (sleep_data.hours_slept, sleep_data.sleep_debt, sleep_data.sleep_surplus)
+                IS DISTINCT FROM (EXCLUDED.hours_slept, EXCLUDED.sleep_debt, EXCLUDED.sleep_surplus)
+            """;
+
+    // Standard MERGE for the other databases we run against (H2 in tests)
+    private static final String MERGE_UPSERT = """
+            MERGE INTO sleep_data t
+            USING (SELECT CAST(:id AS BIGINT) AS id, CAST(:userId AS BIGINT) AS user_id,
+                          CAST(:sleepDate AS DATE) AS sleep_date, CAST(:hoursSlept AS NUMERIC(38, 2)) AS hours_slept,
+                          CAST(:sleepDebt AS NUMERIC(38, 2)) AS sleep_debt,
+                          CAST(:sleepSurplus AS NUMERIC(38, 2)) AS sleep_surplus) s
+            ON t.user_id = s.user_id AND t.sleep_date = s.sleep_date
+            WHEN MATCHED AND (t.hours_slept <> s.hours_slept OR t.sleep_debt <> s.sleep_debt
+                    OR t.sleep_surplus <> s.sleep_surplus) THEN
+                UPDATE SET hours_slept = s.hours_slept, sleep_debt = s.sleep_debt,
+                           sleep_surplus = s.sleep_surplus, version = t.version + 1
+            WHEN NOT MATCHED THEN
+                INSERT (id, user_id, sleep_date, hours_slept, sleep_debt, sleep_surplus, version)
+                VALUES (s.id, s.user_id, s.sleep_date, s.hours_slept, s.sleep_debt, s.sleep_surplus, 0)
+            """;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public boolean upsert(SleepData entry) {
+        SharedSessionContractImplementor session = entityManager.unwrap(SharedSessionContractImplementor.class);
+        SessionFactoryImplementor sessionFactory = session.getFactory();
+        String sql = sessionFactory.getJdbcServices().getDialect() instanceof PostgreSQLDialect
+                ? POSTGRES_UPSERT
+                : MERGE_UPSERT;
+
+        // Taken from the entity's own generator so native inserts never collide with Hibernate's id blocks;
+        // it is simply unused when the night already exists
+        BeforeExecutionGenerator generator = (BeforeExecutionGenerator) sessionFactory.getMappingMetamodel()
+                .getEntityDescriptor(SleepData.class).getGenerator();
+        Object id = generator.generate(session, entry, null, EventType.INSERT);
+
+        // Without a declared table Hibernate would evict every second-level cache region on each write
+        int rows = entityManager.createNativeQuery(sql)
+                .unwrap(NativeQuery.class)
+                .addSynchronizedEntityClass(SleepData.class)
+                .setParameter("id", id)
+                .setParameter("userId", entry.getUser().getId())
+                .setParameter("sleepDate", entry.getSleepDate())
+                .setParameter("hoursSlept", toStoredScale(entry.getHoursSlept()))
+                .setParameter("sleepDebt", toStoredScale(entry.getSleepDebt()))
+                .setParameter("sleepSurplus", toStoredScale(entry.getSleepSurplus()))
+                .executeUpdate();
+        return rows > 0;
+    }
+
+    private BigDecimal toStoredScale(BigDecimal value) {
+        return value.setScale(STORED_SCALE, RoundingMode.HALF_UP);
+    }
+}
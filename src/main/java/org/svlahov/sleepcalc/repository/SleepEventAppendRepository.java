@@ -0,0 +1,23 @@
+package org.svlahov.sleepcalc.repository;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.NavigableMap;
+
+public interface SleepEventAppendRepository {
+
+    /**
+     * Appends one event per night to the user's log in date order, numbered on from its last
+     * event: EDITED when the latest event for the date recorded hours, RECORDED otherwise. Each
+     * event is a single statement and they are sent as one batch; bypasses the persistence context.
+     */
+    void appendNights(Long userId, NavigableMap<LocalDate, BigDecimal> hoursByDate, LocalDateTime recordedAt);
+
+    /**
+     * Appends a DELETED event for the night in one statement, unless the log holds no hours for it.
+     *
+     * @return whether the event was appended
+     */
+    boolean appendDeletion(Long userId, LocalDate date, LocalDateTime recordedAt);
+}
@@ -0,0 +1,128 @@
+package org.svlahov.sleepcalc.repository;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.Session;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.NavigableMap;
+
+public class SleepEventAppendRepositoryImpl implements SleepEventAppendRepository {
+
+    private static final int STORED_SCALE = 2;
+    private static final String UNIQUE_VIOLATION = "23505";
+
+    // The type of the latest event for a night, or NULL when it has none
+    private static final String LATEST_TYPE = """
+            (SELECT d.event_type FROM sleep_events d
+             WHERE d.user_id = ? AND d.sleep_date = ?
+             ORDER BY d.sequence_number DESC FETCH FIRST 1 ROW ONLY)""";
+
+    // The sequence number and the type are worked out by the insert itself, so an append is one
+    // round trip. The aggregate always yields a row, also for a user without events.
+    private static final String APPEND_NIGHT = """
+            INSERT INTO sleep_events (user_id, sequence_number, sleep_date, event_type, hours_slept, recorded_at)
+            SELECT CAST(? AS BIGINT), COALESCE(MAX(e.sequence_number), 0) + 1, CAST(? AS DATE),
+                   CASE WHEN COALESCE(%s, 'DELETED') = 'DELETED' THEN 'RECORDED' ELSE 'EDITED' END,
+                   CAST(? AS NUMERIC(38, 2)), CAST(? AS TIMESTAMP)
+            FROM sleep_events e
+            WHERE e.user_id = ?
+            """.formatted(LATEST_TYPE);
+
+    // Inserts nothing when the night is not currently recorded
+    private static final String APPEND_DELETION = """
+            INSERT INTO sleep_events (user_id, sequence_number, sleep_date, event_type, hours_slept, recorded_at)
+            SELECT CAST(? AS BIGINT), COALESCE(MAX(e.sequence_number), 0) + 1, CAST(? AS DATE), 'DELETED',
+                   CAST(NULL AS NUMERIC(38, 2)), CAST(? AS TIMESTAMP)
+            FROM sleep_events e
+            WHERE e.user_id = ?
+            HAVING COALESCE(%s, 'DELETED') <> 'DELETED'
+            """.formatted(LATEST_TYPE);
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public void appendNights(Long userId, NavigableMap<LocalDate, BigDecimal> hoursByDate,
+            LocalDateTime recordedAt) {
+        // Events saved through the repository must be numbered before these
+        entityManager.flush();
+        entityManager.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement append = connection.prepareStatement(APPEND_NIGHT)) {
+                for (Map.Entry<LocalDate, BigDecimal> night : hoursByDate.entrySet()) {
+                    Date sleepDate = Date.valueOf(night.getKey());
+                    append.setLong(1, userId);
+                    append.setDate(2, sleepDate);
+                    append.setLong(3, userId);
+                    append.setDate(4, sleepDate);
+                    append.setBigDecimal(5, night.getValue().setScale(STORED_SCALE, RoundingMode.HALF_UP));
+                    append.setTimestamp(6, Timestamp.valueOf(recordedAt));
+                    append.setLong(7, userId);
+                    append.addBatch();
+                }
+                append.executeBatch();
+            } catch (SQLException e) {
+                if (isUniqueViolation(e)) {
+                    throw concurrentAppend(userId, e);
+                }
+                throw e;
+            }
+        });
+    }
+
+    @Override
+    public boolean appendDeletion(Long userId, LocalDate date, LocalDateTime recordedAt) {
+        entityManager.flush();
+        return entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement append = connection.prepareStatement(APPEND_DELETION)) {
+                Date sleepDate = Date.valueOf(date);
+                append.setLong(1, userId);
+                append.setDate(2, sleepDate);
+                append.setTimestamp(3, Timestamp.valueOf(recordedAt));
+                append.setLong(4, userId);
+                append.setLong(5, userId);
+                append.setDate(6, sleepDate);
+                return append.executeUpdate() > 0;
+            } catch (SQLException e) {
+                if (isUniqueViolation(e)) {
+                    throw concurrentAppend(userId, e);
+                }
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Numbering by {@code MAX + 1} is only serialized by the write lock of this instance, so another
+     * instance appending for the same user at the same moment can take the same sequence number.
+     * The primary key rejects the second insert, which is reported as a conflict the client can
+     * retry rather than as a server error.
+     */
+    static OptimisticLockingFailureException concurrentAppend(Long userId, SQLException e) {
+        return new OptimisticLockingFailureException(
+                "Sleep events of user " + userId + " were appended concurrently", e);
+    }
+
+    // A failed batch reports the statement's own error as its next exception or cause
+    static boolean isUniqueViolation(SQLException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException sqlException) {
+                for (SQLException next = sqlException; next != null; next = next.getNextException()) {
+                    if (UNIQUE_VIOLATION.equals(next.getSQLState())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
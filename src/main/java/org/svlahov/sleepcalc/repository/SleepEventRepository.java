@@ -0,0 +1,59 @@
+package org.svlahov.sleepcalc.repository;
+
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.AvailableHints;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+import org.svlahov.sleepcalc.dto.SleepEventRow;
+import org.svlahov.sleepcalc.entity.SleepEvent;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * The log is read as {@link SleepEventRow} projections in sequence order. Writes append their
+ * events through {@link SleepEventAppendRepository}; events are never changed.
+ */
+public interface SleepEventRepository extends JpaRepository<SleepEvent, SleepEvent.Key>, SleepEventAppendRepository {
+
+    String SELECT_ROWS = "select new org.svlahov.sleepcalc.dto.SleepEventRow("
+            + "e.sequenceNumber, e.sleepDate, e.eventType, e.hoursSlept) from SleepEvent e where e.userId = :userId";
+
+    @Query("select max(e.sequenceNumber) from SleepEvent e where e.userId = :userId")
+    Optional<Long> findLastSequenceNumber(@Param("userId") Long userId);
+
+    @Query("select case when count(e) > 0 then true else false end from SleepEvent e where e.userId = :userId"
+            + " and e.sequenceNumber > coalesce((select c.sequenceNumber from SleepProjectionCheckpoint c"
+            + " where c.userId = :userId), 0)")
+    boolean hasUnprojectedEvents(@Param("userId") Long userId);
+
+    // Users whose log runs ahead of their checkpoint, e.g. after a restart
+    @Query("select e.userId from SleepEvent e group by e.userId having max(e.sequenceNumber) > coalesce("
+            + "(select c.sequenceNumber from SleepProjectionCheckpoint c where c.userId = e.userId), 0)")
+    List<Long> findUserIdsWithUnprojectedEvents();
+
+    @Query(SELECT_ROWS + " and e.sequenceNumber > :after order by e.sequenceNumber")
+    List<SleepEventRow> findAfter(@Param("userId") Long userId, @Param("after") long after, Limit limit);
+
+    /**
+     * The user's whole log for a replay, read through a cursor. Must be consumed and closed inside
+     * a transaction.
+     */
+    @QueryHints(@QueryHint(name = AvailableHints.HINT_FETCH_SIZE, value = "500"))
+    @Query(SELECT_ROWS + " order by e.sequenceNumber")
+    Stream<SleepEventRow> streamAll(@Param("userId") Long userId);
+
+    /**
+     * Drops the user's whole log, before the user itself is deleted. Events are otherwise never removed.
+     */
+    @Transactional
+    @Modifying(flushAutomatically = true)
+    @Query("delete from SleepEvent e where e.userId = :userId")
+    int deleteAllForUser(@Param("userId") Long userId);
+}
@@ -0,0 +1,79 @@
+package org.svlahov.sleepcalc.repository;
+
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+import org.svlahov.sleepcalc.dto.CumulativeSleep;
+import org.svlahov.sleepcalc.entity.SleepPrefixSum;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Rows are only ever written through the statements below and read as {@link CumulativeSleep}
+ * projections, so no {@link SleepPrefixSum} is managed that the bulk updates could leave stale.
+ */
+public interface SleepPrefixSumRepository extends JpaRepository<SleepPrefixSum, SleepPrefixSum.Key> {
+
+    @Query("select new org.svlahov.sleepcalc.dto.CumulativeSleep(p.sleepDate, p.cumulativeHours, p.cumulativeNights)"
+            + " from SleepPrefixSum p where p.userId = :userId and p.sleepDate <= :date order by p.sleepDate desc")
+    List<CumulativeSleep> findAtOrBefore(@Param("userId") Long userId, @Param("date") LocalDate date, Limit limit);
+
+    /**
+     * Totals through {@code date}, from the latest recorded night on or before it.
+     */
+    default Optional<CumulativeSleep> findLatestAtOrBefore(Long userId, LocalDate date) {
+        return findAtOrBefore(userId, date, Limit.of(1)).stream().findFirst();
+    }
+
+    @Modifying(flushAutomatically = true)
+    // Names the table written, so the native insert does not evict the whole second-level cache
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_NATIVE_SPACES, value = "sleep_prefix_sums"))
+    @Query(value = "insert into sleep_prefix_sums (user_id, sleep_date, cumulative_hours, cumulative_nights)"
+            + " values (:userId, :date, :hours, :nights)", nativeQuery = true)
+    int insertAt(@Param("userId") Long userId, @Param("date") LocalDate date, @Param("hours") BigDecimal hours,
+            @Param("nights") int nights);
+
+    /**
+     * Writes the running totals of all of the user's stored entries in one statement; the user
+     * must have no rows yet. A user has at most one entry per date, so the row number is the count.
+     */
+    @Modifying(flushAutomatically = true)
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_NATIVE_SPACES, value = "sleep_prefix_sums"))
+    @Query(value = "insert into sleep_prefix_sums (user_id, sleep_date, cumulative_hours, cumulative_nights)"
+            + " select s.user_id, s.sleep_date, sum(s.hours_slept) over (order by s.sleep_date),"
+            + " row_number() over (order by s.sleep_date)"
+            + " from sleep_data s where s.user_id = :userId", nativeQuery = true)
+    int insertAllForUser(@Param("userId") Long userId);
+
+    @Modifying(flushAutomatically = true)
+    @Query("update SleepPrefixSum p set p.cumulativeHours = :hours, p.cumulativeNights = :nights"
+            + " where p.userId = :userId and p.sleepDate = :date")
+    int updateAt(@Param("userId") Long userId, @Param("date") LocalDate date, @Param("hours") BigDecimal hours,
+            @Param("nights") int nights);
+
+    // One statement for the whole tail after a backdated night
+    @Modifying(flushAutomatically = true)
+    @Query("update SleepPrefixSum p set p.cumulativeHours = p.cumulativeHours + :hours,"
+            + " p.cumulativeNights = p.cumulativeNights + :nights"
+            + " where p.userId = :userId and p.sleepDate > :date")
+    int shiftAfter(@Param("userId") Long userId, @Param("date") LocalDate date, @Param("hours") BigDecimal hours,
+            @Param("nights") int nights);
+
+    @Modifying(flushAutomatically = true)
+    @Query("delete from SleepPrefixSum p where p.userId = :userId and p.sleepDate = :date")
+    int deleteAt(@Param("userId") Long userId, @Param("date") LocalDate date);
+
+    @Transactional
+    @Modifying(flushAutomatically = true)
+    @Query("delete from SleepPrefixSum p where p.userId = :userId")
+    int deleteAllForUser(@Param("userId") Long userId);
+}
@@ -0,0 +1,7 @@
+package org.svlahov.sleepcalc.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.svlahov.sleepcalc.entity.SleepProjectionCheckpoint;
+
+public interface SleepProjectionCheckpointRepository extends JpaRepository<SleepProjectionCheckpoint, Long> {
+}
@@ -0,0 +1,14 @@
+package org.svlahov.sleepcalc.repository;
+
+import org.svlahov.sleepcalc.entity.User;
+
+import java.util.Optional;
+
+public interface UserNaturalIdRepository {
+
+    /**
+     * Looks the user up by its natural id, so a repeated lookup is answered from the second-level
+     * cache instead of the database.
+     */
+    Optional<User> findByUsername(String username);
+}
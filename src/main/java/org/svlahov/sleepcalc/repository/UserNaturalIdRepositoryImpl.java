@@ -0,0 +1,24 @@
+package org.svlahov.sleepcalc.repository;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.Session;
+import org.springframework.transaction.annotation.Transactional;
+import org.svlahov.sleepcalc.entity.User;
+
+import java.util.Optional;
+
+public class UserNaturalIdRepositoryImpl implements UserNaturalIdRepository {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    // Not read-only: login, registration and password resets must see the primary, not a replica
+    @Override
+    @Transactional
+    public Optional<User> findByUsername(String username) {
+        // A derived query would always hit the database; the natural-id cache maps username to id
+        // and the entity cache holds the row
+        return entityManager.unwrap(Session.class).bySimpleNaturalId(User.class).loadOptional(username);
+    }
+}
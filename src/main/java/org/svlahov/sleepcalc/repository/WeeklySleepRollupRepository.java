@@ -0,0 +1,46 @@
+package org.svlahov.sleepcalc.repository;
+
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.svlahov.sleepcalc.dto.WeekTotals;
+import org.svlahov.sleepcalc.entity.WeeklySleepRollup;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+public interface WeeklySleepRollupRepository extends JpaRepository<WeeklySleepRollup, WeeklySleepRollup.Key> {
+
+    List<WeeklySleepRollup> findByUserIdAndWeekStartBetween(Long userId, LocalDate firstWeekStart,
+            LocalDate lastWeekStart);
+
+    @Modifying(flushAutomatically = true)
+    @Query("delete from WeeklySleepRollup r where r.userId = :userId")
+    int deleteAllForUser(@Param("userId") Long userId);
+
+    /**
+     * Summarizes all of the user's stored entries per ISO week in one statement; the user must
+     * have no rows yet. ISODOW is 1 on Mondays.
+     */
+    @Modifying(flushAutomatically = true)
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_NATIVE_SPACES, value = "weekly_sleep_rollups"))
+    @Query(value = "insert into weekly_sleep_rollups (user_id, week_start, nights, hours_sum, deviation_sum)"
+            + " select :userId, w.week_start, count(*), sum(w.hours_slept), sum(w.hours_slept) - :target * count(*)"
+            + " from (select s.hours_slept,"
+            + " s.sleep_date - cast(extract(isodow from s.sleep_date) as integer) + 1 as week_start"
+            + " from sleep_data s where s.user_id = :userId) w"
+            + " group by w.week_start", nativeQuery = true)
+    int insertAllForUser(@Param("userId") Long userId, @Param("target") BigDecimal targetSleepHours);
+
+    // Read-only totals for reports, without loading managed entities
+    @Query("select new org.svlahov.sleepcalc.dto.WeekTotals(r.weekStart, r.nights, r.hoursSum, r.deviationSum)"
+            + " from WeeklySleepRollup r where r.userId = :userId"
+            + " and r.weekStart between :firstWeekStart and :lastWeekStart")
+    List<WeekTotals> findWeekTotals(@Param("userId") Long userId, @Param("firstWeekStart") LocalDate firstWeekStart,
+            @Param("lastWeekStart") LocalDate lastWeekStart);
+}
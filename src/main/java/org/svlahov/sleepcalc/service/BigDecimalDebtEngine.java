@@ -0,0 +1,87 @@
+package org.svlahov.sleepcalc.service;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+@Component
+@ConditionalOnProperty(name = "sleep.debt-engine", havingValue = "bigdecimal", matchIfMissing = true)
+public class BigDecimalDebtEngine implements DebtEngine {
+
+    // Sleep calculation constants
+    private static final BigDecimal TARGET_SLEEP_HOURS = new BigDecimal("7.5");
+    private static final BigDecimal MAX_EFFECTIVE_DEBT = new BigDecimal("20.0");
+    private static final BigDecimal MIN_RECOVERY_FACTOR = new BigDecimal("0.3");
+
+    // Common BigDecimal values
+    private static final BigDecimal ZERO = BigDecimal.ZERO;
+    private static final BigDecimal ONE = BigDecimal.ONE;
+
+    @Override
+    public DebtState next(DebtState previousState, BigDecimal hoursSlept) {
+        BigDecimal sleepDifference = hoursSlept.subtract(TARGET_SLEEP_HOURS);
+
+        if (sleepDifference.compareTo(ZERO) > 0) {
+            return applyExtraSleep(previousState, sleepDifference);
+        } else if (sleepDifference.compareTo(ZERO) < 0) {
+            return applySleepShortfall(previousState, sleepDifference.negate());
+        } else {
+            return previousState;
+        }
+    }
+
+    private DebtState applyExtraSleep(DebtState previousState, BigDecimal extraSleep) {
+        BigDecimal currentDebt = previousState.sleepDebt();
+        BigDecimal currentSurplus = previousState.sleepSurplus();
+
+        if (currentDebt.compareTo(ZERO) <= 0) {
+            return new DebtState(currentDebt, currentSurplus.add(extraSleep));
+        }
+
+        BigDecimal recoveryFactor = calculateRecoveryFactor(currentDebt);
+        BigDecimal debtReductionAmount = extraSleep.multiply(recoveryFactor);
+
+        BigDecimal actualDebtPaid = debtReductionAmount.min(currentDebt);
+        BigDecimal newDebt = currentDebt.subtract(actualDebtPaid);
+
+        BigDecimal sleepPowerUsed = (recoveryFactor.compareTo(ZERO) > 0)
+                ? actualDebtPaid.divide(recoveryFactor, 4, RoundingMode.HALF_UP)
+                : ZERO;
+        BigDecimal surplusToAdd = extraSleep.subtract(sleepPowerUsed).max(ZERO);
+
+        BigDecimal newSurplus = currentSurplus.add(surplusToAdd);
+
+        return new DebtState(newDebt, newSurplus);
+    }
+
+    private DebtState applySleepShortfall(DebtState previousState, BigDecimal shortfall) {
+        BigDecimal currentDebt = previousState.sleepDebt();
+        BigDecimal currentSurplus = previousState.sleepSurplus();
+
+        BigDecimal surplusToUse = shortfall.min(currentSurplus);
+        BigDecimal newSurplus = currentSurplus.subtract(surplusToUse);
+
+        BigDecimal remainingShortfall = shortfall.subtract(surplusToUse);
+        BigDecimal newDebt = currentDebt.add(remainingShortfall);
+
+        return new DebtState(newDebt, newSurplus);
+    }
+
+    private BigDecimal calculateRecoveryFactor(BigDecimal currentDebt) {
+        // If no debt or negative debt (sleep surplus), recovery is 100% effective
+        if (currentDebt.compareTo(ONE) <= 0) {
+            return ONE;
+        }
+
+        // As debt increases, recovery becomes less effective
+        // Recovery factor decreases linearly from 1.0 to MIN_RECOVERY_FACTOR (0.3)
+        BigDecimal debtRatio = currentDebt.divide(MAX_EFFECTIVE_DEBT, 4, RoundingMode.HALF_UP);
+        BigDecimal factorReduction = debtRatio.multiply(ONE.subtract(MIN_RECOVERY_FACTOR));
+        BigDecimal calculatedFactor = ONE.subtract(factorReduction);
+
+        // Ensure recovery factor doesn't go below minimum
+        return calculatedFactor.max(MIN_RECOVERY_FACTOR);
+    }
+}
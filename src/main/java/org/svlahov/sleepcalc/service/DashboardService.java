@@ -0,0 +1,14 @@
+package org.svlahov.sleepcalc.service;
+
+import org.svlahov.sleepcalc.dto.DashboardDTO;
+
+import java.time.LocalDate;
+
+public interface DashboardService {
+
+    /**
+     * The current state, recent history and the weekly and monthly reports for {@code date}, read
+     * concurrently. Fails as a whole if any part fails or the deadline passes.
+     */
+    DashboardDTO getDashboard(LocalDate date);
+}
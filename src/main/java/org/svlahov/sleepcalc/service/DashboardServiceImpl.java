@@ -0,0 +1,120 @@
+package org.svlahov.sleepcalc.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+import org.springframework.stereotype.Service;
+import org.svlahov.sleepcalc.dto.DashboardDTO;
+import org.svlahov.sleepcalc.dto.MonthlyReportDTO;
+import org.svlahov.sleepcalc.dto.WeeklyReportDTO;
+import org.svlahov.sleepcalc.exception.DeadlineExceededException;
+import org.svlahov.sleepcalc.service.SleepService.SleepHistoryEntry;
+import org.svlahov.sleepcalc.service.SleepService.SleepState;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the four reads of the dashboard side by side, each on its own virtual thread and with its
+ * own connection, so the response takes as long as the slowest of them rather than their sum.
+ * The tasks run with the caller's security context. Every read first takes one of
+ * {@code sleep.dashboard.max-concurrent-reads} permits shared by all requests, so concurrent
+ * dashboards cannot take more than that many connections from the pool between them. When one read
+ * fails or the deadline passes, reads still waiting for a permit are dropped; those already running
+ * are left to finish, as interrupting a thread inside a JDBC call can leave its connection broken.
+ */
+@Service
+public class DashboardServiceImpl implements DashboardService {
+
+    private final SleepService sleepService;
+    private final ReportService reportService;
+    private final Duration timeout;
+    private final Semaphore readPermits;
+    private final ExecutorService executor;
+
+    public DashboardServiceImpl(SleepService sleepService, ReportService reportService,
+            @Value("${sleep.dashboard.timeout:5s}") Duration timeout,
+            @Value("${sleep.dashboard.max-concurrent-reads:5}") int maxConcurrentReads) {
+        this.sleepService = sleepService;
+        this.reportService = reportService;
+        this.timeout = timeout;
+        this.readPermits = new Semaphore(maxConcurrentReads, true);
+        this.executor = new DelegatingSecurityContextExecutorService(
+                Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("dashboard-", 0).factory()));
+    }
+
+    @Override
+    public DashboardDTO getDashboard(LocalDate date) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        AtomicBoolean abandoned = new AtomicBoolean();
+
+        Future<SleepState> state = submit(sleepService::getCurrentSleepState, deadline, abandoned);
+        Future<List<SleepHistoryEntry>> history = submit(() -> sleepService.getSleepHistory(), deadline, abandoned);
+        Future<WeeklyReportDTO> weeklyReport = submit(() -> reportService.getWeeklyReport(date), deadline,
+                abandoned);
+        Future<MonthlyReportDTO> monthlyReport = submit(() -> reportService.getMonthlyReport(date), deadline,
+                abandoned);
+        List<Future<?>> tasks = List.of(state, history, weeklyReport, monthlyReport);
+
+        try {
+            return new DashboardDTO(await(state, deadline), await(history, deadline),
+                    await(weeklyReport, deadline), await(monthlyReport, deadline));
+        } finally {
+            // No-op for the tasks that completed; running reads are not interrupted
+            abandoned.set(true);
+            tasks.forEach(task -> task.cancel(false));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private <T> Future<T> submit(Callable<T> read, long deadline, AtomicBoolean abandoned) {
+        return executor.submit(() -> {
+            if (!readPermits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                throw new DeadlineExceededException("The dashboard could not be loaded within "
+                        + timeout.toMillis() + " ms.");
+            }
+            try {
+                // Nobody is waiting for the result any more, so do not take a connection for it
+                if (abandoned.get()) {
+                    throw new CancellationException();
+                }
+                return read.call();
+            } finally {
+                readPermits.release();
+            }
+        });
+    }
+
+    private <T> T await(Future<T> task, long deadline) {
+        try {
+            return task.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException("The dashboard could not be loaded within " + timeout.toMillis()
+                    + " ms.");
+        } catch (ExecutionException e) {
+            // Surface the task's own exception, so e.g. an IllegalArgumentException still maps to 400
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException("Loading the dashboard failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading the dashboard", e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.svlahov.sleepcalc.service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies one night of sleep to the running sleep debt/surplus state.
+ * The implementation is chosen with the {@code sleep.debt-engine} property.
+ */
+public interface DebtEngine {
+
+    record DebtState(BigDecimal sleepDebt, BigDecimal sleepSurplus) {}
+
+    DebtState next(DebtState previousState, BigDecimal hoursSlept);
+
+    /**
+     * Applies each night in order, starting from {@code startingState}, and returns
+     * the state after every night.
+     */
+    default List<DebtState> fold(DebtState startingState, List<BigDecimal> hoursSlept) {
+        List<DebtState> states = new ArrayList<>(hoursSlept.size());
+        DebtState currentState = startingState;
+        for (BigDecimal hours : hoursSlept) {
+            currentState = next(currentState, hours);
+            states.add(currentState);
+        }
+        return states;
+    }
+}
@@ -0,0 +1,151 @@
+package org.svlahov.sleepcalc.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.svlahov.sleepcalc.entity.DebtWatermark;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.DebtWatermarkRepository;
+import org.svlahov.sleepcalc.repository.SleepEventRepository;
+import org.svlahov.sleepcalc.repository.UserRepository;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Projects appended sleep events and recalculates stale debt/surplus tails off the request thread.
+ * <p>
+ * A pass first applies the user's events after their {@link SleepEventProjector} checkpoint, then
+ * folds the tail the events left stale.
+ * <p>
+ * Holds at most one pending task per user. The earliest dirty date lives in the user's
+ * {@link DebtWatermark}, so requests that arrive while a task is queued or running are merged
+ * into it: the running task just makes another pass instead of a second task being scheduled.
+ */
+@Component
+public class DebtRecalculationQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(DebtRecalculationQueue.class);
+
+    // userId -> whether more work arrived after the current pass started
+    private final ConcurrentHashMap<Long, Boolean> pending = new ConcurrentHashMap<>();
+
+    private final SleepEventProjector sleepEventProjector;
+    private final DebtRecalculationService debtRecalculationService;
+    private final SleepEventRepository sleepEventRepository;
+    private final DebtWatermarkRepository debtWatermarkRepository;
+    private final UserRepository userRepository;
+    private final UserWriteLocks userWriteLocks;
+    private final ExecutorService executor;
+
+    public DebtRecalculationQueue(SleepEventProjector sleepEventProjector,
+            DebtRecalculationService debtRecalculationService, SleepEventRepository sleepEventRepository,
+            DebtWatermarkRepository debtWatermarkRepository, UserRepository userRepository,
+            UserWriteLocks userWriteLocks, MeterRegistry meterRegistry,
+            @Value("${sleep.recalculation.threads:2}") int threads) {
+        this.sleepEventProjector = sleepEventProjector;
+        this.debtRecalculationService = debtRecalculationService;
+        this.sleepEventRepository = sleepEventRepository;
+        this.debtWatermarkRepository = debtWatermarkRepository;
+        this.userRepository = userRepository;
+        this.userWriteLocks = userWriteLocks;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "debt-recalculation-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Gauge.builder("sleep.recalculation.backlog", pending, ConcurrentHashMap::size)
+                .description("Users with a debt recalculation queued or running")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Schedules the user's appended events and stale entries once the current transaction commits,
+     * so the task never runs ahead of the write that marked them.
+     */
+    public void enqueue(User user) {
+        Long userId = user.getId();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    schedule(userId);
+                }
+            });
+        } else {
+            schedule(userId);
+        }
+    }
+
+    public int backlog() {
+        return pending.size();
+    }
+
+    // Picks up events and tails left behind by a previous run of the application
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumePending() {
+        for (Long userId : sleepEventRepository.findUserIdsWithUnprojectedEvents()) {
+            schedule(userId);
+        }
+        for (DebtWatermark watermark : debtWatermarkRepository.findAll()) {
+            schedule(watermark.getUserId());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void schedule(Long userId) {
+        if (pending.put(userId, Boolean.TRUE) == null) {
+            executor.execute(() -> drain(userId));
+        }
+    }
+
+    private void drain(Long userId) {
+        try {
+            do {
+                // Anything enqueued from here on flips the flag back and earns another pass
+                pending.replace(userId, Boolean.FALSE);
+                recalculate(userId);
+            } while (!pending.remove(userId, Boolean.FALSE));
+        } catch (RuntimeException e) {
+            // The checkpoint and watermark stay in place; the next write or restart retries
+            pending.remove(userId);
+            logger.error("Debt recalculation failed for user {}", userId, e);
+        }
+    }
+
+    private void recalculate(Long userId) {
+        User user = userRepository.findById(userId).orElse(null);
+        if (user == null) {
+            return;
+        }
+        // One batch of events, then one month, per transaction keeps locks short and saves progress
+        // as it goes. The stripe is taken before each transaction, so waiting holds no connection.
+        while (userWriteLocks.callLocked(userId, () -> sleepEventProjector.catchUpNextBatch(user)) > 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+        while (userWriteLocks.callLocked(userId, () -> debtRecalculationService.refreshNextInterval(user))) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.svlahov.sleepcalc.service;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.svlahov.sleepcalc.entity.DebtWatermark;
+import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.DebtWatermarkRepository;
+import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.SleepEventRepository;
+import org.svlahov.sleepcalc.service.DebtEngine.DebtState;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps the stored debt/surplus chain consistent without rewriting the whole tail inside a write.
+ * <p>
+ * A write only stores the entries it touched. If the state carried out of them changed, the rest
+ * of the history is marked stale with a per-user {@link DebtWatermark}, which only ever moves back
+ * when several writes land before the tail is caught up. Entries before the watermark are always
+ * correct and act as the snapshots the remaining entries are folded from, one calendar month per
+ * transaction, by {@link DebtRecalculationQueue}.
+ */
+@Service
+public class DebtRecalculationService {
+
+    private static final int STORED_SCALE = 2;
+    private static final BigDecimal ZERO = BigDecimal.ZERO;
+
+    private final SleepDataRepository sleepDataRepository;
+    private final DebtWatermarkRepository debtWatermarkRepository;
+    private final SleepEventRepository sleepEventRepository;
+    private final DebtEngine debtEngine;
+    private final UserWriteLocks userWriteLocks;
+    private final ReportCache reportCache;
+
+    public DebtRecalculationService(SleepDataRepository sleepDataRepository,
+            DebtWatermarkRepository debtWatermarkRepository, SleepEventRepository sleepEventRepository,
+            DebtEngine debtEngine, UserWriteLocks userWriteLocks, ReportCache reportCache) {
+        this.sleepDataRepository = sleepDataRepository;
+        this.debtWatermarkRepository = debtWatermarkRepository;
+        this.sleepEventRepository = sleepEventRepository;
+        this.debtEngine = debtEngine;
+        this.userWriteLocks = userWriteLocks;
+        this.reportCache = reportCache;
+    }
+
+    public DebtState next(DebtState previousState, BigDecimal hoursSlept) {
+        return debtEngine.next(previousState, hoursSlept);
+    }
+
+    /**
+     * Returns the state carried into {@code date}, bringing the entries before it up to date first.
+     */
+    @Transactional
+    public DebtState stateBefore(User user, LocalDate date) {
+        refreshThrough(user, date.minusDays(1));
+        return storedStateBefore(user.getId(), date);
+    }
+
+    /**
+     * Applies the chain to {@code entries} (in date order) and returns the ones whose
+     * debt or surplus changed.
+     */
+    public List<SleepData> recalculate(List<SleepData> entries, DebtState startingState) {
+        List<DebtState> newStates = debtEngine.fold(startingState,
+                entries.stream().map(SleepData::getHoursSlept).toList());
+        List<SleepData> changedEntries = new ArrayList<>();
+        // Weekly reports show each day's change against the entry before it, so a day is affected
+        // when either of the two changed
+        Set<LocalDate> affectedWeeks = new TreeSet<>();
+        boolean previousChanged = false;
+
+        for (int i = 0; i < entries.size(); i++) {
+            SleepData entry = entries.get(i);
+            DebtState newState = newStates.get(i);
+            boolean changed = !isUnchanged(entry, newState);
+            if (changed || previousChanged) {
+                affectedWeeks.add(WeeklyRollupService.weekStart(entry.getSleepDate()));
+            }
+            previousChanged = changed;
+            if (!changed) {
+                continue;
+            }
+            entry.setSleepDebt(newState.sleepDebt());
+            entry.setSleepSurplus(newState.sleepSurplus());
+            changedEntries.add(entry);
+        }
+        for (LocalDate weekStart : affectedWeeks) {
+            reportCache.evictWeek(entries.get(0).getUser().getId(), weekStart);
+        }
+        return changedEntries;
+    }
+
+    /**
+     * Called after every entry up to {@code date} has been written from a correct starting state.
+     * Moves the watermark past {@code date}, or sets it there when the state carried out of
+     * {@code date} changed and later entries exist.
+     *
+     * @return whether later entries are left to recalculate
+     */
+    @Transactional
+    public boolean markCorrectThrough(User user, LocalDate date, boolean carriedStateChanged) {
+        userWriteLocks.lockForTransaction(user.getId());
+        Optional<DebtWatermark> existing = debtWatermarkRepository.findById(user.getId());
+        if (existing.isEmpty() && !carriedStateChanged) {
+            return false;
+        }
+        if (!sleepDataRepository.existsByUser_IdAndSleepDateGreaterThan(user.getId(), date)) {
+            existing.ifPresent(debtWatermarkRepository::delete);
+            return false;
+        }
+
+        LocalDate nextDate = date.plusDays(1);
+        if (existing.isPresent()) {
+            DebtWatermark watermark = existing.get();
+            if (carriedStateChanged || !watermark.getStaleFrom().isAfter(date)) {
+                watermark.setStaleFrom(nextDate);
+            }
+        } else {
+            debtWatermarkRepository.save(new DebtWatermark(user.getId(), nextDate));
+        }
+        return true;
+    }
+
+    /**
+     * Recalculates stale entries up to and including {@code date}.
+     *
+     * @return whether any entries were stale, i.e. whether this wrote anything
+     */
+    @Transactional
+    public boolean refreshThrough(User user, LocalDate date) {
+        userWriteLocks.lockForTransaction(user.getId());
+        Optional<DebtWatermark> watermark = debtWatermarkRepository.findById(user.getId())
+                .filter(stale -> !stale.getStaleFrom().isAfter(date));
+        watermark.ifPresent(stale -> refresh(user, stale, date));
+        return watermark.isPresent();
+    }
+
+    /**
+     * Recalculates every stale entry, through the latest one stored.
+     *
+     * @return whether any entries were stale, i.e. whether this wrote anything
+     */
+    @Transactional
+    public boolean refreshAll(User user) {
+        userWriteLocks.lockForTransaction(user.getId());
+        Optional<DebtWatermark> watermark = debtWatermarkRepository.findById(user.getId());
+        watermark.ifPresent(stale -> sleepDataRepository.findTopByUser_IdOrderBySleepDateDesc(user.getId())
+                .ifPresentOrElse(latest -> refresh(user, stale, latest.getSleepDate()),
+                        () -> debtWatermarkRepository.delete(stale)));
+        return watermark.isPresent();
+    }
+
+    /**
+     * Recalculates the stale entries in the month the watermark points into.
+     *
+     * @return whether stale entries remain afterwards
+     */
+    @Transactional
+    public boolean refreshNextInterval(User user) {
+        userWriteLocks.lockForTransaction(user.getId());
+        return debtWatermarkRepository.findById(user.getId())
+                .map(watermark -> refresh(user, watermark,
+                        watermark.getStaleFrom().with(TemporalAdjusters.lastDayOfMonth())))
+                .orElse(false);
+    }
+
+    /**
+     * Whether stored entries may still change: the tail is stale, or events appended to the log
+     * are not projected yet.
+     */
+    @Transactional(readOnly = true)
+    public boolean isPending(User user) {
+        return debtWatermarkRepository.existsById(user.getId())
+                || sleepEventRepository.hasUnprojectedEvents(user.getId());
+    }
+
+    private boolean refresh(User user, DebtWatermark watermark, LocalDate through) {
+        Long userId = user.getId();
+        DebtState startingState = storedStateBefore(userId, watermark.getStaleFrom());
+        List<SleepData> staleEntries = sleepDataRepository.findByUser_IdAndSleepDateBetweenOrderBySleepDateAsc(
+                userId, watermark.getStaleFrom(), through);
+
+        sleepDataRepository.saveAll(recalculate(staleEntries, startingState));
+        if (!staleEntries.isEmpty()) {
+            // The entry before the first one was rewritten by whoever moved the watermark here
+            reportCache.evictWeek(userId, WeeklyRollupService.weekStart(staleEntries.get(0).getSleepDate()));
+        }
+
+        if (!sleepDataRepository.existsByUser_IdAndSleepDateGreaterThan(userId, through)) {
+            debtWatermarkRepository.delete(watermark);
+            return false;
+        }
+        watermark.setStaleFrom(through.plusDays(1));
+        return true;
+    }
+
+    private DebtState storedStateBefore(Long userId, LocalDate date) {
+        return sleepDataRepository.findTopByUser_IdAndSleepDateLessThanOrderBySleepDateDesc(userId, date)
+                .map(data -> new DebtState(data.getSleepDebt(), data.getSleepSurplus()))
+                .orElse(new DebtState(ZERO, ZERO));
+    }
+
+    private boolean isUnchanged(SleepData entry, DebtState state) {
+        // Values are persisted with two decimals, so compare at that precision
+        return toStoredScale(entry.getSleepDebt()).compareTo(toStoredScale(state.sleepDebt())) == 0
+                && toStoredScale(entry.getSleepSurplus()).compareTo(toStoredScale(state.sleepSurplus())) == 0;
+    }
+
+    private BigDecimal toStoredScale(BigDecimal value) {
+        return value.setScale(STORED_SCALE, RoundingMode.HALF_UP);
+    }
+}
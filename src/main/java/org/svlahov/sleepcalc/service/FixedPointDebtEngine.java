@@ -0,0 +1,119 @@
+package org.svlahov.sleepcalc.service;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Same rules as {@link BigDecimalDebtEngine}, computed on {@code long} values holding
+ * ten-millionths of an hour. Hours are stored with two decimals and the recovery factor
+ * never has more than five, so every intermediate value of the BigDecimal engine fits
+ * this scale exactly and both engines produce identical results.
+ */
+@Component
+@ConditionalOnProperty(name = "sleep.debt-engine", havingValue = "fixed-point")
+public class FixedPointDebtEngine implements DebtEngine {
+
+    static final int SCALE = 7;
+
+    private static final long ONE_HOUR = 10_000_000L;
+    private static final long TARGET_SLEEP = 75_000_000L;
+    private static final long MAX_EFFECTIVE_DEBT = 200_000_000L;
+
+    // The recovery factor is held in hundred-thousandths and the debt ratio in ten-thousandths,
+    // matching the scales BigDecimal ends up with for them
+    private static final long FACTOR_ONE = 100_000L;
+    private static final long MIN_RECOVERY_FACTOR = 30_000L;
+    private static final long RATIO_DIVISOR = MAX_EFFECTIVE_DEBT / 10_000L;
+    private static final long FACTOR_REDUCTION_PER_RATIO_UNIT = 7L; // (1 - 0.3) at factor scale
+    private static final long SLEEP_POWER_UNIT = 1_000L; // ten-thousandths of an hour
+
+    @Override
+    public DebtState next(DebtState previousState, BigDecimal hoursSlept) {
+        return fold(previousState, List.of(hoursSlept)).get(0);
+    }
+
+    @Override
+    public List<DebtState> fold(DebtState startingState, List<BigDecimal> hoursSlept) {
+        int nights = hoursSlept.size();
+        long[] hours = new long[nights];
+        for (int i = 0; i < nights; i++) {
+            hours[i] = toFixed(hoursSlept.get(i));
+        }
+
+        long[] debts = new long[nights];
+        long[] surpluses = new long[nights];
+        fold(toFixed(startingState.sleepDebt()), toFixed(startingState.sleepSurplus()), hours, debts, surpluses);
+
+        List<DebtState> states = new ArrayList<>(nights);
+        for (int i = 0; i < nights; i++) {
+            states.add(new DebtState(toDecimal(debts[i]), toDecimal(surpluses[i])));
+        }
+        return states;
+    }
+
+    /**
+     * Allocation-free core: writes the running debt and surplus after each night of
+     * {@code hours} into {@code debtOut} and {@code surplusOut}.
+     */
+    static void fold(long debt, long surplus, long[] hours, long[] debtOut, long[] surplusOut) {
+        for (int i = 0; i < hours.length; i++) {
+            long difference = hours[i] - TARGET_SLEEP;
+
+            if (difference > 0) {
+                if (debt <= 0) {
+                    surplus += difference;
+                } else {
+                    long recoveryFactor = recoveryFactor(debt);
+                    long debtPaid = Math.min(applyFactor(difference, recoveryFactor), debt);
+                    debt -= debtPaid;
+                    surplus += Math.max(difference - sleepPowerUsed(debtPaid, recoveryFactor), 0);
+                }
+            } else if (difference < 0) {
+                long shortfall = -difference;
+                long surplusToUse = Math.min(shortfall, surplus);
+                surplus -= surplusToUse;
+                debt += shortfall - surplusToUse;
+            }
+
+            debtOut[i] = debt;
+            surplusOut[i] = surplus;
+        }
+    }
+
+    private static long recoveryFactor(long debt) {
+        if (debt <= ONE_HOUR) {
+            return FACTOR_ONE;
+        }
+        long debtRatio = divideHalfUp(debt, RATIO_DIVISOR);
+        return Math.max(FACTOR_ONE - debtRatio * FACTOR_REDUCTION_PER_RATIO_UNIT, MIN_RECOVERY_FACTOR);
+    }
+
+    private static long applyFactor(long amount, long factor) {
+        return divideHalfUp(Math.multiplyExact(amount, factor), FACTOR_ONE);
+    }
+
+    private static long sleepPowerUsed(long debtPaid, long factor) {
+        // debtPaid / factor rounded to four decimals, as BigDecimal#divide(.., 4, HALF_UP) does
+        long powerInTenThousandths = divideHalfUp(Math.multiplyExact(debtPaid, FACTOR_ONE / SLEEP_POWER_UNIT),
+                factor);
+        return powerInTenThousandths * SLEEP_POWER_UNIT;
+    }
+
+    // Only called with a non-negative dividend and a positive divisor
+    private static long divideHalfUp(long dividend, long divisor) {
+        return (dividend + divisor / 2) / divisor;
+    }
+
+    static long toFixed(BigDecimal value) {
+        return value.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    static BigDecimal toDecimal(long value) {
+        return BigDecimal.valueOf(value, SCALE);
+    }
+}
@@ -0,0 +1,93 @@
+package org.svlahov.sleepcalc.service;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.svlahov.sleepcalc.dto.CumulativeSleep;
+import org.svlahov.sleepcalc.entity.SleepPrefixSum;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.SleepPrefixSumRepository;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.TreeSet;
+
+/**
+ * Maintains the {@link SleepPrefixSum} rows of each user alongside the entries they add up, so
+ * the totals of any date range are the difference of two rows. Writers call {@link #refresh} in
+ * the same transaction as the write.
+ * <p>
+ * The price is on the write side: changing a night shifts every later row of the user, so a
+ * write costs one UPDATE over the nights after it. Recording last night touches no other row;
+ * backdating a night by a year rewrites about 365. That is accepted because almost every write is
+ * for a recent night, and a backdated one already recalculates the debt of the same tail of
+ * {@code sleep_data}. Should backfills of old nights become common, per-month prefix sums would
+ * bound a write to the rest of its month plus one row per later month, at the cost of a range
+ * read adding up the months in between.
+ */
+@Service
+public class PrefixSumService {
+
+    private final SleepDataRepository sleepDataRepository;
+    private final SleepPrefixSumRepository sleepPrefixSumRepository;
+    private final UserWriteLocks userWriteLocks;
+
+    public PrefixSumService(SleepDataRepository sleepDataRepository,
+            SleepPrefixSumRepository sleepPrefixSumRepository, UserWriteLocks userWriteLocks) {
+        this.sleepDataRepository = sleepDataRepository;
+        this.sleepPrefixSumRepository = sleepPrefixSumRepository;
+        this.userWriteLocks = userWriteLocks;
+    }
+
+    /**
+     * Brings the row of each of {@code dates} in line with the stored entry for that date, and
+     * moves every later row by the difference in one statement. Dates are handled in ascending
+     * order, so each one starts from totals that already include the earlier ones.
+     */
+    @Transactional
+    public void refresh(User user, Collection<LocalDate> dates) {
+        Long userId = user.getId();
+        userWriteLocks.lockForTransaction(userId);
+        for (LocalDate date : new TreeSet<>(dates)) {
+            CumulativeSleep before = sleepPrefixSumRepository.findLatestAtOrBefore(userId, date.minusDays(1))
+                    .orElse(new CumulativeSleep(date, BigDecimal.ZERO, 0));
+            Optional<CumulativeSleep> current = sleepPrefixSumRepository.findLatestAtOrBefore(userId, date)
+                    .filter(row -> row.sleepDate().equals(date));
+            Optional<BigDecimal> hours = sleepDataRepository.findHoursSlept(userId, date);
+
+            // What this date used to add to the totals, and what it adds now
+            BigDecimal oldHours = current.map(row -> row.hours().subtract(before.hours())).orElse(BigDecimal.ZERO);
+            int oldNights = current.map(row -> row.nights() - before.nights()).orElse(0);
+            BigDecimal newHours = hours.orElse(BigDecimal.ZERO);
+            int newNights = hours.isPresent() ? 1 : 0;
+
+            if (hours.isEmpty()) {
+                current.ifPresent(row -> sleepPrefixSumRepository.deleteAt(userId, date));
+            } else if (current.isPresent()) {
+                sleepPrefixSumRepository.updateAt(userId, date, before.hours().add(newHours), before.nights() + 1);
+            } else {
+                sleepPrefixSumRepository.insertAt(userId, date, before.hours().add(newHours), before.nights() + 1);
+            }
+
+            BigDecimal hoursDelta = newHours.subtract(oldHours);
+            int nightsDelta = newNights - oldNights;
+            if (hoursDelta.signum() != 0 || nightsDelta != 0) {
+                sleepPrefixSumRepository.shiftAfter(userId, date, hoursDelta, nightsDelta);
+            }
+        }
+    }
+
+    /**
+     * Replaces all of the user's rows with ones computed from the stored entries, in two
+     * statements rather than by loading the history.
+     */
+    @Transactional
+    public void rebuild(User user) {
+        Long userId = user.getId();
+        userWriteLocks.lockForTransaction(userId);
+        sleepPrefixSumRepository.deleteAllForUser(userId);
+        sleepPrefixSumRepository.insertAllForUser(userId);
+    }
+}
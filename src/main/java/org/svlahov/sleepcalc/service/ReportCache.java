@@ -0,0 +1,108 @@
+package org.svlahov.sleepcalc.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.DigestUtils;
+import org.svlahov.sleepcalc.service.ReportService.TaggedReport;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Computed weekly and monthly reports, keyed by user and the Monday of the week the report is for.
+ * Each entry carries the ETag of its JSON form, so an unchanged report can be answered with
+ * {@code 304 Not Modified} without serializing it again.
+ * <p>
+ * Entries are evicted by {@link WeeklyRollupService} whenever a week they read from changes, and by
+ * {@link DebtRecalculationService} when the debt/surplus shown for a day changes.
+ */
+@Component
+public class ReportCache {
+
+    static final String CACHE_NAME = "reports";
+
+    // The weekly report compares with the week before, the monthly one spans eight weeks
+    private static final int WEEKS_READ_BY_WEEKLY = 2;
+    private static final int WEEKS_READ_BY_MONTHLY = 8;
+
+    enum Kind {
+        WEEKLY, MONTHLY
+    }
+
+    private record Key(Long userId, Kind kind, LocalDate weekStart) {
+    }
+
+    private final ObjectMapper objectMapper;
+    private final Cache<Key, TaggedReport<?>> cache;
+
+    public ReportCache(ObjectMapper objectMapper, MeterRegistry meterRegistry,
+            @Value("${sleep.report-cache.max-size:10000}") long maxSize,
+            @Value("${sleep.report-cache.ttl:10m}") Duration ttl) {
+        this.objectMapper = objectMapper;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> TaggedReport<T> get(Long userId, Kind kind, LocalDate weekStart, Supplier<T> loader) {
+        // Inside a transaction the report may include uncommitted writes, so it must not be shared
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return tag(loader.get());
+        }
+        return (TaggedReport<T>) cache.get(new Key(userId, kind, weekStart), key -> tag(loader.get()));
+    }
+
+    /**
+     * Drops every cached report that reads the week starting on {@code weekStart}: now, and again
+     * once the current transaction commits, so a report computed in between cannot stay cached.
+     */
+    public void evictWeek(Long userId, LocalDate weekStart) {
+        List<Key> keys = new ArrayList<>(WEEKS_READ_BY_WEEKLY + WEEKS_READ_BY_MONTHLY);
+        for (int i = 0; i < WEEKS_READ_BY_WEEKLY; i++) {
+            keys.add(new Key(userId, Kind.WEEKLY, weekStart.plusWeeks(i)));
+        }
+        for (int i = 0; i < WEEKS_READ_BY_MONTHLY; i++) {
+            keys.add(new Key(userId, Kind.MONTHLY, weekStart.plusWeeks(i)));
+        }
+        evict(() -> cache.invalidateAll(keys));
+    }
+
+    public void evictUser(Long userId) {
+        evict(() -> cache.asMap().keySet().removeIf(key -> key.userId().equals(userId)));
+    }
+
+    private void evict(Runnable eviction) {
+        eviction.run();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    eviction.run();
+                }
+            });
+        }
+    }
+
+    private <T> TaggedReport<T> tag(T report) {
+        try {
+            return new TaggedReport<>(report, DigestUtils.md5DigestAsHex(objectMapper.writeValueAsBytes(report)));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize report", e);
+        }
+    }
+}
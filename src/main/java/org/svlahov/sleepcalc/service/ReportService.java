@@ -1,8 +1,12 @@
 package org.svlahov.sleepcalc.service;
 
 import org.svlahov.sleepcalc.dto.MonthlyReportDTO;
+import org.svlahov.sleepcalc.dto.RangeReportDTO;
 import org.svlahov.sleepcalc.dto.WeeklyReportDTO;
+import org.svlahov.sleepcalc.dto.YearReportDTO;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.time.LocalDate;
 
 public interface ReportService {
@@ -10,5 +14,33 @@ public interface ReportService {
 
     MonthlyReportDTO getMonthlyReport(LocalDate date);
 
-    String exportReport(LocalDate from, LocalDate to);
+    // Same reports, together with an ETag of their JSON representation
+    TaggedReport<WeeklyReportDTO> getTaggedWeeklyReport(LocalDate date);
+
+    TaggedReport<MonthlyReportDTO> getTaggedMonthlyReport(LocalDate date);
+
+    /**
+     * Totals for {@code from} through {@code to}, overall and per {@code bucket} ("day", "week" or
+     * "month"). Weeks and months are read from the per-user prefix sums, two lookups per range.
+     */
+    RangeReportDTO getRangeReport(LocalDate from, LocalDate to, String bucket);
+
+    /**
+     * Hours, debt and surplus for each of the 365 days ending with {@code to}.
+     */
+    YearReportDTO getYearReport(LocalDate to);
+
+    /**
+     * Brings the range up to date and returns a writer for it, so that failures surface before any
+     * of the response is sent. The rows are only read while the writer runs.
+     */
+    CsvExport exportReport(LocalDate from, LocalDate to);
+
+    record TaggedReport<T>(T report, String etag) {
+    }
+
+    @FunctionalInterface
+    interface CsvExport {
+        void writeTo(OutputStream out) throws IOException;
+    }
 }
@@ -3,92 +3,153 @@ package org.svlahov.sleepcalc.service;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.svlahov.sleepcalc.config.AuthenticatedUser;
+import org.svlahov.sleepcalc.dto.CumulativeSleep;
+import org.svlahov.sleepcalc.dto.DailyDelta;
 import org.svlahov.sleepcalc.dto.DailyReportItem;
 import org.svlahov.sleepcalc.dto.MonthlyReportDTO;
+import org.svlahov.sleepcalc.dto.RangeReportDTO;
+import org.svlahov.sleepcalc.dto.RangeTotalsItem;
+import org.svlahov.sleepcalc.dto.SleepDataRow;
+import org.svlahov.sleepcalc.dto.WeekTotals;
 import org.svlahov.sleepcalc.dto.WeeklyReportDTO;
 import org.svlahov.sleepcalc.dto.WeeklyReportItem;
-import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.dto.YearReportDTO;
 import org.svlahov.sleepcalc.entity.User;
 import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.SleepPrefixSumRepository;
 import org.svlahov.sleepcalc.repository.UserRepository;
+import org.svlahov.sleepcalc.repository.WeeklySleepRollupRepository;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
 import java.time.DayOfWeek;
 import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAdjusters;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Locale;
+import java.util.stream.Stream;
 
 @Service
 public class ReportServiceImpl implements ReportService {
 
+    private static final int DAYS_PER_WEEK = 7;
+    private static final int WEEKS_PER_PERIOD = 4;
+    private static final int MAX_RANGE_BUCKETS = 366;
+    private static final int DAYS_PER_YEAR_REPORT = 365;
+    private static final BigDecimal TARGET_SLEEP_HOURS = new BigDecimal("7.5");
+
+    private enum RangeBucket {
+        DAY, WEEK, MONTH
+    }
+
+    private record Period(LocalDate from, LocalDate to) {
+    }
+
     private final SleepDataRepository sleepDataRepository;
     private final UserRepository userRepository;
+    private final DebtRecalculationService debtRecalculationService;
+    private final WeeklySleepRollupRepository weeklySleepRollupRepository;
+    private final SleepPrefixSumRepository sleepPrefixSumRepository;
+    private final ReportCache reportCache;
+    private final UserWriteLocks userWriteLocks;
+    private final TransactionTemplate readOnlyTransaction;
+    // Cached reports are served with an ETag until a write evicts them, so they are built on the
+    // primary: a report read from a lagging replica could miss a write whose eviction already ran.
+    // Reads right after a refresh use it too.
+    private final TransactionTemplate cacheLoadTransaction;
 
-    public ReportServiceImpl(SleepDataRepository sleepDataRepository, UserRepository userRepository) {
+    public ReportServiceImpl(SleepDataRepository sleepDataRepository, UserRepository userRepository,
+            DebtRecalculationService debtRecalculationService,
+            WeeklySleepRollupRepository weeklySleepRollupRepository,
+            SleepPrefixSumRepository sleepPrefixSumRepository, ReportCache reportCache,
+            UserWriteLocks userWriteLocks, PlatformTransactionManager transactionManager) {
         this.sleepDataRepository = sleepDataRepository;
         this.userRepository = userRepository;
+        this.debtRecalculationService = debtRecalculationService;
+        this.weeklySleepRollupRepository = weeklySleepRollupRepository;
+        this.sleepPrefixSumRepository = sleepPrefixSumRepository;
+        this.reportCache = reportCache;
+        this.userWriteLocks = userWriteLocks;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.cacheLoadTransaction = new TransactionTemplate(transactionManager);
     }
 
     @Override
     public WeeklyReportDTO getWeeklyReport(LocalDate date) {
+        return getTaggedWeeklyReport(date).report();
+    }
+
+    @Override
+    public MonthlyReportDTO getMonthlyReport(LocalDate date) {
+        return getTaggedMonthlyReport(date).report();
+    }
+
+    @Override
+    public TaggedReport<WeeklyReportDTO> getTaggedWeeklyReport(LocalDate date) {
         User currentUser = getCurrentUser();
-        LocalDate startOfWeek = date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
-        LocalDate endOfWeek = date.with(TemporalAdjusters.nextOrSame(DayOfWeek.SUNDAY));
+        LocalDate startOfWeek = WeeklyRollupService.weekStart(date);
+        // The daily debt/surplus changes are read from stored entries, so stale ones are brought up
+        // to date first. Not inside the loader: the refresh evicts this very week from the cache.
+        refreshThrough(currentUser, startOfWeek.plusDays(DAYS_PER_WEEK - 1));
+        return reportCache.get(currentUser.getId(), ReportCache.Kind.WEEKLY, startOfWeek,
+                () -> cacheLoadTransaction.execute(status -> buildWeeklyReport(currentUser, startOfWeek)));
+    }
 
-        List<SleepData> currentWeekData = sleepDataRepository.findByUser_UsernameAndSleepDateBetween(
-                currentUser.getUsername(), startOfWeek, endOfWeek);
+    @Override
+    public TaggedReport<MonthlyReportDTO> getTaggedMonthlyReport(LocalDate date) {
+        User currentUser = getCurrentUser();
+        LocalDate startOfCurrentWeek = WeeklyRollupService.weekStart(date);
+        return reportCache.get(currentUser.getId(), ReportCache.Kind.MONTHLY, startOfCurrentWeek,
+                () -> cacheLoadTransaction.execute(status -> buildMonthlyReport(currentUser, startOfCurrentWeek)));
+    }
 
-        // Calculate previous week for trend
+    private WeeklyReportDTO buildWeeklyReport(User currentUser, LocalDate startOfWeek) {
+        LocalDate endOfWeek = startOfWeek.plusDays(DAYS_PER_WEEK - 1);
+        // The previous week is only needed for the trend
         LocalDate startOfPrevWeek = startOfWeek.minusWeeks(1);
-        LocalDate endOfPrevWeek = endOfWeek.minusWeeks(1);
-        List<SleepData> prevWeekData = sleepDataRepository.findByUser_UsernameAndSleepDateBetween(
-                currentUser.getUsername(), startOfPrevWeek, endOfPrevWeek);
 
-        double currentWeekNet = calculateNetSleepScore(currentWeekData);
-        double prevWeekNet = calculateNetSleepScore(prevWeekData);
+        WeekTotals[] weeks = loadWeeks(currentUser, startOfPrevWeek, 2);
+        WeekTotals prevWeek = weeks[0];
+        WeekTotals currentWeek = weeks[1];
 
+        // The trend compares the total hours slept in each week
+        double currentWeekNet = currentWeek != null ? currentWeek.hoursSum().doubleValue() : 0;
+        double prevWeekNet = prevWeek != null ? prevWeek.hoursSum().doubleValue() : 0;
         double percentageChange = calculatePercentageChange(currentWeekNet, prevWeekNet);
 
-        // Build daily items
-        Map<LocalDate, SleepData> dataMap = currentWeekData.stream()
-                .collect(Collectors.toMap(SleepData::getSleepDate, data -> data));
-
-        List<DailyReportItem> dailyItems = new ArrayList<>();
-        LocalDate current = startOfWeek;
-        while (!current.isAfter(endOfWeek)) {
-            SleepData data = dataMap.get(current);
-            if (data != null) {
-                // Calculate daily change (this is a simplification, ideally we'd track daily
-                // delta)
-                // For now, we'll just show the absolute values or 0 if missing
-                // Note: The UI shows a bar chart, likely just hours slept or net score.
-                // The DTO has debtChange/surplusChange. Let's use the raw values for now.
-                // Actually, to show "Weekly Sleep Debt/Surplus", we need the cumulative change?
-                // Or just the sum of hours vs target?
-                // The image shows "+5h 30m" which implies a sum of deltas.
-                // Let's assume the daily items are for the chart.
-                dailyItems.add(new DailyReportItem(
-                        current,
-                        data.getHoursSlept().doubleValue(),
-                        0, // Placeholder, logic for daily delta is complex without history
-                        0 // Placeholder
-                ));
-            } else {
-                dailyItems.add(new DailyReportItem(current, 0, 0, 0));
+        // The chart still needs the individual nights, but only for this week; the debt/surplus
+        // change of each is computed by the same query against the entry stored before it
+        DailyReportItem[] days = new DailyReportItem[DAYS_PER_WEEK];
+        if (currentWeek != null) {
+            for (DailyDelta delta : sleepDataRepository.findDailyDeltas(currentUser.getId(), startOfWeek,
+                    endOfWeek)) {
+                int day = (int) ChronoUnit.DAYS.between(startOfWeek, delta.sleepDate());
+                days[day] = new DailyReportItem(delta.sleepDate(), delta.hoursSlept().doubleValue(),
+                        delta.debtChange().doubleValue(), delta.surplusChange().doubleValue());
             }
-            current = current.plusDays(1);
         }
 
-        // Calculate net debt/surplus for the week
-        // This is the sum of (HoursSlept - Target) for each day
-        // Target is 7.5
-        double targetHours = 7.5;
-        double netSurplus = currentWeekData.stream()
-                .mapToDouble(d -> d.getHoursSlept().doubleValue() - targetHours)
-                .sum();
+        // Days without an entry show as 0
+        List<DailyReportItem> dailyItems = new ArrayList<>(DAYS_PER_WEEK);
+        for (int day = 0; day < DAYS_PER_WEEK; day++) {
+            dailyItems.add(days[day] != null ? days[day] : new DailyReportItem(startOfWeek.plusDays(day), 0, 0, 0));
+        }
 
+        // Net debt/surplus for the week is the sum of (HoursSlept - Target) for each day
+        double netSurplus = currentWeek != null ? currentWeek.deviationSum().doubleValue() : 0;
         double netDebt = 0;
         if (netSurplus < 0) {
             netDebt = Math.abs(netSurplus);
@@ -98,66 +159,191 @@ public class ReportServiceImpl implements ReportService {
         return new WeeklyReportDTO(netDebt, netSurplus, percentageChange, dailyItems);
     }
 
-    @Override
-    public MonthlyReportDTO getMonthlyReport(LocalDate date) {
-        User currentUser = getCurrentUser();
-        // "Last 4 Weeks" logic
-        // End date is the given date (or end of current week?)
-        // Let's assume "Monthly" means the 4 weeks ending on the current week's Sunday.
-        LocalDate endOfCurrentWeek = date.with(TemporalAdjusters.nextOrSame(DayOfWeek.SUNDAY));
-        LocalDate startOfPeriod = endOfCurrentWeek.minusWeeks(4).plusDays(1); // 4 weeks back
-
-        List<SleepData> periodData = sleepDataRepository.findByUser_UsernameAndSleepDateBetween(
-                currentUser.getUsername(), startOfPeriod, endOfCurrentWeek);
-
-        // Previous 4 weeks for trend
-        LocalDate endOfPrevPeriod = startOfPeriod.minusDays(1);
-        LocalDate startOfPrevPeriod = endOfPrevPeriod.minusWeeks(4).plusDays(1);
-        List<SleepData> prevPeriodData = sleepDataRepository.findByUser_UsernameAndSleepDateBetween(
-                currentUser.getUsername(), startOfPrevPeriod, endOfPrevPeriod);
-
-        double currentAvg = calculateAverageSleep(periodData);
-        double prevAvg = calculateAverageSleep(prevPeriodData);
+    private MonthlyReportDTO buildMonthlyReport(User currentUser, LocalDate startOfCurrentWeek) {
+        // "Monthly" means the 4 weeks ending with the current week, compared with the 4 weeks before
+        LocalDate startOfPrevPeriod = startOfCurrentWeek.minusWeeks(2L * WEEKS_PER_PERIOD - 1);
+
+        WeekTotals[] weeks = loadWeeks(currentUser, startOfPrevPeriod, 2 * WEEKS_PER_PERIOD);
+
+        double prevAvg = averageSleep(weeks, 0, WEEKS_PER_PERIOD);
+        double currentAvg = averageSleep(weeks, WEEKS_PER_PERIOD, 2 * WEEKS_PER_PERIOD);
         double percentageChange = calculatePercentageChange(currentAvg, prevAvg);
 
-        List<WeeklyReportItem> weeklyItems = new ArrayList<>();
-        // Group by week
-        // We need 4 weeks: Week 1, Week 2, Week 3, Week 4
         // Week 1 is the oldest
-        for (int i = 0; i < 4; i++) {
-            LocalDate weekStart = startOfPeriod.plusWeeks(i);
-            LocalDate weekEnd = weekStart.plusDays(6);
+        List<WeeklyReportItem> weeklyItems = new ArrayList<>(WEEKS_PER_PERIOD);
+        for (int i = 0; i < WEEKS_PER_PERIOD; i++) {
+            int week = WEEKS_PER_PERIOD + i;
+            weeklyItems.add(new WeeklyReportItem("Week " + (i + 1), averageSleep(weeks, week, week + 1)));
+        }
 
-            List<SleepData> weekData = periodData.stream()
-                    .filter(d -> !d.getSleepDate().isBefore(weekStart) && !d.getSleepDate().isAfter(weekEnd))
-                    .collect(Collectors.toList());
+        return new MonthlyReportDTO(currentAvg, percentageChange, weeklyItems);
+    }
 
-            double weekAvg = calculateAverageSleep(weekData);
-            weeklyItems.add(new WeeklyReportItem("Week " + (i + 1), weekAvg));
+    @Override
+    public RangeReportDTO getRangeReport(LocalDate from, LocalDate to, String bucket) {
+        if (from.isAfter(to)) {
+            throw new IllegalArgumentException("The start of the range must not be after its end.");
         }
+        RangeBucket rangeBucket = parseBucket(bucket);
+        List<Period> periods = splitRange(from, to, rangeBucket);
+        Long userId = getCurrentUser().getId();
 
-        return new MonthlyReportDTO(currentAvg, percentageChange, weeklyItems);
+        // All lookups see the same snapshot, so the buckets add up to the total
+        return readOnlyTransaction.execute(status -> {
+            List<RangeTotalsItem> buckets = new ArrayList<>(periods.size());
+            if (rangeBucket == RangeBucket.DAY) {
+                // One bucket per night: the nights themselves are cheaper than a lookup per day
+                BigDecimal[] hours = new BigDecimal[periods.size()];
+                for (SleepDataRow row : sleepDataRepository.findRowsBetween(userId, from, to)) {
+                    hours[(int) ChronoUnit.DAYS.between(from, row.sleepDate())] = row.hoursSlept();
+                }
+                BigDecimal totalHours = BigDecimal.ZERO;
+                int totalNights = 0;
+                for (int day = 0; day < hours.length; day++) {
+                    int nights = hours[day] != null ? 1 : 0;
+                    BigDecimal dayHours = hours[day] != null ? hours[day] : BigDecimal.ZERO;
+                    buckets.add(rangeTotals(periods.get(day).from(), periods.get(day).to(), nights, dayHours));
+                    totalHours = totalHours.add(dayHours);
+                    totalNights += nights;
+                }
+                return new RangeReportDTO(rangeTotals(from, to, totalNights, totalHours), buckets);
+            }
+
+            // Each bucket is the difference of the running totals at its two ends
+            CumulativeSleep first = cumulativeThrough(userId, from.minusDays(1));
+            CumulativeSleep previous = first;
+            for (Period period : periods) {
+                CumulativeSleep current = cumulativeThrough(userId, period.to());
+                buckets.add(rangeTotals(period.from(), period.to(), current.nights() - previous.nights(),
+                        current.hours().subtract(previous.hours())));
+                previous = current;
+            }
+            return new RangeReportDTO(rangeTotals(from, to, previous.nights() - first.nights(),
+                    previous.hours().subtract(first.hours())), buckets);
+        });
+    }
+
+    private RangeBucket parseBucket(String bucket) {
+        try {
+            return RangeBucket.valueOf(bucket.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Bucket must be one of day, week or month.");
+        }
+    }
+
+    private List<Period> splitRange(LocalDate from, LocalDate to, RangeBucket bucket) {
+        List<Period> periods = new ArrayList<>();
+        LocalDate start = from;
+        while (!start.isAfter(to)) {
+            LocalDate end = switch (bucket) {
+                case DAY -> start;
+                case WEEK -> start.with(TemporalAdjusters.nextOrSame(DayOfWeek.SUNDAY));
+                case MONTH -> start.with(TemporalAdjusters.lastDayOfMonth());
+            };
+            if (end.isAfter(to)) {
+                end = to;
+            }
+            periods.add(new Period(start, end));
+            if (periods.size() > MAX_RANGE_BUCKETS) {
+                throw new IllegalArgumentException(
+                        "The range is limited to " + MAX_RANGE_BUCKETS + " buckets; use a larger bucket.");
+            }
+            start = end.plusDays(1);
+        }
+        return periods;
+    }
+
+    private CumulativeSleep cumulativeThrough(Long userId, LocalDate date) {
+        return sleepPrefixSumRepository.findLatestAtOrBefore(userId, date)
+                .orElse(new CumulativeSleep(date, BigDecimal.ZERO, 0));
+    }
+
+    private RangeTotalsItem rangeTotals(LocalDate from, LocalDate to, int nights, BigDecimal hours) {
+        double averageHours = nights == 0 ? 0 : hours.doubleValue() / nights;
+        BigDecimal deviation = hours.subtract(TARGET_SLEEP_HOURS.multiply(BigDecimal.valueOf(nights)));
+        return new RangeTotalsItem(from, to, nights, hours.doubleValue(), averageHours, deviation.doubleValue());
     }
 
     @Override
-    public String exportReport(LocalDate from, LocalDate to) {
+    public YearReportDTO getYearReport(LocalDate to) {
         User currentUser = getCurrentUser();
-        List<SleepData> data = sleepDataRepository.findByUser_UsernameAndSleepDateBetween(
-                currentUser.getUsername(), from, to);
-
-        StringBuilder csv = new StringBuilder();
-        csv.append("Date,Hours Slept,Sleep Debt,Sleep Surplus\n");
-        for (SleepData entry : data) {
-            csv.append(entry.getSleepDate()).append(",")
-                    .append(entry.getHoursSlept()).append(",")
-                    .append(entry.getSleepDebt()).append(",")
-                    .append(entry.getSleepSurplus()).append("\n");
+        Long userId = currentUser.getId();
+        LocalDate from = to.minusDays(DAYS_PER_YEAR_REPORT - 1);
+        // Debt and surplus are included, so stale entries are brought up to date first
+        boolean refreshed = refreshThrough(currentUser, to);
+
+        int[] hours = new int[DAYS_PER_YEAR_REPORT];
+        int[] debt = new int[DAYS_PER_YEAR_REPORT];
+        int[] surplus = new int[DAYS_PER_YEAR_REPORT];
+        Arrays.fill(hours, YearReportDTO.MISSING);
+        Arrays.fill(debt, YearReportDTO.MISSING);
+        Arrays.fill(surplus, YearReportDTO.MISSING);
+        List<SleepDataRow> rows = readTransaction(refreshed).execute(
+                status -> sleepDataRepository.findRowsBetween(userId, from, to));
+        for (SleepDataRow row : rows) {
+            int day = (int) ChronoUnit.DAYS.between(from, row.sleepDate());
+            hours[day] = toCentiHours(row.hoursSlept());
+            debt[day] = toCentiHours(row.sleepDebt());
+            surplus[day] = toCentiHours(row.sleepSurplus());
+        }
+        return new YearReportDTO(from, hours, debt, surplus);
+    }
+
+    private static int toCentiHours(BigDecimal hours) {
+        return hours.movePointRight(2).setScale(0, RoundingMode.HALF_UP).intValueExact();
+    }
+
+    @Override
+    public CsvExport exportReport(LocalDate from, LocalDate to) {
+        User currentUser = getCurrentUser();
+        Long userId = currentUser.getId();
+        // The export includes debt and surplus, so stale entries must be brought up to date first
+        boolean refreshed = refreshThrough(currentUser, to);
+        TransactionTemplate exportTransaction = readTransaction(refreshed);
+
+        return out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            writer.write("Date,Hours Slept,Sleep Debt,Sleep Surplus\n");
+            try {
+                // The cursor only stays open inside a transaction
+                exportTransaction.executeWithoutResult(status -> {
+                    try (Stream<SleepDataRow> rows = sleepDataRepository.streamExportRows(userId, from, to)) {
+                        rows.forEach(row -> writeRow(writer, row));
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                // Usually the client went away
+                throw e.getCause();
+            }
+            writer.flush();
+        };
+    }
+
+    // A replica may not have the entries a refresh just wrote yet, so those are read on the primary
+    // The user's stripe is taken before the refresh's transaction, so waiting for it holds no connection
+    private boolean refreshThrough(User user, LocalDate date) {
+        return userWriteLocks.callLocked(user.getId(), () -> debtRecalculationService.refreshThrough(user, date));
+    }
+
+    private TransactionTemplate readTransaction(boolean refreshed) {
+        return refreshed ? cacheLoadTransaction : readOnlyTransaction;
+    }
+
+    private void writeRow(Writer writer, SleepDataRow row) {
+        try {
+            writer.write(row.sleepDate() + "," + row.hoursSlept() + "," + row.sleepDebt() + ","
+                    + row.sleepSurplus() + "\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return csv.toString();
     }
 
     private User getCurrentUser() {
         Object principal = SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        if (principal instanceof AuthenticatedUser authenticatedUser) {
+            // Only the id is needed for queries, so a reference avoids loading the user row
+            return userRepository.getReferenceById(authenticatedUser.getId());
+        }
         String username;
         if (principal instanceof UserDetails) {
             username = ((UserDetails) principal).getUsername();
@@ -168,23 +354,27 @@ public class ReportServiceImpl implements ReportService {
                 .orElseThrow(() -> new IllegalStateException("Authenticated user not found"));
     }
 
-    private double calculateNetSleepScore(List<SleepData> data) {
-        // Net score could be sum of (Hours - Target)
-        // Or we can use the debt/surplus logic.
-        // Let's use sum of hours for simplicity in trend calculation
-        return data.stream()
-                .mapToDouble(d -> d.getHoursSlept().doubleValue())
-                .sum();
+    // Totals for weekCount consecutive weeks from firstWeekStart; weeks without entries are null
+    private WeekTotals[] loadWeeks(User user, LocalDate firstWeekStart, int weekCount) {
+        WeekTotals[] weeks = new WeekTotals[weekCount];
+        for (WeekTotals totals : weeklySleepRollupRepository.findWeekTotals(
+                user.getId(), firstWeekStart, firstWeekStart.plusWeeks(weekCount - 1))) {
+            weeks[(int) ChronoUnit.WEEKS.between(firstWeekStart, totals.weekStart())] = totals;
+        }
+        return weeks;
     }
 
-    private double calculateAverageSleep(List<SleepData> data) {
-        if (data.isEmpty())
-            return 0;
-        double total = data.stream()
-                .mapToDouble(d -> d.getHoursSlept().doubleValue())
-                .sum();
-        return total / data.size(); // Average per entry? Or per day?
-        // Ideally per day, but if days are missing, average of recorded days is safer.
+    // Average per recorded night, as missing days are not counted as zero sleep
+    private double averageSleep(WeekTotals[] weeks, int from, int to) {
+        double total = 0;
+        int nights = 0;
+        for (int i = from; i < to; i++) {
+            if (weeks[i] != null) {
+                total += weeks[i].hoursSum().doubleValue();
+                nights += weeks[i].nights();
+            }
+        }
+        return nights == 0 ? 0 : total / nights;
     }
 
     private double calculatePercentageChange(double current, double previous) {
@@ -0,0 +1,105 @@
+package org.svlahov.sleepcalc.service;
+
+import org.svlahov.sleepcalc.dto.ImportedNight;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * Reads nights from CSV in the layout {@link ReportService#exportReport} writes: a
+ * {@code Date,Hours Slept,...} header, then one night per line. Only the first two columns are
+ * used, since debt and surplus are recalculated. Lines are parsed one at a time as the iterator
+ * is consumed, and the earliest and latest date seen are kept for the caller. A file with more
+ * than {@code maxNights} nights is rejected at the first night past the limit.
+ */
+class SleepCsvReader implements Iterator<ImportedNight> {
+
+    private final BufferedReader reader;
+    private final Function<String, BigDecimal> hoursParser;
+    private final int maxNights;
+    private ImportedNight next;
+    private int lineNumber;
+    private int nights;
+    private LocalDate earliestDate;
+    private LocalDate latestDate;
+
+    SleepCsvReader(BufferedReader reader, Function<String, BigDecimal> hoursParser, int maxNights) {
+        this.reader = reader;
+        this.hoursParser = hoursParser;
+        this.maxNights = maxNights;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = readNext();
+        }
+        return next != null;
+    }
+
+    @Override
+    public ImportedNight next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ImportedNight night = next;
+        next = null;
+        return night;
+    }
+
+    LocalDate earliestDate() {
+        return earliestDate;
+    }
+
+    LocalDate latestDate() {
+        return latestDate;
+    }
+
+    private ImportedNight readNext() {
+        String line;
+        try {
+            do {
+                line = reader.readLine();
+                lineNumber++;
+                if (line == null) {
+                    return null;
+                }
+            } while (line.isBlank() || (lineNumber == 1 && line.startsWith("Date,")));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        if (nights == maxNights) {
+            throw new IllegalArgumentException("The file contains more than " + maxNights
+                    + " nights; split it into several imports.");
+        }
+        String[] columns = line.split(",", 3);
+        if (columns.length < 2) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": expected a date and the hours slept.");
+        }
+        ImportedNight night;
+        try {
+            night = new ImportedNight(LocalDate.parse(columns[0].trim()), hoursParser.apply(columns[1].trim()));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": invalid date.");
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage());
+        }
+
+        nights++;
+        if (earliestDate == null || night.sleepDate().isBefore(earliestDate)) {
+            earliestDate = night.sleepDate();
+        }
+        if (latestDate == null || night.sleepDate().isAfter(latestDate)) {
+            latestDate = night.sleepDate();
+        }
+        return night;
+    }
+}
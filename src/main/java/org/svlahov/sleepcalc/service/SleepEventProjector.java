@@ -0,0 +1,324 @@
+package org.svlahov.sleepcalc.service;
+
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.svlahov.sleepcalc.dto.ImportedNight;
+import org.svlahov.sleepcalc.dto.SleepEventRow;
+import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.entity.SleepEvent;
+import org.svlahov.sleepcalc.entity.SleepProjectionCheckpoint;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.DebtWatermarkRepository;
+import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.SleepEventRepository;
+import org.svlahov.sleepcalc.repository.SleepProjectionCheckpointRepository;
+import org.svlahov.sleepcalc.service.DebtEngine.DebtState;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Keeps {@link SleepData} the projection of each user's {@link SleepEvent} log.
+ * <p>
+ * A write only appends its events; {@link DebtRecalculationQueue} applies them after it commits,
+ * so until then the write is reported as pending. The user's {@link SleepProjectionCheckpoint}
+ * records the last event applied: {@link #catchUpNextBatch} applies a batch of what was appended
+ * after it, and {@link #rebuild} replays the whole log from scratch. Imports still apply their
+ * hours in the same transaction.
+ */
+@Service
+public class SleepEventProjector {
+
+    private static final int CATCH_UP_BATCH_SIZE = 500;
+    private static final BigDecimal ZERO = BigDecimal.ZERO;
+
+    private final SleepEventRepository sleepEventRepository;
+    private final SleepProjectionCheckpointRepository checkpointRepository;
+    private final SleepDataRepository sleepDataRepository;
+    private final DebtWatermarkRepository debtWatermarkRepository;
+    private final DebtRecalculationService debtRecalculationService;
+    private final DebtEngine debtEngine;
+    private final UserWriteLocks userWriteLocks;
+    private final WeeklyRollupService weeklyRollupService;
+    private final PrefixSumService prefixSumService;
+
+    public SleepEventProjector(SleepEventRepository sleepEventRepository,
+            SleepProjectionCheckpointRepository checkpointRepository, SleepDataRepository sleepDataRepository,
+            DebtWatermarkRepository debtWatermarkRepository, DebtRecalculationService debtRecalculationService,
+            DebtEngine debtEngine, UserWriteLocks userWriteLocks, WeeklyRollupService weeklyRollupService,
+            PrefixSumService prefixSumService) {
+        this.sleepEventRepository = sleepEventRepository;
+        this.checkpointRepository = checkpointRepository;
+        this.sleepDataRepository = sleepDataRepository;
+        this.debtWatermarkRepository = debtWatermarkRepository;
+        this.debtRecalculationService = debtRecalculationService;
+        this.debtEngine = debtEngine;
+        this.userWriteLocks = userWriteLocks;
+        this.weeklyRollupService = weeklyRollupService;
+        this.prefixSumService = prefixSumService;
+    }
+
+    /**
+     * Appends a {@code RECORDED} or {@code EDITED} event per night, in date order. The nights are
+     * applied later by {@link #catchUpNextBatch}.
+     */
+    @Transactional
+    public void appendNights(User user, NavigableMap<LocalDate, BigDecimal> hoursByDate) {
+        // Another device may be writing the same log; hold it until this transaction commits
+        userWriteLocks.lockForTransaction(user.getId());
+        sleepEventRepository.appendNights(user.getId(), hoursByDate, now());
+    }
+
+    /**
+     * Appends a {@code DELETED} event for the night. Its entry is removed later by
+     * {@link #catchUpNextBatch}.
+     *
+     * @throws IllegalArgumentException if the log holds no hours for {@code date}
+     */
+    @Transactional
+    public void appendDeletion(User user, LocalDate date) {
+        userWriteLocks.lockForTransaction(user.getId());
+        if (!sleepEventRepository.appendDeletion(user.getId(), date, now())) {
+            throw new IllegalArgumentException("No sleep entry is recorded for " + date + ".");
+        }
+    }
+
+    /**
+     * Appends and stores the hours of a CSV import through {@link SleepDataRepository#importNights}.
+     * Debt, surplus and the derived tables are left to the caller, which recalculates them from the
+     * earliest imported night.
+     */
+    @Transactional
+    public void importNights(User user, Iterator<ImportedNight> nights) {
+        Long userId = user.getId();
+        userWriteLocks.lockForTransaction(userId);
+        catchUp(user);
+
+        sleepDataRepository.importNights(userId, lastSequenceNumber(userId), nights);
+        moveCheckpoint(userId, lastSequenceNumber(userId));
+    }
+
+    /**
+     * Applies all of the user's events after its checkpoint in one transaction.
+     * {@link DebtRecalculationQueue} calls {@link #catchUpNextBatch} instead, to commit as it goes.
+     *
+     * @return the number of events applied
+     */
+    @Transactional
+    public int catchUp(User user) {
+        int applied = 0;
+        int batch;
+        while ((batch = catchUpNextBatch(user)) > 0) {
+            applied += batch;
+        }
+        return applied;
+    }
+
+    /**
+     * Applies up to one batch of the user's events after its checkpoint and moves the checkpoint
+     * past them. Only the latest event of a date decides the night, so the batch is reduced to one
+     * change per date and the chain across the dates it spans is computed once.
+     *
+     * @return the number of events applied, 0 once the projection has caught up
+     */
+    @Transactional
+    public int catchUpNextBatch(User user) {
+        Long userId = user.getId();
+        userWriteLocks.lockForTransaction(userId);
+        long checkpoint = checkpointRepository.findById(userId)
+                .map(SleepProjectionCheckpoint::getSequenceNumber)
+                .orElse(0L);
+
+        List<SleepEventRow> events = sleepEventRepository.findAfter(userId, checkpoint,
+                Limit.of(CATCH_UP_BATCH_SIZE));
+        if (events.isEmpty()) {
+            return 0;
+        }
+        TreeMap<LocalDate, SleepEventRow> latestByDate = new TreeMap<>();
+        for (SleepEventRow event : events) {
+            latestByDate.put(event.sleepDate(), event);
+        }
+
+        if (latestByDate.size() == 1) {
+            SleepEventRow event = latestByDate.firstEntry().getValue();
+            if (event.eventType() == SleepEvent.Type.DELETED) {
+                applyDeleted(user, event.sleepDate());
+            } else {
+                applyRecorded(user, event.sleepDate(), event.hoursSlept());
+            }
+        } else {
+            applyNights(user, latestByDate);
+        }
+
+        moveCheckpoint(userId, events.get(events.size() - 1).sequenceNumber());
+        return events.size();
+    }
+
+    /**
+     * Replaces the user's entries with ones replayed from the whole log, computing the chain in a
+     * single pass, and rebuilds the derived tables from them.
+     *
+     * @return the number of events replayed
+     */
+    @Transactional
+    public int rebuild(User user) {
+        Long userId = user.getId();
+        userWriteLocks.lockForTransaction(userId);
+
+        // 1. Fold the log into the surviving nights
+        TreeMap<LocalDate, BigDecimal> nights = new TreeMap<>();
+        long lastSequenceNumber = 0;
+        int replayed = 0;
+        try (Stream<SleepEventRow> events = sleepEventRepository.streamAll(userId)) {
+            Iterator<SleepEventRow> iterator = events.iterator();
+            while (iterator.hasNext()) {
+                SleepEventRow event = iterator.next();
+                if (event.eventType() == SleepEvent.Type.DELETED) {
+                    nights.remove(event.sleepDate());
+                } else {
+                    nights.put(event.sleepDate(), event.hoursSlept());
+                }
+                lastSequenceNumber = event.sequenceNumber();
+                replayed++;
+            }
+        }
+
+        // 2. Compute the chain from the first night; nothing is left stale
+        List<DebtState> states = debtEngine.fold(new DebtState(ZERO, ZERO), new ArrayList<>(nights.values()));
+        List<SleepData> entries = new ArrayList<>(nights.size());
+        int i = 0;
+        for (Map.Entry<LocalDate, BigDecimal> night : nights.entrySet()) {
+            DebtState state = states.get(i++);
+            entries.add(new SleepData(user, night.getKey(), night.getValue(), state.sleepDebt(),
+                    state.sleepSurplus()));
+        }
+        sleepDataRepository.deleteAllForUser(userId);
+        sleepDataRepository.saveAll(entries);
+        debtWatermarkRepository.findById(userId).ifPresent(debtWatermarkRepository::delete);
+        moveCheckpoint(userId, lastSequenceNumber);
+
+        // 3. Any week may have changed
+        weeklyRollupService.rebuild(user);
+        prefixSumService.rebuild(user);
+        return replayed;
+    }
+
+    private void applyRecorded(User user, LocalDate date, BigDecimal hoursSlept) {
+        // 1. Find the state immediately before the date we are inserting/updating
+        DebtState previousState = debtRecalculationService.stateBefore(user, date);
+
+        // 2. Calculate the state for the new/updated entry
+        DebtState newState = debtRecalculationService.next(previousState, hoursSlept);
+
+        // 3. Insert or update the entry for 'date' in a single statement
+        boolean entryChanged = sleepDataRepository.upsert(new SleepData(user, date, hoursSlept,
+                newState.sleepDebt(), newState.sleepSurplus()));
+        if (entryChanged) {
+            weeklyRollupService.refreshWeeks(user, List.of(date));
+            prefixSumService.refresh(user, List.of(date));
+        }
+
+        // 4. Leave the subsequent entries to the caller's next pass
+        debtRecalculationService.markCorrectThrough(user, date, entryChanged);
+    }
+
+    private void applyDeleted(User user, LocalDate date) {
+        // Entries before the night must be correct, as the chain is carried on from them
+        LocalDate previousDate = date.minusDays(1);
+        debtRecalculationService.refreshThrough(user, previousDate);
+
+        if (sleepDataRepository.deleteByUser_IdAndSleepDate(user.getId(), date) == 0) {
+            return;
+        }
+        weeklyRollupService.refreshWeeks(user, List.of(date));
+        prefixSumService.refresh(user, List.of(date));
+
+        // Later entries were carried on from the deleted night
+        debtRecalculationService.markCorrectThrough(user, previousDate, true);
+    }
+
+    private void applyNights(User user, NavigableMap<LocalDate, SleepEventRow> latestByDate) {
+        LocalDate earliestDate = latestByDate.firstKey();
+        LocalDate latestDate = latestByDate.lastKey();
+
+        // 1. Find the state immediately before the earliest affected date
+        DebtState startingState = debtRecalculationService.stateBefore(user, earliestDate);
+
+        // 2. Load the stored history the batch spans
+        TreeMap<LocalDate, SleepData> timeline = new TreeMap<>();
+        for (SleepData entry : sleepDataRepository.findByUser_IdAndSleepDateBetweenOrderBySleepDateAsc(
+                user.getId(), earliestDate, latestDate)) {
+            timeline.put(entry.getSleepDate(), entry);
+        }
+
+        // 3. Merge the batch into the stored history
+        Set<SleepData> touchedEntries = new HashSet<>();
+        List<LocalDate> touchedDates = new ArrayList<>();
+        boolean deleted = false;
+        for (SleepEventRow event : latestByDate.values()) {
+            LocalDate date = event.sleepDate();
+            SleepData entry = timeline.get(date);
+            if (event.eventType() == SleepEvent.Type.DELETED) {
+                if (entry != null) {
+                    timeline.remove(date);
+                    sleepDataRepository.delete(entry);
+                    touchedDates.add(date);
+                    deleted = true;
+                }
+            } else if (entry == null) {
+                entry = new SleepData(user, date, event.hoursSlept(), ZERO, ZERO);
+                timeline.put(date, entry);
+                touchedEntries.add(entry);
+                touchedDates.add(date);
+            } else if (entry.getHoursSlept().compareTo(event.hoursSlept()) != 0) {
+                entry.setHoursSlept(event.hoursSlept());
+                touchedEntries.add(entry);
+                touchedDates.add(date);
+            }
+        }
+
+        // 4. Compute the chain once and write everything that changed together
+        List<SleepData> entries = new ArrayList<>(timeline.values());
+        Set<SleepData> changedEntries = new HashSet<>(debtRecalculationService.recalculate(entries, startingState));
+        List<SleepData> entriesToSave = entries.stream()
+                .filter(entry -> touchedEntries.contains(entry) || changedEntries.contains(entry))
+                .toList();
+        sleepDataRepository.saveAll(entriesToSave);
+        weeklyRollupService.refreshWeeks(user, touchedDates);
+        prefixSumService.refresh(user, touchedDates);
+
+        // 5. Leave the entries after the batch to the caller's next pass; a deleted latest night
+        // changes what they are carried on from as well
+        Map.Entry<LocalDate, SleepData> latest = timeline.lastEntry();
+        boolean latestChanged = latest != null
+                && (touchedEntries.contains(latest.getValue()) || changedEntries.contains(latest.getValue()));
+        debtRecalculationService.markCorrectThrough(user, latestDate, deleted || latestChanged);
+    }
+
+    private long lastSequenceNumber(Long userId) {
+        return sleepEventRepository.findLastSequenceNumber(userId).orElse(0L);
+    }
+
+    private void moveCheckpoint(Long userId, long sequenceNumber) {
+        SleepProjectionCheckpoint checkpoint = checkpointRepository.findById(userId)
+                .orElseGet(() -> new SleepProjectionCheckpoint(userId, 0));
+        checkpoint.setSequenceNumber(sequenceNumber);
+        checkpointRepository.save(checkpoint);
+    }
+
+    private static LocalDateTime now() {
+        return LocalDateTime.now(ZoneOffset.UTC);
+    }
+}
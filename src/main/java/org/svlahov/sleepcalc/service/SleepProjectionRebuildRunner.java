@@ -0,0 +1,33 @@
+package org.svlahov.sleepcalc.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Replays every user's event log on startup when run with {@code --sleep.projection.rebuild=true},
+ * e.g. after a change to the debt calculation that should apply to the whole history.
+ */
+@Component
+@ConditionalOnProperty(name = "sleep.projection.rebuild", havingValue = "true")
+public class SleepProjectionRebuildRunner implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(SleepProjectionRebuildRunner.class);
+
+    private final SleepProjectionRebuilder sleepProjectionRebuilder;
+
+    public SleepProjectionRebuildRunner(SleepProjectionRebuilder sleepProjectionRebuilder) {
+        this.sleepProjectionRebuilder = sleepProjectionRebuilder;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        long start = System.nanoTime();
+        int users = sleepProjectionRebuilder.rebuildAll();
+        logger.info("Rebuilt the sleep projection for {} users in {} ms", users,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+}
@@ -0,0 +1,79 @@
+package org.svlahov.sleepcalc.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.UserRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays every user's event log into a fresh projection. Users share nothing, so they are
+ * rebuilt in parallel, each in its own transaction; one user failing leaves the others rebuilt.
+ */
+@Component
+public class SleepProjectionRebuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(SleepProjectionRebuilder.class);
+
+    private final UserRepository userRepository;
+    private final SleepEventProjector sleepEventProjector;
+    private final UserWriteLocks userWriteLocks;
+    private final int threads;
+
+    public SleepProjectionRebuilder(UserRepository userRepository, SleepEventProjector sleepEventProjector,
+            UserWriteLocks userWriteLocks, @Value("${sleep.projection.rebuild-threads:4}") int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("At least one rebuild thread is required.");
+        }
+        this.userRepository = userRepository;
+        this.sleepEventProjector = sleepEventProjector;
+        this.userWriteLocks = userWriteLocks;
+        this.threads = threads;
+    }
+
+    /**
+     * @return the number of users whose projection was rebuilt
+     */
+    public int rebuildAll() {
+        List<User> users = userRepository.findAll();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "projection-rebuild-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Integer>> results = new ArrayList<>(users.size());
+            for (User user : users) {
+                results.add(executor.submit(
+                        () -> userWriteLocks.callLocked(user.getId(), () -> sleepEventProjector.rebuild(user))));
+            }
+
+            int rebuilt = 0;
+            for (int i = 0; i < users.size(); i++) {
+                try {
+                    results.get(i).get();
+                    rebuilt++;
+                } catch (ExecutionException e) {
+                    logger.error("Rebuilding the sleep projection failed for user {}", users.get(i).getId(),
+                            e.getCause());
+                }
+            }
+            return rebuilt;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while rebuilding sleep projections", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -1,12 +1,23 @@
 package org.svlahov.sleepcalc.service;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+
+import java.io.InputStream;
 import java.time.LocalDate;
 import java.util.List;
 
 public interface SleepService {
 
-    record SleepState(double sleepDebt, double sleepSurplus) {}
+    /**
+     * @param recalculationPending whether recorded nights are still being applied, or later entries
+     *                             recalculated, in the background, so the values may not reflect the
+     *                             latest writes yet
+     */
+    record SleepState(double sleepDebt, double sleepSurplus, boolean recalculationPending) {
+        public SleepState(double sleepDebt, double sleepSurplus) {
+            this(sleepDebt, sleepSurplus, false);
+        }
+    }
 
     record SleepHistoryEntry(
             @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd") LocalDate sleepDate,
@@ -15,11 +26,53 @@ public interface SleepService {
             double sleepSurplus
     ) {}
 
+    record SleepRecord(String timeSlept, LocalDate date) {}
+
+    /**
+     * @param recalculationPending whether debt and surplus from {@code firstDate} on are still
+     *                             being recalculated in the background
+     */
+    record SleepImportResult(int nights, LocalDate firstDate, LocalDate lastDate, boolean recalculationPending) {}
+
+    /**
+     * @param nextCursor pass back as {@code cursor} for the next older page; {@code null} on the last page
+     */
+    record SleepHistoryPage(List<SleepHistoryEntry> entries, String nextCursor) {}
+
+    /**
+     * Appends the night to the user's event log, which is applied in the background; returns the
+     * stored state so far, with {@code recalculationPending} set.
+     */
     SleepState recordSleep(String timeSlept, LocalDate date);
 
+    /**
+     * Appends the nights to the user's event log as {@link #recordSleep(String, LocalDate)} does.
+     * At most 1000 nights are accepted at once.
+     */
+    SleepState recordSleep(List<SleepRecord> records);
+
+    /**
+     * Appends the removal of the night recorded for {@code date}, which is applied in the
+     * background, and returns the stored state so far.
+     */
+    SleepState deleteSleep(LocalDate date);
+
+    /**
+     * Stores every night of a CSV file in the export format, overwriting nights already stored.
+     * The file is read and checked in full before the user's history is locked, so it is limited
+     * to {@code sleep.import.max-nights} nights and {@code sleep.import.max-size} bytes.
+     */
+    SleepImportResult importSleep(InputStream csv);
+
     SleepState getCurrentSleepState();
 
     List<SleepHistoryEntry> getSleepHistory();
 
     List<SleepHistoryEntry> getSleepHistory(LocalDate from, LocalDate to);
+
+    /**
+     * Up to {@code limit} entries, newest first, older than the position {@code cursor} points at,
+     * or than {@code before} when there is no cursor yet.
+     */
+    SleepHistoryPage getSleepHistoryPage(String cursor, LocalDate before, int limit);
 }
@@ -1,155 +1,292 @@
 package org.svlahov.sleepcalc.service;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Service;
-import org.svlahov.sleepcalc.entity.SleepData;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+import org.svlahov.sleepcalc.config.AuthenticatedUser;
+import org.svlahov.sleepcalc.dto.ImportedNight;
+import org.svlahov.sleepcalc.dto.SleepDataRow;
 import org.svlahov.sleepcalc.entity.User;
 import org.svlahov.sleepcalc.repository.SleepDataRepository;
 import org.svlahov.sleepcalc.repository.UserRepository;
 
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalTime;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
-import java.util.Optional;
 import java.util.stream.Collectors;
 
 @Service
 public class SleepServiceImpl implements SleepService {
 
-    // Sleep calculation constants
-    private static final BigDecimal TARGET_SLEEP_HOURS = new BigDecimal("7.5");
-    private static final BigDecimal MAX_EFFECTIVE_DEBT = new BigDecimal("20.0");
-    private static final BigDecimal MIN_RECOVERY_FACTOR = new BigDecimal("0.3");
     private static final int MINUTES_PER_HOUR = 60;
     private static final int DECIMAL_SCALE = 2;
+    private static final int HISTORY_SIZE = 5;
+    private static final int MAX_PAGE_SIZE = 100;
+    // Larger histories go through the CSV import, which does not build one event per night in memory
+    private static final int MAX_BULK_NIGHTS = 1000;
 
     // Common BigDecimal values
     private static final BigDecimal ZERO = BigDecimal.ZERO;
-    private static final BigDecimal ONE = BigDecimal.ONE;
-
-    private record CumulativeState(BigDecimal sleepDebt, BigDecimal sleepSurplus) {
-    }
 
     // Current state
     private final SleepDataRepository sleepDataRepository;
     private final UserRepository userRepository;
-
-    public SleepServiceImpl(SleepDataRepository sleepDataRepository, UserRepository userRepository) {
+    private final DebtRecalculationService debtRecalculationService;
+    private final DebtRecalculationQueue debtRecalculationQueue;
+    private final UserWriteLocks userWriteLocks;
+    private final WeeklyRollupService weeklyRollupService;
+    private final PrefixSumService prefixSumService;
+    private final SleepEventProjector sleepEventProjector;
+    private final TransactionTemplate transaction;
+    private final TransactionTemplate readOnlyTransaction;
+    private final int maxImportNights;
+    private final long maxImportBytes;
+
+    public SleepServiceImpl(SleepDataRepository sleepDataRepository, UserRepository userRepository,
+            DebtRecalculationService debtRecalculationService, DebtRecalculationQueue debtRecalculationQueue,
+            UserWriteLocks userWriteLocks, WeeklyRollupService weeklyRollupService,
+            PrefixSumService prefixSumService, SleepEventProjector sleepEventProjector,
+            PlatformTransactionManager transactionManager,
+            @Value("${sleep.import.max-nights:40000}") int maxImportNights,
+            @Value("${sleep.import.max-size:4MB}") DataSize maxImportSize) {
         this.sleepDataRepository = sleepDataRepository;
         this.userRepository = userRepository;
+        this.debtRecalculationService = debtRecalculationService;
+        this.debtRecalculationQueue = debtRecalculationQueue;
+        this.userWriteLocks = userWriteLocks;
+        this.weeklyRollupService = weeklyRollupService;
+        this.prefixSumService = prefixSumService;
+        this.sleepEventProjector = sleepEventProjector;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.maxImportNights = maxImportNights;
+        this.maxImportBytes = maxImportSize.toBytes();
     }
 
     @Override
     public List<SleepHistoryEntry> getSleepHistory() {
         User currentUser = getCurrentUser();
+        // Debt and surplus are included, so stale entries are brought up to date first
+        boolean refreshed = userWriteLocks.callLocked(currentUser.getId(),
+                () -> debtRecalculationService.refreshAll(currentUser));
 
-        List<SleepData> recentEntries = sleepDataRepository
-                .findTop5ByUser_UsernameOrderBySleepDateDesc(currentUser.getUsername());
+        List<SleepDataRow> recentEntries = readTransaction(refreshed).execute(
+                status -> sleepDataRepository.findRecentRows(currentUser.getId(), Limit.of(HISTORY_SIZE)));
 
         return recentEntries.stream()
                 .map(this::mapToHistoryEntry)
                 .collect(Collectors.toList());
     }
 
-    private SleepHistoryEntry mapToHistoryEntry(SleepData data) {
-        return new SleepHistoryEntry(data.getSleepDate(), formatDebtValue(data.getHoursSlept()),
-                formatDebtValue(data.getSleepDebt()), formatDebtValue(data.getSleepSurplus()));
+    private SleepHistoryEntry mapToHistoryEntry(SleepDataRow row) {
+        return new SleepHistoryEntry(row.sleepDate(), formatDebtValue(row.hoursSlept()),
+                formatDebtValue(row.sleepDebt()), formatDebtValue(row.sleepSurplus()));
     }
 
     @Override
+    @Transactional(readOnly = true)
     public SleepState getCurrentSleepState() {
-        User currentUser = getCurrentUser();
-        return sleepDataRepository.findTopByUser_UsernameOrderBySleepDateDesc(currentUser.getUsername())
-                .map(data -> new SleepState(formatDebtValue(data.getSleepDebt()),
-                        formatDebtValue(data.getSleepSurplus())))
-                .orElse(new SleepState(0.0, 0.0));
+        return currentState(getCurrentUser());
     }
 
     @Override
     public SleepState recordSleep(String timeSlept, LocalDate date) {
+        if (date == null) {
+            throw new IllegalArgumentException("Date cannot be empty.");
+        }
         User currentUser = getCurrentUser();
         BigDecimal hoursSleptDecimal = parseTimeSleptToDecimal(timeSlept);
 
-        // 1. Find the state immediately before the date we are inserting/updating
-        Optional<SleepData> predecessor = sleepDataRepository
-                .findTopByUser_UsernameAndSleepDateLessThanOrderBySleepDateDesc(currentUser.getUsername(), date);
-
-        CumulativeState previousState = predecessor
-                .map(data -> new CumulativeState(data.getSleepDebt(), data.getSleepSurplus()))
-                .orElse(new CumulativeState(ZERO, ZERO));
+        return inLockedTransaction(currentUser, status -> {
+            // Only appended to the user's event log; the queue applies it once this transaction commits
+            sleepEventProjector.appendNights(currentUser, new TreeMap<>(Map.of(date, hoursSleptDecimal)));
+            debtRecalculationQueue.enqueue(currentUser);
 
-        // 2. Calculate the state for the new/updated entry
-        CumulativeState newState = calculateNewState(previousState, hoursSleptDecimal);
-
-        // 3. Save or Update the entry for 'date'
-        Optional<SleepData> existingEntry = sleepDataRepository
-                .findByUser_UsernameAndSleepDate(currentUser.getUsername(), date);
-        SleepData sleepDataToSave;
+            return currentState(currentUser, true);
+        });
+    }
 
-        if (existingEntry.isPresent()) {
-            sleepDataToSave = existingEntry.get();
-            sleepDataToSave.setHoursSlept(hoursSleptDecimal);
-            sleepDataToSave.setSleepDebt(newState.sleepDebt());
-            sleepDataToSave.setSleepSurplus(newState.sleepSurplus());
-        } else {
-            sleepDataToSave = new SleepData(currentUser, date, hoursSleptDecimal, newState.sleepDebt(),
-                    newState.sleepSurplus());
+    @Override
+    public SleepState recordSleep(List<SleepRecord> records) {
+        if (records == null || records.isEmpty()) {
+            throw new IllegalArgumentException("At least one sleep entry is required.");
         }
-        SleepData savedData = sleepDataRepository.save(sleepDataToSave);
+        if (records.size() > MAX_BULK_NIGHTS) {
+            throw new IllegalArgumentException("At most " + MAX_BULK_NIGHTS
+                    + " nights can be recorded at once; use /api/sleep/import for more.");
+        }
+        User currentUser = getCurrentUser();
 
-        // 4. Recalculate all subsequent entries
-        recalculateSubsequentEntries(currentUser.getUsername(), date, newState);
+        // A later record for the same date wins
+        TreeMap<LocalDate, BigDecimal> hoursByDate = new TreeMap<>();
+        for (SleepRecord record : records) {
+            if (record.date() == null) {
+                throw new IllegalArgumentException("Date cannot be empty.");
+            }
+            hoursByDate.put(record.date(), parseTimeSleptToDecimal(record.timeSlept()));
+        }
 
-        return new SleepState(formatDebtValue(savedData.getSleepDebt()), formatDebtValue(savedData.getSleepSurplus()));
+        return inLockedTransaction(currentUser, status -> {
+            sleepEventProjector.appendNights(currentUser, hoursByDate);
+            debtRecalculationQueue.enqueue(currentUser);
+            return currentState(currentUser, true);
+        });
     }
 
-    private void recalculateSubsequentEntries(String username, LocalDate date, CumulativeState startingState) {
-        List<SleepData> subsequentEntries = sleepDataRepository
-                .findByUser_UsernameAndSleepDateGreaterThanOrderBySleepDateAsc(username, date);
-
-        CumulativeState currentState = startingState;
-
-        for (SleepData entry : subsequentEntries) {
-            currentState = calculateNewState(currentState, entry.getHoursSlept());
-            entry.setSleepDebt(currentState.sleepDebt());
-            entry.setSleepSurplus(currentState.sleepSurplus());
-            sleepDataRepository.save(entry);
+    @Override
+    public SleepState deleteSleep(LocalDate date) {
+        if (date == null) {
+            throw new IllegalArgumentException("Date cannot be empty.");
         }
+        User currentUser = getCurrentUser();
+        return inLockedTransaction(currentUser, status -> {
+            sleepEventProjector.appendDeletion(currentUser, date);
+            debtRecalculationQueue.enqueue(currentUser);
+            return currentState(currentUser, true);
+        });
     }
 
-    private CumulativeState calculateNewState(CumulativeState previousState, BigDecimal hoursSlept) {
-        BigDecimal sleepDifference = hoursSlept.subtract(TARGET_SLEEP_HOURS);
+    @Override
+    public SleepImportResult importSleep(InputStream csv) {
+        User currentUser = getCurrentUser();
 
-        if (sleepDifference.compareTo(ZERO) > 0) {
-            return applyExtraSleep(previousState, sleepDifference);
-        } else if (sleepDifference.compareTo(ZERO) < 0) {
-            return applySleepShortfall(previousState, sleepDifference.negate());
-        } else {
-            return previousState;
+        // 1. Read and check the whole file before taking the lock or a connection, so a slow
+        // upload holds neither
+        SleepCsvReader reader = new SleepCsvReader(
+                new BufferedReader(new InputStreamReader(new BoundedInputStream(csv, maxImportBytes),
+                        StandardCharsets.UTF_8)),
+                this::parseTimeSleptToDecimal, maxImportNights);
+        List<ImportedNight> nights = new ArrayList<>();
+        reader.forEachRemaining(nights::add);
+        if (nights.isEmpty()) {
+            throw new IllegalArgumentException("The file contains no sleep entries.");
         }
+        LocalDate earliestDate = reader.earliestDate();
+
+        boolean recalculationPending = inLockedTransaction(currentUser, status -> {
+            // 2. Load the hours in bulk; debt and surplus are left for step 4
+            sleepEventProjector.importNights(currentUser, nights.iterator());
+
+            // 3. Entries before the import must be correct, as the chain is carried on from them
+            debtRecalculationService.refreshThrough(currentUser, earliestDate.minusDays(1));
+
+            // 4. Recalculate everything from the earliest imported night once, in the background
+            boolean pending = debtRecalculationService.markCorrectThrough(currentUser,
+                    earliestDate.minusDays(1), true);
+            if (pending) {
+                debtRecalculationQueue.enqueue(currentUser);
+            }
+
+            // 5. Any week may have changed, so the derived tables are rebuilt instead of patched
+            weeklyRollupService.rebuild(currentUser);
+            prefixSumService.rebuild(currentUser);
+            return pending;
+        });
+
+        return new SleepImportResult(nights.size(), earliestDate, reader.latestDate(), recalculationPending);
     }
 
     @Override
     public List<SleepHistoryEntry> getSleepHistory(LocalDate from, LocalDate to) {
         User currentUser = getCurrentUser();
+        boolean refreshed = userWriteLocks.callLocked(currentUser.getId(),
+                () -> debtRecalculationService.refreshThrough(currentUser, to));
 
-        List<SleepData> entries = sleepDataRepository.findByUser_UsernameAndSleepDateBetween(
-                currentUser.getUsername(), from, to);
+        List<SleepDataRow> entries = readTransaction(refreshed).execute(
+                status -> sleepDataRepository.findRowsBetween(currentUser.getId(), from, to));
 
         return entries.stream()
                 .map(this::mapToHistoryEntry)
                 .collect(Collectors.toList());
     }
 
+    @Override
+    public SleepHistoryPage getSleepHistoryPage(String cursor, LocalDate before, int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_PAGE_SIZE + ".");
+        }
+        LocalDate start = cursor != null ? decodeCursor(cursor) : before;
+        User currentUser = getCurrentUser();
+        boolean refreshed = userWriteLocks.callLocked(currentUser.getId(), () -> start != null
+                ? debtRecalculationService.refreshThrough(currentUser, start.minusDays(1))
+                : debtRecalculationService.refreshAll(currentUser));
+
+        // One extra row tells whether an older page exists without counting
+        Limit pageLimit = Limit.of(limit + 1);
+        List<SleepDataRow> rows = readTransaction(refreshed).execute(status -> start != null
+                ? sleepDataRepository.findRowsBefore(currentUser.getId(), start, pageLimit)
+                : sleepDataRepository.findRecentRows(currentUser.getId(), pageLimit));
+        boolean hasMore = rows.size() > limit;
+        List<SleepDataRow> page = hasMore ? rows.subList(0, limit) : rows;
+
+        String nextCursor = hasMore ? encodeCursor(page.get(page.size() - 1).sleepDate()) : null;
+        return new SleepHistoryPage(page.stream().map(this::mapToHistoryEntry).toList(), nextCursor);
+    }
+
     // Helper methods for improved readability
 
+    // The cursor is the date of the last entry returned; clients are not meant to build it themselves
+    private String encodeCursor(LocalDate lastDate) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(lastDate.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private LocalDate decodeCursor(String cursor) {
+        try {
+            return LocalDate.parse(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII));
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid cursor.");
+        }
+    }
+
+    // The user's stripe is taken before the transaction, so waiting for it holds no connection
+    private <T> T inLockedTransaction(User currentUser, TransactionCallback<T> work) {
+        return userWriteLocks.callLocked(currentUser.getId(), () -> transaction.execute(work));
+    }
+
+    // Read right after a refresh on the primary: a replica may not have the refreshed entries yet
+    private TransactionTemplate readTransaction(boolean refreshed) {
+        return refreshed ? transaction : readOnlyTransaction;
+    }
+
+    private SleepState currentState(User currentUser) {
+        return currentState(currentUser, debtRecalculationService.isPending(currentUser));
+    }
+
+    // The stored state, which trails events not yet applied while recalculationPending is set
+    private SleepState currentState(User currentUser, boolean recalculationPending) {
+        return sleepDataRepository.findTopByUser_IdOrderBySleepDateDesc(currentUser.getId())
+                .map(data -> new SleepState(formatDebtValue(data.getSleepDebt()),
+                        formatDebtValue(data.getSleepSurplus()), recalculationPending))
+                .orElse(new SleepState(0.0, 0.0, recalculationPending));
+    }
+
     private User getCurrentUser() {
         Object principal = SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        if (principal instanceof AuthenticatedUser authenticatedUser) {
+            // Only the id is needed for queries, so a reference avoids loading the user row
+            return userRepository.getReferenceById(authenticatedUser.getId());
+        }
         String username;
         if (principal instanceof UserDetails) {
             username = ((UserDetails) principal).getUsername();
@@ -204,59 +341,6 @@ public class SleepServiceImpl implements SleepService {
         }
     }
 
-    private CumulativeState applyExtraSleep(CumulativeState previousState, BigDecimal extraSleep) {
-        BigDecimal currentDebt = previousState.sleepDebt();
-        BigDecimal currentSurplus = previousState.sleepSurplus();
-
-        if (currentDebt.compareTo(ZERO) <= 0) {
-            return new CumulativeState(currentDebt, currentSurplus.add(extraSleep));
-        }
-
-        BigDecimal recoveryFactor = calculateRecoveryFactor(currentDebt);
-        BigDecimal debtReductionAmount = extraSleep.multiply(recoveryFactor);
-
-        BigDecimal actualDebtPaid = debtReductionAmount.min(currentDebt);
-        BigDecimal newDebt = currentDebt.subtract(actualDebtPaid);
-
-        BigDecimal sleepPowerUsed = (recoveryFactor.compareTo(ZERO) > 0)
-                ? actualDebtPaid.divide(recoveryFactor, 4, RoundingMode.HALF_UP)
-                : ZERO;
-        BigDecimal surplusToAdd = extraSleep.subtract(sleepPowerUsed).max(ZERO);
-
-        BigDecimal newSurplus = currentSurplus.add(surplusToAdd);
-
-        return new CumulativeState(newDebt, newSurplus);
-    }
-
-    private CumulativeState applySleepShortfall(CumulativeState previousState, BigDecimal shortfall) {
-        BigDecimal currentDebt = previousState.sleepDebt();
-        BigDecimal currentSurplus = previousState.sleepSurplus();
-
-        BigDecimal surplusToUse = shortfall.min(currentSurplus);
-        BigDecimal newSurplus = currentSurplus.subtract(surplusToUse);
-
-        BigDecimal remainingShortfall = shortfall.subtract(surplusToUse);
-        BigDecimal newDebt = currentDebt.add(remainingShortfall);
-
-        return new CumulativeState(newDebt, newSurplus);
-    }
-
-    private BigDecimal calculateRecoveryFactor(BigDecimal currentDebt) {
-        // If no debt or negative debt (sleep surplus), recovery is 100% effective
-        if (currentDebt.compareTo(ONE) <= 0) {
-            return ONE;
-        }
-
-        // As debt increases, recovery becomes less effective
-        // Recovery factor decreases linearly from 1.0 to MIN_RECOVERY_FACTOR (0.3)
-        BigDecimal debtRatio = currentDebt.divide(MAX_EFFECTIVE_DEBT, 4, RoundingMode.HALF_UP);
-        BigDecimal factorReduction = debtRatio.multiply(ONE.subtract(MIN_RECOVERY_FACTOR));
-        BigDecimal calculatedFactor = ONE.subtract(factorReduction);
-
-        // Ensure recovery factor doesn't go below minimum
-        return calculatedFactor.max(MIN_RECOVERY_FACTOR);
-    }
-
     private double formatDebtValue(BigDecimal debt) {
         return debt.setScale(2, RoundingMode.HALF_UP).doubleValue();
     }
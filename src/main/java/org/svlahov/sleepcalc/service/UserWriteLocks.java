@@ -0,0 +1,71 @@
+package org.svlahov.sleepcalc.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Serializes transactions that rewrite one user's debt chain, while different users proceed in
+ * parallel. Users are hashed onto a fixed set of lock stripes, so two users can occasionally share
+ * a stripe but memory stays constant.
+ * <p>
+ * The lock is held until the surrounding transaction has completed, so the next writer for the
+ * same user always reads what the previous one committed. Entry points take it with
+ * {@link #callLocked} before they open a transaction, so a writer waiting for the stripe does
+ * not hold a pooled connection meanwhile.
+ */
+@Component
+public class UserWriteLocks {
+
+    private final ReentrantLock[] stripes;
+
+    public UserWriteLocks(@Value("${sleep.write-lock-stripes:64}") int stripeCount) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("At least one lock stripe is required.");
+        }
+        this.stripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Blocks until no other transaction holds the user's stripe. Reentrant within a transaction.
+     */
+    public void lockForTransaction(Long userId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("User write locks require an active transaction");
+        }
+        ReentrantLock lock = stripeFor(userId);
+        lock.lock();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Runs {@code work} holding the user's stripe. Meant to wrap a call that opens its own
+     * transactions, whose {@link #lockForTransaction} calls then reenter the stripe at once.
+     */
+    public <T> T callLocked(Long userId, Supplier<T> work) {
+        ReentrantLock lock = stripeFor(userId);
+        lock.lock();
+        try {
+            return work.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock stripeFor(Long userId) {
+        return stripes[Math.floorMod(Objects.hashCode(userId), stripes.length)];
+    }
+}
@@ -0,0 +1,44 @@
+package org.svlahov.sleepcalc.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.UserRepository;
+
+/**
+ * Rebuilds every user's weekly rollups and prefix sums on startup when run with {@code --sleep.rollups.rebuild=true},
+ * e.g. to repair them after editing entries by hand. Each user is rebuilt in its own
+ * transaction, so writes for other users are not held up.
+ */
+@Component
+@ConditionalOnProperty(name = "sleep.rollups.rebuild", havingValue = "true")
+public class WeeklyRollupRebuildRunner implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeeklyRollupRebuildRunner.class);
+
+    private final UserRepository userRepository;
+    private final WeeklyRollupService weeklyRollupService;
+    private final PrefixSumService prefixSumService;
+
+    public WeeklyRollupRebuildRunner(UserRepository userRepository, WeeklyRollupService weeklyRollupService,
+            PrefixSumService prefixSumService) {
+        this.userRepository = userRepository;
+        this.weeklyRollupService = weeklyRollupService;
+        this.prefixSumService = prefixSumService;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        int users = 0;
+        for (User user : userRepository.findAll()) {
+            weeklyRollupService.rebuild(user);
+            prefixSumService.rebuild(user);
+            users++;
+        }
+        logger.info("Rebuilt weekly rollups and prefix sums for {} users", users);
+    }
+}
@@ -0,0 +1,102 @@
+package org.svlahov.sleepcalc.service;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.entity.WeeklySleepRollup;
+import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.WeeklySleepRollupRepository;
+
+import java.math.BigDecimal;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Maintains {@link WeeklySleepRollup} rows alongside the entries they summarize. Writers call
+ * {@link #refreshWeeks} in the same transaction, so a report never sees a rollup that disagrees
+ * with the committed nights, and cached reports reading a changed week are evicted.
+ */
+@Service
+public class WeeklyRollupService {
+
+    private static final BigDecimal TARGET_SLEEP_HOURS = new BigDecimal("7.5");
+
+    private final SleepDataRepository sleepDataRepository;
+    private final WeeklySleepRollupRepository weeklySleepRollupRepository;
+    private final UserWriteLocks userWriteLocks;
+    private final ReportCache reportCache;
+
+    public WeeklyRollupService(SleepDataRepository sleepDataRepository,
+            WeeklySleepRollupRepository weeklySleepRollupRepository, UserWriteLocks userWriteLocks,
+            ReportCache reportCache) {
+        this.sleepDataRepository = sleepDataRepository;
+        this.weeklySleepRollupRepository = weeklySleepRollupRepository;
+        this.userWriteLocks = userWriteLocks;
+        this.reportCache = reportCache;
+    }
+
+    public static LocalDate weekStart(LocalDate date) {
+        return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+    }
+
+    /**
+     * Recomputes the rollups of the weeks containing {@code dates} from their (at most seven)
+     * stored entries. Hours slept only change through writes, never through debt recalculation,
+     * so these are the only weeks a write can affect.
+     */
+    @Transactional
+    public void refreshWeeks(User user, Collection<LocalDate> dates) {
+        userWriteLocks.lockForTransaction(user.getId());
+        Set<LocalDate> weekStarts = new TreeSet<>();
+        for (LocalDate date : dates) {
+            weekStarts.add(weekStart(date));
+        }
+        for (LocalDate weekStart : weekStarts) {
+            List<SleepData> entries = sleepDataRepository.findByUser_IdAndSleepDateBetween(
+                    user.getId(), weekStart, weekStart.plusDays(6));
+            save(user.getId(), weekStart, entries);
+            reportCache.evictWeek(user.getId(), weekStart);
+        }
+    }
+
+    /**
+     * Replaces all of the user's rollups with ones computed from the stored entries, in two
+     * statements rather than by loading the history.
+     */
+    @Transactional
+    public void rebuild(User user) {
+        userWriteLocks.lockForTransaction(user.getId());
+        weeklySleepRollupRepository.deleteAllForUser(user.getId());
+        weeklySleepRollupRepository.insertAllForUser(user.getId(), TARGET_SLEEP_HOURS);
+        reportCache.evictUser(user.getId());
+    }
+
+    private void save(Long userId, LocalDate weekStart, List<SleepData> entries) {
+        if (weekStart == null) {
+            return;
+        }
+        if (entries.isEmpty()) {
+            weeklySleepRollupRepository.findById(new WeeklySleepRollup.Key(userId, weekStart))
+                    .ifPresent(weeklySleepRollupRepository::delete);
+            return;
+        }
+        BigDecimal hoursSum = BigDecimal.ZERO;
+        for (SleepData entry : entries) {
+            hoursSum = hoursSum.add(entry.getHoursSlept());
+        }
+        BigDecimal deviationSum = hoursSum.subtract(TARGET_SLEEP_HOURS.multiply(BigDecimal.valueOf(entries.size())));
+
+        WeeklySleepRollup rollup = weeklySleepRollupRepository.findById(new WeeklySleepRollup.Key(userId, weekStart))
+                .orElseGet(() -> new WeeklySleepRollup(userId, weekStart, 0, BigDecimal.ZERO, BigDecimal.ZERO));
+        rollup.setNights(entries.size());
+        rollup.setHoursSum(hoursSum);
+        rollup.setDeviationSum(deviationSum);
+        weeklySleepRollupRepository.save(rollup);
+    }
+}
@@ -0,0 +1,24 @@
+-- Schema as previously generated by Hibernate (ddl-auto=update). Existing databases are
+-- baselined at this version, so this script only runs against empty ones.
+
+CREATE SEQUENCE app_users_seq START WITH 1 INCREMENT BY 50;
+CREATE SEQUENCE sleep_data_seq START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE app_users (
+    id       BIGINT       NOT NULL,
+    username VARCHAR(255) NOT NULL,
+    password VARCHAR(255),
+    CONSTRAINT pk_app_users PRIMARY KEY (id),
+    CONSTRAINT uk_app_users_username UNIQUE (username)
+);
+
+CREATE TABLE sleep_data (
+    id            BIGINT         NOT NULL,
+    user_id       BIGINT         NOT NULL,
+    sleep_date    DATE           NOT NULL,
+    hours_slept   NUMERIC(38, 2) NOT NULL,
+    sleep_debt    NUMERIC(38, 2) NOT NULL,
+    sleep_surplus NUMERIC(38, 2) NOT NULL,
+    CONSTRAINT pk_sleep_data PRIMARY KEY (id),
+    CONSTRAINT fk_sleep_data_user FOREIGN KEY (user_id) REFERENCES app_users (id)
+);
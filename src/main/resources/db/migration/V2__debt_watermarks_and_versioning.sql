@@ -0,0 +1,9 @@
+-- May already exist where ddl-auto=update ran before migrations were introduced
+
+CREATE TABLE IF NOT EXISTS debt_watermarks (
+    user_id    BIGINT NOT NULL,
+    stale_from DATE   NOT NULL,
+    CONSTRAINT pk_debt_watermarks PRIMARY KEY (user_id)
+);
+
+ALTER TABLE sleep_data ADD COLUMN IF NOT EXISTS version BIGINT DEFAULT 0 NOT NULL;
@@ -0,0 +1,9 @@
+-- Concurrent writes could store the same night twice; keep the row inserted last
+DELETE FROM sleep_data s
+WHERE EXISTS (
+    SELECT 1 FROM sleep_data d
+    WHERE d.user_id = s.user_id AND d.sleep_date = s.sleep_date AND d.id > s.id
+);
+
+-- Backs the upsert and every (user, date) lookup and range scan
+CREATE UNIQUE INDEX ux_sleep_data_user_date ON sleep_data (user_id, sleep_date);
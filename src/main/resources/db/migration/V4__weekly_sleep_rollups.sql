@@ -0,0 +1,19 @@
+-- One row per user and ISO week (week_start is the Monday), filled in from the nights already
+-- stored. Writes keep it up to date from here on.
+
+CREATE TABLE weekly_sleep_rollups (
+    user_id       BIGINT         NOT NULL,
+    week_start    DATE           NOT NULL,
+    nights        INTEGER        NOT NULL,
+    hours_sum     NUMERIC(38, 2) NOT NULL,
+    deviation_sum NUMERIC(38, 2) NOT NULL,
+    CONSTRAINT pk_weekly_sleep_rollups PRIMARY KEY (user_id, week_start)
+);
+
+-- ISODOW is 1 on Mondays; deviation is measured against the 7.5 hour target
+INSERT INTO weekly_sleep_rollups (user_id, week_start, nights, hours_sum, deviation_sum)
+SELECT user_id, week_start, COUNT(*), SUM(hours_slept), SUM(hours_slept) - 7.5 * COUNT(*)
+FROM (SELECT user_id, hours_slept,
+             sleep_date - CAST(EXTRACT(ISODOW FROM sleep_date) AS INTEGER) + 1 AS week_start
+      FROM sleep_data) nights
+GROUP BY user_id, week_start;
@@ -0,0 +1,17 @@
+-- Running totals per user up to and including each recorded night, filled in from the nights
+-- already stored. Writes keep it up to date from here on.
+
+CREATE TABLE sleep_prefix_sums (
+    user_id           BIGINT         NOT NULL,
+    sleep_date        DATE           NOT NULL,
+    cumulative_hours  NUMERIC(38, 2) NOT NULL,
+    cumulative_nights INTEGER        NOT NULL,
+    CONSTRAINT pk_sleep_prefix_sums PRIMARY KEY (user_id, sleep_date)
+);
+
+-- A user has at most one night per date, so the running sum and the row number line up
+INSERT INTO sleep_prefix_sums (user_id, sleep_date, cumulative_hours, cumulative_nights)
+SELECT user_id, sleep_date,
+       SUM(hours_slept) OVER (PARTITION BY user_id ORDER BY sleep_date),
+       ROW_NUMBER() OVER (PARTITION BY user_id ORDER BY sleep_date)
+FROM sleep_data;
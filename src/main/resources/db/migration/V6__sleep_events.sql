@@ -0,0 +1,35 @@
+-- Append-only log of what each user recorded, edited and deleted, numbered per user from 1.
+-- sleep_data is the projection of it; sleep_projection_checkpoints holds the last event each
+-- user's projection includes.
+
+CREATE TABLE sleep_events (
+    user_id         BIGINT         NOT NULL,
+    sequence_number BIGINT         NOT NULL,
+    sleep_date      DATE           NOT NULL,
+    event_type      VARCHAR(16)    NOT NULL,
+    hours_slept     NUMERIC(38, 2),
+    recorded_at     TIMESTAMP      NOT NULL,
+    CONSTRAINT pk_sleep_events PRIMARY KEY (user_id, sequence_number),
+    CONSTRAINT fk_sleep_events_user FOREIGN KEY (user_id) REFERENCES app_users (id)
+);
+
+CREATE TABLE sleep_projection_checkpoints (
+    user_id         BIGINT NOT NULL,
+    sequence_number BIGINT NOT NULL,
+    CONSTRAINT pk_sleep_projection_checkpoints PRIMARY KEY (user_id),
+    CONSTRAINT fk_sleep_projection_checkpoints_user FOREIGN KEY (user_id) REFERENCES app_users (id)
+);
+
+-- Nights stored before the log existed become each user's first events, already projected
+INSERT INTO sleep_events (user_id, sequence_number, sleep_date, event_type, hours_slept, recorded_at)
+SELECT user_id, ROW_NUMBER() OVER (PARTITION BY user_id ORDER BY sleep_date), sleep_date, 'RECORDED',
+       hours_slept, CURRENT_TIMESTAMP
+FROM sleep_data;
+
+INSERT INTO sleep_projection_checkpoints (user_id, sequence_number)
+SELECT user_id, COUNT(*)
+FROM sleep_data
+GROUP BY user_id;
+
+-- A write decides between RECORDED and EDITED from the latest event for its night
+CREATE INDEX idx_sleep_events_user_date ON sleep_events (user_id, sleep_date, sequence_number);
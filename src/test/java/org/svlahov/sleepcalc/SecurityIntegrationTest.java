@@ -11,9 +11,14 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.transaction.annotation.Transactional;
+import org.svlahov.sleepcalc.config.AuthenticatedUser;
+import org.svlahov.sleepcalc.config.JwtService;
 import org.svlahov.sleepcalc.controller.AuthController;
+import org.svlahov.sleepcalc.repository.UserRepository;
 import org.svlahov.sleepcalc.support.TestJwtDynamicProps;
 
+import java.util.List;
+
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
@@ -32,6 +37,12 @@ public class SecurityIntegrationTest extends TestJwtDynamicProps {
         @Autowired
         private ObjectMapper objectMapper;
 
+        @Autowired
+        private JwtService jwtService;
+
+        @Autowired
+        private UserRepository userRepository;
+
         @Test
         @DisplayName("POST /api/auth/register schould create a new user")
         void register_shouldCreateUser() throws Exception {
@@ -79,4 +90,24 @@ public class SecurityIntegrationTest extends TestJwtDynamicProps {
                                 .andExpect(status().isOk());
         }
 
+        @Test
+        @DisplayName("A token issued for another account with the same username should be rejected")
+        void tokenWithForeignUserId_shouldBeRejected() throws Exception {
+                AuthController.AuthRequest userCredentials = new AuthController.AuthRequest();
+                userCredentials.setUsername("recycled-name");
+                userCredentials.setPassword("password123");
+
+                mockMvc.perform(post("/api/auth/register")
+                                .contentType(requireNonNull(MediaType.APPLICATION_JSON))
+                                .content(requireNonNull(objectMapper.writeValueAsString(userCredentials))))
+                                .andExpect(status().isOk());
+
+                Long registeredId = userRepository.findByUsername("recycled-name").orElseThrow().getId();
+                String foreignToken = jwtService.generateToken(
+                                new AuthenticatedUser(registeredId + 1, "recycled-name", "password123", List.of()));
+
+                mockMvc.perform(get("/api/sleep/state")
+                                .header("Authorization", "Bearer " + foreignToken))
+                                .andExpect(status().isForbidden());
+        }
 }
@@ -0,0 +1,167 @@
+package org.svlahov.sleepcalc.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.UserRepository;
+import org.svlahov.sleepcalc.support.TestJwtDynamicProps;
+
+import javax.sql.DataSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Routes between the test profile's H2 database ({@code testdb}) and a second in-memory H2
+ * database standing in for the replica, whose lag is read from a table the tests control. The
+ * background checks are an hour apart, so the tests run them directly.
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+@DirtiesContext
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@TestPropertySource(properties = {
+        "sleep.datasource.replica.url=jdbc:h2:mem:replicadb;DB_CLOSE_DELAY=-1",
+        "sleep.datasource.replica.max-lag=10s",
+        "sleep.datasource.replica.check-interval=1h",
+        "sleep.datasource.replica.lag-query=SELECT seconds FROM replica_lag"
+})
+class ReplicaRoutingDataSourceTest extends TestJwtDynamicProps {
+
+    private static final String DATABASE_NAME_QUERY = "SELECT DATABASE()";
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    @Qualifier("replicaDataSource")
+    private HikariDataSource replicaDataSource;
+
+    @Autowired
+    private ReplicaRoutingDataSource routingDataSource;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    private JdbcTemplate jdbcTemplate;
+    private JdbcTemplate replicaJdbcTemplate;
+    private TransactionTemplate readOnlyTransaction;
+    private TransactionTemplate readWriteTransaction;
+
+    @BeforeAll
+    void setUpReplica() {
+        // Flyway only migrates the primary; a real replica gets its schema through replication
+        Flyway.configure().dataSource(replicaDataSource).load().migrate();
+        replicaJdbcTemplate = new JdbcTemplate(replicaDataSource);
+        replicaJdbcTemplate.execute("CREATE TABLE replica_lag (seconds DOUBLE PRECISION)");
+        replicaJdbcTemplate.update("INSERT INTO replica_lag VALUES (0)");
+
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+        readWriteTransaction = new TransactionTemplate(transactionManager);
+    }
+
+    @BeforeEach
+    void resetLag() {
+        replicaJdbcTemplate.update("UPDATE replica_lag SET seconds = 0");
+        routingDataSource.checkReplica();
+    }
+
+    @Test
+    @DisplayName("A read-only transaction should read from the replica")
+    void readOnlyTransaction_usesReplica() {
+        String database = readOnlyTransaction.execute(
+                status -> jdbcTemplate.queryForObject(DATABASE_NAME_QUERY, String.class));
+
+        assertTrue("replicadb".equalsIgnoreCase(database), database);
+    }
+
+    @Test
+    @DisplayName("A read-write transaction should use the primary")
+    void readWriteTransaction_usesPrimary() {
+        String database = readWriteTransaction.execute(
+                status -> jdbcTemplate.queryForObject(DATABASE_NAME_QUERY, String.class));
+
+        assertTrue("testdb".equalsIgnoreCase(database), database);
+    }
+
+    @Test
+    @DisplayName("A query outside any transaction should use the primary")
+    void withoutTransaction_usesPrimary() {
+        String database = jdbcTemplate.queryForObject(DATABASE_NAME_QUERY, String.class);
+
+        assertTrue("testdb".equalsIgnoreCase(database), database);
+    }
+
+    @Test
+    @DisplayName("A read-only transaction should fall back to the primary while the replica lags past max-lag")
+    void readOnlyTransaction_replicaLaggingPastThreshold_usesPrimary() {
+        replicaJdbcTemplate.update("UPDATE replica_lag SET seconds = 60");
+        routingDataSource.checkReplica();
+
+        String database = readOnlyTransaction.execute(
+                status -> jdbcTemplate.queryForObject(DATABASE_NAME_QUERY, String.class));
+
+        assertTrue("testdb".equalsIgnoreCase(database), database);
+    }
+
+    @Test
+    @DisplayName("A read-only repository query should see the replica until it lags")
+    void readOnlyRepositoryQuery_seesReplicaUntilItLags() {
+        User user = userRepository.save(new User("replica-routing-user", "password"));
+        try {
+            // The replica never received the insert; existsById always queries, unlike the cached lookups
+            assertFalse(readOnlyTransaction.execute(status -> userRepository.existsById(user.getId())));
+
+            replicaJdbcTemplate.update("UPDATE replica_lag SET seconds = 60");
+            routingDataSource.checkReplica();
+
+            assertTrue(readOnlyTransaction.execute(status -> userRepository.existsById(user.getId())));
+        } finally {
+            userRepository.delete(user);
+        }
+    }
+
+    @Test
+    @DisplayName("Routing should follow the last replica check, not the replica state in between")
+    void readOnlyTransaction_routesOnLastCheck() {
+        // Routing does not look at the replica itself; the lag only counts once a check has seen it
+        replicaJdbcTemplate.update("UPDATE replica_lag SET seconds = 60");
+
+        String database = readOnlyTransaction.execute(
+                status -> jdbcTemplate.queryForObject(DATABASE_NAME_QUERY, String.class));
+
+        assertTrue("replicadb".equalsIgnoreCase(database), database);
+    }
+
+    @Test
+    @DisplayName("A read-only transaction should fall back to the primary once the replica is unreachable")
+    @Order(Integer.MAX_VALUE)
+    void readOnlyTransaction_replicaUnavailable_usesPrimary() {
+        replicaDataSource.close();
+
+        String database = readOnlyTransaction.execute(
+                status -> jdbcTemplate.queryForObject(DATABASE_NAME_QUERY, String.class));
+
+        assertTrue("testdb".equalsIgnoreCase(database), database);
+    }
+}
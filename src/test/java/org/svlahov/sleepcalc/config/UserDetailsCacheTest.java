@@ -0,0 +1,79 @@
+package org.svlahov.sleepcalc.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class UserDetailsCacheTest {
+
+    @Mock
+    private UserDetailsService userDetailsService;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private UserDetailsCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new UserDetailsCache(userDetailsService, meterRegistry, 100, Duration.ofMinutes(5));
+        when(userDetailsService.loadUserByUsername("cached-user"))
+                .thenReturn(new AuthenticatedUser(1L, "cached-user", "password", List.of()));
+    }
+
+    @Test
+    @DisplayName("get: Repeated lookups should load the user once and count the rest as hits")
+    void get_repeatedLookups_loadOnceAndRecordHits() {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1L, ((AuthenticatedUser) cache.get("cached-user")).getId());
+        }
+
+        verify(userDetailsService, times(1)).loadUserByUsername("cached-user");
+        assertEquals(2.0, meterRegistry.get("cache.gets").tag("cache", "userDetails").tag("result", "hit")
+                .functionCounter().count());
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("cache", "userDetails").tag("result", "miss")
+                .functionCounter().count());
+    }
+
+    @Test
+    @DisplayName("evict: Evicting by user id should drop the entry cached under the previous username")
+    void evict_byUserId_dropsEntryUnderPreviousUsername() {
+        cache.get("cached-user");
+
+        cache.evict(1L, "renamed-user");
+        cache.get("cached-user");
+
+        verify(userDetailsService, times(2)).loadUserByUsername("cached-user");
+    }
+
+    @Test
+    @DisplayName("evict: Inside a transaction the entry should be evicted again after commit")
+    void evict_insideTransaction_evictsAgainAfterCommit() {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            cache.evict(1L, "cached-user");
+            // A request racing the commit reloads the old row
+            cache.get("cached-user");
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        cache.get("cached-user");
+
+        verify(userDetailsService, times(2)).loadUserByUsername("cached-user");
+    }
+}
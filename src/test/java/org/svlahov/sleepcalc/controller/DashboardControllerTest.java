@@ -0,0 +1,72 @@
+package org.svlahov.sleepcalc.controller;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.svlahov.sleepcalc.dto.DashboardDTO;
+import org.svlahov.sleepcalc.dto.MonthlyReportDTO;
+import org.svlahov.sleepcalc.dto.WeeklyReportDTO;
+import org.svlahov.sleepcalc.exception.DeadlineExceededException;
+import org.svlahov.sleepcalc.service.DashboardService;
+import org.svlahov.sleepcalc.service.SleepService.SleepState;
+import org.svlahov.sleepcalc.support.TestJwtDynamicProps;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+@ActiveProfiles("test")
+class DashboardControllerTest extends TestJwtDynamicProps {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockitoBean
+    private DashboardService dashboardService;
+
+    @Test
+    @DisplayName("GET /api/dashboard should return the state, history and both reports")
+    @WithMockUser
+    void getDashboard_shouldReturnAllParts() throws Exception {
+        when(dashboardService.getDashboard(LocalDate.of(2023, 10, 27))).thenReturn(new DashboardDTO(
+                new SleepState(1.5, 0), List.of(), new WeeklyReportDTO(1.5, 0, 0, List.of()),
+                new MonthlyReportDTO(7.0, 0, List.of())));
+
+        mockMvc.perform(get("/api/dashboard").param("date", "2023-10-27"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.state.sleepDebt").value(1.5))
+                .andExpect(jsonPath("$.history").isEmpty())
+                .andExpect(jsonPath("$.weeklyReport.netSleepDebt").value(1.5))
+                .andExpect(jsonPath("$.monthlyReport.averageHoursSlept").value(7.0));
+    }
+
+    @Test
+    @DisplayName("GET /api/dashboard should return 503 when a read misses the deadline")
+    @WithMockUser
+    void getDashboard_pastDeadline_shouldReturnServiceUnavailable() throws Exception {
+        when(dashboardService.getDashboard(any(LocalDate.class)))
+                .thenThrow(new DeadlineExceededException("too slow"));
+
+        mockMvc.perform(get("/api/dashboard"))
+                .andExpect(status().isServiceUnavailable());
+    }
+
+    @Test
+    @DisplayName("GET /api/dashboard should reject unauthenticated requests")
+    void getDashboard_withoutAuthentication_shouldBeRejected() throws Exception {
+        mockMvc.perform(get("/api/dashboard"))
+                .andExpect(status().is4xxClientError());
+    }
+}
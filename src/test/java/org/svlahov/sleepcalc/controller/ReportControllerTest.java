@@ -8,19 +8,36 @@ import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.svlahov.sleepcalc.dto.MonthlyReportDTO;
+import org.svlahov.sleepcalc.dto.RangeReportDTO;
+import org.svlahov.sleepcalc.dto.RangeTotalsItem;
 import org.svlahov.sleepcalc.dto.WeeklyReportDTO;
 import org.svlahov.sleepcalc.dto.WeeklyReportItem;
+import org.svlahov.sleepcalc.dto.YearReportDTO;
 import org.svlahov.sleepcalc.service.ReportService;
+import org.svlahov.sleepcalc.service.ReportService.TaggedReport;
 import org.svlahov.sleepcalc.support.TestJwtDynamicProps;
 
+import java.io.ByteArrayInputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.zip.GZIPInputStream;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
@@ -39,19 +56,34 @@ class ReportControllerTest extends TestJwtDynamicProps {
     @WithMockUser
     void getWeeklyReport_shouldReturnOk() throws Exception {
         WeeklyReportDTO mockReport = new WeeklyReportDTO(0, 0, 0, Collections.emptyList());
-        when(reportService.getWeeklyReport(any(LocalDate.class))).thenReturn(mockReport);
+        when(reportService.getTaggedWeeklyReport(any(LocalDate.class)))
+                .thenReturn(new TaggedReport<>(mockReport, "abc123"));
 
         mockMvc.perform(get("/api/reports/weekly"))
                 .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"abc123\""))
                 .andExpect(content()
                         .contentType(Objects.requireNonNull(org.springframework.http.MediaType.APPLICATION_JSON)));
     }
 
+    @Test
+    @WithMockUser
+    void getWeeklyReport_withMatchingETag_shouldReturnNotModified() throws Exception {
+        WeeklyReportDTO mockReport = new WeeklyReportDTO(0, 0, 0, Collections.emptyList());
+        when(reportService.getTaggedWeeklyReport(any(LocalDate.class)))
+                .thenReturn(new TaggedReport<>(mockReport, "abc123"));
+
+        mockMvc.perform(get("/api/reports/weekly").header("If-None-Match", "\"abc123\""))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+    }
+
     @Test
     @WithMockUser
     void getMonthlyReport_shouldReturnOk() throws Exception {
         MonthlyReportDTO mockReport = new MonthlyReportDTO(0, 0, List.of(new WeeklyReportItem("Week 1", 0)));
-        when(reportService.getMonthlyReport(any(LocalDate.class))).thenReturn(mockReport);
+        when(reportService.getTaggedMonthlyReport(any(LocalDate.class)))
+                .thenReturn(new TaggedReport<>(mockReport, "def456"));
 
         mockMvc.perform(get("/api/reports/monthly"))
                 .andExpect(status().isOk())
@@ -61,14 +93,138 @@ class ReportControllerTest extends TestJwtDynamicProps {
 
     @Test
     @WithMockUser
-    void exportReport_shouldReturnCsv() throws Exception {
-        when(reportService.exportReport(any(LocalDate.class), any(LocalDate.class))).thenReturn("header\ndata");
+    void getRangeReport_withoutBucket_shouldDefaultToDays() throws Exception {
+        LocalDate from = LocalDate.of(2023, 10, 1);
+        RangeTotalsItem total = new RangeTotalsItem(from, from, 1, 8.0, 8.0, 0.5);
+        when(reportService.getRangeReport(from, from, "day")).thenReturn(new RangeReportDTO(total, List.of(total)));
+
+        mockMvc.perform(get("/api/reports/range")
+                .param("from", "2023-10-01")
+                .param("to", "2023-10-01"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.total.nights").value(1))
+                .andExpect(jsonPath("$.buckets[0].deviationFromTarget").value(0.5));
+    }
+
+    @Test
+    @WithMockUser
+    void getRangeReport_withUnknownBucket_shouldReturnBadRequest() throws Exception {
+        when(reportService.getRangeReport(any(LocalDate.class), any(LocalDate.class), eq("year")))
+                .thenThrow(new IllegalArgumentException("Bucket must be one of day, week or month."));
 
-        mockMvc.perform(get("/api/reports/export")
+        mockMvc.perform(get("/api/reports/range")
+                .param("from", "2023-10-01")
+                .param("to", "2023-10-31")
+                .param("bucket", "year"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @WithMockUser
+    void getYearReport_byDefault_shouldReturnJsonArrays() throws Exception {
+        LocalDate start = LocalDate.of(2023, 1, 1);
+        when(reportService.getYearReport(LocalDate.of(2023, 12, 31))).thenReturn(new YearReportDTO(start,
+                new int[] {725, YearReportDTO.MISSING}, new int[] {25, YearReportDTO.MISSING}, new int[] {0, -1}));
+
+        mockMvc.perform(get("/api/reports/year").param("to", "2023-12-31").header("Accept", "*/*"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(org.springframework.http.MediaType.APPLICATION_JSON))
+                .andExpect(jsonPath("$.startDate").value("2023-01-01"))
+                .andExpect(jsonPath("$.hours[0]").value(725))
+                .andExpect(jsonPath("$.hours[1]").value(-1));
+    }
+
+    @Test
+    @WithMockUser
+    void getYearReport_acceptingOctetStream_shouldReturnPackedBytes() throws Exception {
+        LocalDate start = LocalDate.of(2023, 1, 1);
+        when(reportService.getYearReport(any(LocalDate.class))).thenReturn(new YearReportDTO(start,
+                new int[] {725, YearReportDTO.MISSING}, new int[] {25, YearReportDTO.MISSING}, new int[] {0, -1}));
+
+        byte[] body = mockMvc.perform(get("/api/reports/year").header("Accept", "application/octet-stream"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(org.springframework.http.MediaType.APPLICATION_OCTET_STREAM))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        assertEquals(4 * (2 + 3 * 2), body.length);
+        assertEquals(start.toEpochDay(), buffer.getInt());
+        assertEquals(2, buffer.getInt());
+        assertEquals(725, buffer.getInt());
+        assertEquals(YearReportDTO.MISSING, buffer.getInt());
+        assertEquals(25, buffer.getInt());
+    }
+
+    @Test
+    @WithMockUser
+    void exportReport_shouldStreamCsv() throws Exception {
+        when(reportService.exportReport(any(LocalDate.class), any(LocalDate.class)))
+                .thenReturn(out -> out.write("header\ndata".getBytes(StandardCharsets.UTF_8)));
+
+        MvcResult result = mockMvc.perform(get("/api/reports/export")
                 .param("from", "2023-10-01")
                 .param("to", "2023-10-31"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
                 .andExpect(status().isOk())
                 .andExpect(header().string("Content-Disposition", "attachment; filename=sleep_report.csv"))
-                .andExpect(content().contentType("text/csv"));
+                .andExpect(header().doesNotExist("Content-Encoding"))
+                .andExpect(content().contentType("text/csv"))
+                .andExpect(content().string("header\ndata"));
+    }
+
+    @Test
+    @WithMockUser
+    void exportReport_acceptingGzip_shouldCompressBody() throws Exception {
+        when(reportService.exportReport(any(LocalDate.class), any(LocalDate.class)))
+                .thenReturn(out -> out.write("header\ndata".getBytes(StandardCharsets.UTF_8)));
+
+        MvcResult result = mockMvc.perform(get("/api/reports/export")
+                .param("from", "2023-10-01")
+                .param("to", "2023-10-31")
+                .header("Accept-Encoding", "gzip, deflate"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        byte[] body = mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Encoding", "gzip"))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            assertEquals("header\ndata", new String(gzip.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    @WithMockUser
+    void exportReport_spanningDecades_shouldStreamEveryRowWithinConfiguredTimeout() throws Exception {
+        LocalDate from = LocalDate.of(1995, 1, 1);
+        LocalDate to = LocalDate.of(2024, 12, 31);
+        when(reportService.exportReport(from, to)).thenReturn(out -> {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            writer.write("Date,Hours Slept,Sleep Debt,Sleep Surplus\n");
+            for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+                writer.write(date + ",7.50,0.00,0.00\n");
+            }
+            writer.flush();
+        });
+
+        MvcResult result = mockMvc.perform(get("/api/reports/export")
+                .param("from", from.toString())
+                .param("to", to.toString()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        // The container default of 30 seconds would cut off a long export to a slow client
+        assertEquals(Duration.ofMinutes(10).toMillis(), result.getRequest().getAsyncContext().getTimeout());
+
+        String body = mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString(StandardCharsets.UTF_8);
+        long nights = ChronoUnit.DAYS.between(from, to) + 1;
+        assertEquals(nights + 1, body.lines().count());
+        assertTrue(body.endsWith(to + ",7.50,0.00,0.00\n"));
     }
 }
@@ -10,6 +10,7 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
@@ -17,6 +18,9 @@ import org.svlahov.sleepcalc.exception.RestExceptionHandler;
 import org.svlahov.sleepcalc.service.SleepService;
 import org.svlahov.sleepcalc.service.SleepService.SleepState;
 import org.svlahov.sleepcalc.service.SleepService.SleepHistoryEntry;
+import org.svlahov.sleepcalc.service.SleepService.SleepHistoryPage;
+import org.svlahov.sleepcalc.service.SleepService.SleepImportResult;
+import org.svlahov.sleepcalc.service.SleepService.SleepRecord;
 
 import java.time.LocalDate;
 import java.util.List;
@@ -28,6 +32,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -149,4 +154,94 @@ class SleepControllerTest {
 
                 Mockito.verify(sleepService).getSleepHistory(eq(from), eq(to));
         }
-}
\ No newline at end of file
+
+        @Test
+        @DisplayName("GET /api/sleep/history/page should return entries and the next cursor")
+        void getSleepHistoryPage_shouldReturnEntriesAndCursor() throws Exception {
+                LocalDate before = LocalDate.now().minusDays(10);
+                when(sleepService.getSleepHistoryPage(null, before, 1)).thenReturn(new SleepHistoryPage(
+                                List.of(new SleepHistoryEntry(before.minusDays(1), 7.0, 0.5, 0.0)), "next"));
+
+                mockMvc.perform(get("/api/sleep/history/page")
+                                .param("before", before.toString())
+                                .param("limit", "1"))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.entries", requireNonNull(hasSize(1))))
+                                .andExpect(jsonPath("$.nextCursor", requireNonNull(is("next"))));
+        }
+
+        @Test
+        @DisplayName("POST /api/sleep/import should hand the CSV body to the service")
+        void importSleep_shouldReturnImportResult() throws Exception {
+                when(sleepService.importSleep(any())).thenReturn(
+                                new SleepImportResult(2, testDate.minusDays(1), testDate, true));
+
+                mockMvc.perform(post("/api/sleep/import")
+                                .contentType(requireNonNull(MediaType.parseMediaType("text/csv")))
+                                .content("Date,Hours Slept,Sleep Debt,Sleep Surplus\n"))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.nights", requireNonNull(is(2))))
+                                .andExpect(jsonPath("$.recalculationPending", requireNonNull(is(true))));
+        }
+
+        @Test
+        @DisplayName("POST /api/sleep/bulk should pass every item to the service in one call")
+        void recordSleepBulk_shouldCallServiceOnce() throws Exception {
+                SleepController.SleepInput first = new SleepController.SleepInput();
+                first.setTimeSlept("8:30");
+                first.setDate(testDate.minusDays(1));
+                SleepController.SleepInput second = new SleepController.SleepInput();
+                second.setTimeSlept("6:00");
+                second.setDate(testDate);
+
+                List<SleepRecord> expectedRecords = List.of(
+                                new SleepRecord("8:30", testDate.minusDays(1)),
+                                new SleepRecord("6:00", testDate));
+                when(sleepService.recordSleep(eq(expectedRecords))).thenReturn(new SleepState(0.5, 0.0));
+
+                mockMvc.perform(post("/api/sleep/bulk")
+                                .contentType(requireNonNull(MediaType.APPLICATION_JSON))
+                                .content(requireNonNull(objectMapper.writeValueAsString(List.of(first, second)))))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.sleepDebt", requireNonNull(is(0.5))))
+                                .andExpect(jsonPath("$.sleepSurplus", requireNonNull(is(0.0))));
+
+                Mockito.verify(sleepService).recordSleep(eq(expectedRecords));
+        }
+
+        @Test
+        @DisplayName("DELETE /api/sleep should remove the night and return the current state")
+        void deleteSleep_shouldReturnCurrentState() throws Exception {
+                when(sleepService.deleteSleep(testDate)).thenReturn(new SleepState(1.5, 0.0, true));
+
+                mockMvc.perform(delete("/api/sleep").param("date", testDate.toString()))
+                                .andExpect(status().isOk())
+                                .andExpect(jsonPath("$.sleepDebt", requireNonNull(is(1.5))))
+                                .andExpect(jsonPath("$.recalculationPending", requireNonNull(is(true))));
+        }
+
+        @Test
+        @DisplayName("DELETE /api/sleep should return 400 for a night that was never recorded")
+        void deleteSleep_withoutEntry_returnsBadRequest() throws Exception {
+                when(sleepService.deleteSleep(testDate))
+                                .thenThrow(new IllegalArgumentException("No sleep entry is recorded for " + testDate + "."));
+
+                mockMvc.perform(delete("/api/sleep").param("date", testDate.toString()))
+                                .andExpect(status().isBadRequest());
+        }
+
+        @Test
+        @DisplayName("POST /api/sleep should return 409 when another instance appended for the user at the same time")
+        void recordSleep_withConcurrentAppend_returnsConflict() throws Exception {
+                SleepController.SleepInput sleepInput = new SleepController.SleepInput();
+                sleepInput.setTimeSlept("8:30");
+                sleepInput.setDate(testDate);
+                when(sleepService.recordSleep(eq("8:30"), eq(testDate)))
+                                .thenThrow(new OptimisticLockingFailureException("Sleep events of user 1 were appended concurrently"));
+
+                mockMvc.perform(post("/api/sleep")
+                                .contentType(requireNonNull(MediaType.APPLICATION_JSON))
+                                .content(requireNonNull(objectMapper.writeValueAsString(sleepInput))))
+                                .andExpect(status().isConflict());
+        }
+}
@@ -1,11 +1,15 @@
 package org.svlahov.sleepcalc.repository;
 
+import org.hibernate.Session;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
 import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.data.domain.Limit;
+import org.svlahov.sleepcalc.dto.DailyDelta;
+import org.svlahov.sleepcalc.dto.SleepDataRow;
 import org.svlahov.sleepcalc.entity.SleepData;
 import org.svlahov.sleepcalc.entity.User;
 
@@ -113,4 +117,134 @@ public class SleepDataRepositoryTest {
         assertTrue(result.stream().anyMatch(d -> d.getSleepDate().equals(today)));
         assertFalse(result.stream().anyMatch(d -> d.getSleepDate().equals(lastMonth)), "Should not contain entry from last month");
     }
-}
\ No newline at end of file
+
+    @Test
+    @DisplayName("findRecentRows should return the latest rows as unmanaged projections")
+    void findRecentRows_shouldReturnLatestRowsWithoutManagingThem() {
+        for (int i = 1; i <= 6; i++) {
+            persistSleepData(LocalDate.now().minusDays(i), new BigDecimal("7.0"), new BigDecimal("0.5").multiply(
+                    BigDecimal.valueOf(i)), BigDecimal.ZERO);
+        }
+        entityManager.clear();
+
+        List<SleepDataRow> rows = sleepDataRepository.findRecentRows(testUser.getId(), Limit.of(5));
+
+        assertEquals(5, rows.size());
+        assertEquals(LocalDate.now().minusDays(1), rows.get(0).sleepDate());
+        assertEquals(LocalDate.now().minusDays(5), rows.get(4).sleepDate());
+        assertEquals(0, new BigDecimal("2.5").compareTo(rows.get(4).sleepDebt()));
+        assertEquals(0, entityManager.getEntityManager().unwrap(Session.class).getStatistics().getEntityCount(),
+                "Projections should not be added to the persistence context");
+    }
+
+    @Test
+    @DisplayName("findRowsBetween should return the rows within range in date order")
+    void findRowsBetween_shouldReturnRowsInDateOrder() {
+        LocalDate today = LocalDate.now();
+        persistSleepData(today, new BigDecimal("8.0"), BigDecimal.ZERO, BigDecimal.ZERO);
+        persistSleepData(today.minusDays(2), new BigDecimal("6.0"), BigDecimal.ZERO, BigDecimal.ZERO);
+        persistSleepData(today.minusMonths(1), new BigDecimal("5.0"), BigDecimal.ZERO, BigDecimal.ZERO);
+
+        List<SleepDataRow> rows = sleepDataRepository.findRowsBetween(testUser.getId(), today.minusDays(2), today);
+
+        assertEquals(List.of(today.minusDays(2), today), rows.stream().map(SleepDataRow::sleepDate).toList());
+    }
+
+    @Test
+    @DisplayName("findRowsBefore should return the newest rows strictly before the given date")
+    void findRowsBefore_shouldSeekPastCursorDate() {
+        LocalDate today = LocalDate.now();
+        for (int i = 0; i < 5; i++) {
+            persistSleepData(today.minusDays(i), new BigDecimal("7.0"), BigDecimal.ZERO, BigDecimal.ZERO);
+        }
+
+        List<SleepDataRow> rows = sleepDataRepository.findRowsBefore(testUser.getId(), today.minusDays(1),
+                Limit.of(2));
+
+        assertEquals(List.of(today.minusDays(2), today.minusDays(3)),
+                rows.stream().map(SleepDataRow::sleepDate).toList());
+    }
+
+    @Test
+    @DisplayName("upsert should insert a night that is not stored yet")
+    void upsert_withNewNight_inserts() {
+        LocalDate night = LocalDate.now().minusDays(1);
+
+        boolean written = sleepDataRepository.upsert(
+                new SleepData(testUser, night, new BigDecimal("6.0"), new BigDecimal("1.5"), BigDecimal.ZERO));
+        entityManager.clear();
+
+        assertTrue(written);
+        SleepData stored = sleepDataRepository.findByUser_UsernameAndSleepDate("testuser", night).orElseThrow();
+        assertNotNull(stored.getId());
+        assertEquals(0, new BigDecimal("1.5").compareTo(stored.getSleepDebt()));
+    }
+
+    @Test
+    @DisplayName("upsert should overwrite the stored night instead of adding a second row")
+    void upsert_withStoredNight_updatesInPlace() {
+        LocalDate night = LocalDate.now().minusDays(1);
+        SleepData existing = persistSleepData(night, new BigDecimal("6.0"), new BigDecimal("1.5"), BigDecimal.ZERO);
+        entityManager.clear();
+
+        boolean written = sleepDataRepository.upsert(
+                new SleepData(testUser, night, new BigDecimal("8.0"), BigDecimal.ZERO, new BigDecimal("0.5")));
+        entityManager.clear();
+
+        assertTrue(written);
+        List<SleepData> stored = sleepDataRepository.findByUser_UsernameAndSleepDateBetween("testuser", night, night);
+        assertEquals(1, stored.size());
+        assertEquals(existing.getId(), stored.get(0).getId());
+        assertEquals(0, new BigDecimal("8.0").compareTo(stored.get(0).getHoursSlept()));
+        assertEquals(existing.getVersion() + 1, stored.get(0).getVersion());
+    }
+
+    @Test
+    @DisplayName("upsert should report no write when the stored night already has the same values")
+    void upsert_withUnchangedNight_writesNothing() {
+        LocalDate night = LocalDate.now().minusDays(1);
+        persistSleepData(night, new BigDecimal("6.0"), new BigDecimal("1.5"), BigDecimal.ZERO);
+        entityManager.clear();
+
+        // Same values at a different scale
+        boolean written = sleepDataRepository.upsert(
+                new SleepData(testUser, night, new BigDecimal("6"), new BigDecimal("1.500"), BigDecimal.ZERO));
+
+        assertFalse(written);
+    }
+
+    @Test
+    @DisplayName("findDailyDeltas should diff each night against the entry stored before it, even outside the range")
+    void findDailyDeltas_shouldDiffAgainstPreviousStoredEntry() {
+        LocalDate monday = LocalDate.of(2024, 4, 1);
+        persistSleepData(monday.minusDays(10), new BigDecimal("6.5"), new BigDecimal("1.0"), BigDecimal.ZERO);
+        // Last entry before the range, after a gap
+        persistSleepData(monday.minusDays(3), new BigDecimal("6.0"), new BigDecimal("2.5"), BigDecimal.ZERO);
+        persistSleepData(monday, new BigDecimal("9.0"), new BigDecimal("1.0"), BigDecimal.ZERO);
+        persistSleepData(monday.plusDays(2), new BigDecimal("9.5"), BigDecimal.ZERO, new BigDecimal("1.0"));
+        persistSleepData(monday.plusDays(7), new BigDecimal("5.0"), new BigDecimal("2.5"), BigDecimal.ZERO);
+
+        List<DailyDelta> deltas = sleepDataRepository.findDailyDeltas(testUser.getId(), monday, monday.plusDays(6));
+
+        assertEquals(2, deltas.size());
+        assertEquals(monday, deltas.get(0).sleepDate());
+        assertEquals(0, new BigDecimal("9.0").compareTo(deltas.get(0).hoursSlept()));
+        assertEquals(0, new BigDecimal("-1.5").compareTo(deltas.get(0).debtChange()));
+        assertEquals(0, BigDecimal.ZERO.compareTo(deltas.get(0).surplusChange()));
+        assertEquals(monday.plusDays(2), deltas.get(1).sleepDate());
+        assertEquals(0, new BigDecimal("-1.0").compareTo(deltas.get(1).debtChange()));
+        assertEquals(0, new BigDecimal("1.0").compareTo(deltas.get(1).surplusChange()));
+    }
+
+    @Test
+    @DisplayName("findDailyDeltas should measure the first ever entry against zero")
+    void findDailyDeltas_forFirstEntry_diffsAgainstZero() {
+        LocalDate night = LocalDate.of(2024, 4, 1);
+        persistSleepData(night, new BigDecimal("6.0"), new BigDecimal("1.5"), BigDecimal.ZERO);
+
+        List<DailyDelta> deltas = sleepDataRepository.findDailyDeltas(testUser.getId(), night, night);
+
+        assertEquals(1, deltas.size());
+        assertEquals(0, new BigDecimal("1.5").compareTo(deltas.get(0).debtChange()));
+    }
+}
@@ -0,0 +1,84 @@
+package org.svlahov.sleepcalc.repository;
+
+import org.hibernate.Session;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.svlahov.sleepcalc.entity.User;
+
+import java.sql.BatchUpdateException;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+public class SleepEventAppendRepositoryTest {
+
+    private static final String INSERT_EVENT = """
+            INSERT INTO sleep_events (user_id, sequence_number, sleep_date, event_type, hours_slept, recorded_at)
+            VALUES (?, ?, ?, 'RECORDED', 7.5, ?)
+            """;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    private User testUser;
+
+    @BeforeEach
+    void setup() {
+        testUser = new User("testuser", "password");
+        entityManager.persistAndFlush(testUser);
+    }
+
+    @Test
+    @DisplayName("isUniqueViolation should recognize a sequence number another instance already took")
+    void isUniqueViolation_withDuplicateSequenceNumber_returnsTrue() {
+        // What a second instance's MAX + 1 runs into: the number is taken by the time it inserts
+        SQLException duplicate = entityManager.getEntityManager().unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement insert = connection.prepareStatement(INSERT_EVENT)) {
+                for (int i = 0; i < 2; i++) {
+                    insert.setLong(1, testUser.getId());
+                    insert.setLong(2, 1L);
+                    insert.setDate(3, Date.valueOf(LocalDate.of(2025, 9, 1)));
+                    insert.setTimestamp(4, Timestamp.valueOf(LocalDateTime.now()));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                return null;
+            } catch (SQLException e) {
+                return e;
+            }
+        });
+
+        assertNotNull(duplicate);
+        assertTrue(SleepEventAppendRepositoryImpl.isUniqueViolation(duplicate));
+        OptimisticLockingFailureException conflict = SleepEventAppendRepositoryImpl
+                .concurrentAppend(testUser.getId(), duplicate);
+        assertSame(duplicate, conflict.getCause());
+    }
+
+    @Test
+    @DisplayName("isUniqueViolation should find the violation chained behind a failed batch")
+    void isUniqueViolation_withChainedViolation_returnsTrue() {
+        BatchUpdateException batch = new BatchUpdateException("Batch entry 0 failed", "57014", new int[0]);
+        batch.setNextException(new SQLException("duplicate key value", "23505"));
+
+        assertTrue(SleepEventAppendRepositoryImpl.isUniqueViolation(batch));
+    }
+
+    @Test
+    @DisplayName("isUniqueViolation should leave other failures alone")
+    void isUniqueViolation_withOtherFailure_returnsFalse() {
+        assertFalse(SleepEventAppendRepositoryImpl.isUniqueViolation(
+                new SQLException("value too long", "22001")));
+    }
+}
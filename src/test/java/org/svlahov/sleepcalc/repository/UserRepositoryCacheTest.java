@@ -0,0 +1,94 @@
+package org.svlahov.sleepcalc.repository;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.test.context.ActiveProfiles;
+import org.svlahov.sleepcalc.config.JwtService;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.service.AuthService;
+import org.svlahov.sleepcalc.support.TestJwtDynamicProps;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class UserRepositoryCacheTest extends TestJwtDynamicProps {
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private AuthService authService;
+
+    @Autowired
+    private JwtService jwtService;
+
+    @Autowired
+    private PasswordEncoder passwordEncoder;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Statistics statistics;
+
+    @BeforeEach
+    void setUp() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @Test
+    @DisplayName("findByUsername: Repeated lookups should be answered from the second-level cache")
+    void findByUsername_repeatedLookups_areAnsweredFromCache() {
+        User registered = authService.register("l2-cached-user", "password123");
+        try {
+            userRepository.findByUsername("l2-cached-user").orElseThrow();
+            statistics.clear();
+
+            for (int i = 0; i < 3; i++) {
+                assertEquals(registered.getId(), userRepository.findByUsername("l2-cached-user").orElseThrow().getId());
+            }
+
+            assertEquals(0, statistics.getNaturalIdQueryExecutionCount());
+            assertEquals(3, statistics.getNaturalIdCacheHitCount());
+            assertEquals(0, statistics.getEntityLoadCount());
+            assertEquals(3, statistics.getDomainDataRegionStatistics(User.CACHE_REGION).getHitCount());
+        } finally {
+            userRepository.delete(registered);
+        }
+    }
+
+    @Test
+    @DisplayName("findByUsername: After a password reset the new password should be returned")
+    void findByUsername_afterResetPassword_returnsNewPassword() {
+        User registered = authService.register("l2-reset-user", "old-password");
+        try {
+            // Make sure the old row is cached
+            userRepository.findByUsername("l2-reset-user").orElseThrow();
+
+            authService.resetPassword(jwtService.generatePasswordResetToken("l2-reset-user"), "new-password");
+
+            User user = userRepository.findByUsername("l2-reset-user").orElseThrow();
+            assertTrue(passwordEncoder.matches("new-password", user.getPassword()));
+        } finally {
+            userRepository.deleteById(registered.getId());
+        }
+    }
+
+    @Test
+    @DisplayName("findByUsername: A deleted user should no longer be found")
+    void findByUsername_afterDelete_isEmpty() {
+        User registered = authService.register("l2-deleted-user", "password123");
+        userRepository.findByUsername("l2-deleted-user").orElseThrow();
+
+        userRepository.delete(registered);
+
+        assertTrue(userRepository.findByUsername("l2-deleted-user").isEmpty());
+    }
+}
@@ -0,0 +1,136 @@
+package org.svlahov.sleepcalc.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.svlahov.sleepcalc.dto.DashboardDTO;
+import org.svlahov.sleepcalc.dto.MonthlyReportDTO;
+import org.svlahov.sleepcalc.dto.WeeklyReportDTO;
+import org.svlahov.sleepcalc.exception.DeadlineExceededException;
+import org.svlahov.sleepcalc.service.SleepService.SleepHistoryEntry;
+import org.svlahov.sleepcalc.service.SleepService.SleepState;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class DashboardServiceTest {
+
+    private static final LocalDate DATE = LocalDate.of(2023, 10, 27);
+
+    @Mock
+    private SleepService sleepService;
+
+    @Mock
+    private ReportService reportService;
+
+    private DashboardServiceImpl dashboardService;
+
+    @BeforeEach
+    void setUp() {
+        dashboardService = new DashboardServiceImpl(sleepService, reportService, Duration.ofSeconds(5), 4);
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken("testuser", null, List.of()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        dashboardService.shutdown();
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    @DisplayName("getDashboard: The four reads should run concurrently with the caller's authentication")
+    void getDashboard_runsReadsConcurrentlyWithCallersAuthentication() {
+        // Every read waits for all four to have started, so this only completes if they overlap
+        CountDownLatch started = new CountDownLatch(4);
+        SleepState state = new SleepState(1.5, 0);
+        List<SleepHistoryEntry> history = List.of(new SleepHistoryEntry(DATE, 8, 0, 0.5));
+        WeeklyReportDTO weeklyReport = new WeeklyReportDTO(0, 0.5, 0, List.of());
+        MonthlyReportDTO monthlyReport = new MonthlyReportDTO(8, 0, List.of());
+        when(sleepService.getCurrentSleepState()).thenAnswer(invocation -> overlapping(started, state));
+        when(sleepService.getSleepHistory()).thenAnswer(invocation -> overlapping(started, history));
+        when(reportService.getWeeklyReport(DATE)).thenAnswer(invocation -> overlapping(started, weeklyReport));
+        when(reportService.getMonthlyReport(DATE)).thenAnswer(invocation -> overlapping(started, monthlyReport));
+
+        DashboardDTO dashboard = dashboardService.getDashboard(DATE);
+
+        assertEquals(state, dashboard.state());
+        assertEquals(history, dashboard.history());
+        assertEquals(weeklyReport, dashboard.weeklyReport());
+        assertEquals(monthlyReport, dashboard.monthlyReport());
+    }
+
+    @Test
+    @DisplayName("getDashboard: A slow read should fail the dashboard at the deadline")
+    void getDashboard_slowRead_failsAtDeadline() {
+        dashboardService.shutdown();
+        dashboardService = new DashboardServiceImpl(sleepService, reportService, Duration.ofMillis(100), 4);
+        when(sleepService.getCurrentSleepState()).thenAnswer(invocation -> {
+            Thread.sleep(10_000);
+            return new SleepState(0, 0);
+        });
+
+        long start = System.nanoTime();
+        assertThrows(DeadlineExceededException.class, () -> dashboardService.getDashboard(DATE));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    @DisplayName("getDashboard: No more reads than permitted should run at once")
+    void getDashboard_runsNoMoreReadsThanPermitted() {
+        dashboardService.shutdown();
+        dashboardService = new DashboardServiceImpl(sleepService, reportService, Duration.ofSeconds(5), 2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger mostRunning = new AtomicInteger();
+        when(sleepService.getCurrentSleepState()).thenAnswer(invocation -> counted(running, mostRunning,
+                new SleepState(0, 0)));
+        when(sleepService.getSleepHistory()).thenAnswer(invocation -> counted(running, mostRunning, List.of()));
+        when(reportService.getWeeklyReport(DATE)).thenAnswer(invocation -> counted(running, mostRunning,
+                new WeeklyReportDTO(0, 0, 0, List.of())));
+        when(reportService.getMonthlyReport(DATE)).thenAnswer(invocation -> counted(running, mostRunning,
+                new MonthlyReportDTO(0, 0, List.of())));
+
+        dashboardService.getDashboard(DATE);
+
+        assertTrue(mostRunning.get() <= 2, "More reads ran at once than there are permits");
+    }
+
+    @Test
+    @DisplayName("getDashboard: A failed read should rethrow its own exception")
+    void getDashboard_failedRead_rethrowsItsException() {
+        when(reportService.getWeeklyReport(DATE)).thenThrow(new IllegalArgumentException("bad date"));
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> dashboardService.getDashboard(DATE));
+        assertEquals("bad date", e.getMessage());
+    }
+
+    private <T> T counted(AtomicInteger running, AtomicInteger mostRunning, T result) throws InterruptedException {
+        mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        Thread.sleep(50);
+        running.decrementAndGet();
+        return result;
+    }
+
+    private <T> T overlapping(CountDownLatch started, T result) throws InterruptedException {
+        assertEquals("testuser", SecurityContextHolder.getContext().getAuthentication().getName());
+        assertTrue(Thread.currentThread().isVirtual());
+        started.countDown();
+        assertTrue(started.await(5, TimeUnit.SECONDS), "Reads did not run concurrently");
+        return result;
+    }
+}
@@ -0,0 +1,70 @@
+package org.svlahov.sleepcalc.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.svlahov.sleepcalc.service.DebtEngine.DebtState;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DebtEngineDifferentialTest {
+
+    private static final int HISTORIES = 200;
+    private static final int NIGHTS_PER_HISTORY = 1_000;
+
+    private final DebtEngine bigDecimalEngine = new BigDecimalDebtEngine();
+    private final DebtEngine fixedPointEngine = new FixedPointDebtEngine();
+
+    @Test
+    @DisplayName("Fixed-point engine should match the BigDecimal engine over randomized histories")
+    void fold_overRandomHistories_matchesBigDecimalEngine() {
+        Random random = new Random(20240101L);
+
+        for (int history = 0; history < HISTORIES; history++) {
+            DebtState start = new DebtState(randomHours(random, 2_500), randomHours(random, 500));
+            List<BigDecimal> nights = new ArrayList<>(NIGHTS_PER_HISTORY);
+            for (int night = 0; night < NIGHTS_PER_HISTORY; night++) {
+                nights.add(randomHours(random, 1_400));
+            }
+
+            List<DebtState> expected = bigDecimalEngine.fold(start, nights);
+            List<DebtState> actual = fixedPointEngine.fold(start, nights);
+
+            assertEquals(expected.size(), actual.size());
+            for (int night = 0; night < NIGHTS_PER_HISTORY; night++) {
+                assertSameState(expected.get(night), actual.get(night),
+                        "history " + history + ", night " + night);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Fixed-point engine should match the BigDecimal engine night by night")
+    void next_fromRandomStates_matchesBigDecimalEngine() {
+        Random random = new Random(42L);
+
+        for (int i = 0; i < 100_000; i++) {
+            DebtState previous = new DebtState(randomHours(random, 4_000), randomHours(random, 1_000));
+            BigDecimal hours = randomHours(random, 1_400);
+
+            assertSameState(bigDecimalEngine.next(previous, hours), fixedPointEngine.next(previous, hours),
+                    previous + " + " + hours);
+        }
+    }
+
+    // Hours with two decimals, as parsed from user input and stored in the database
+    private BigDecimal randomHours(Random random, int maxHundredths) {
+        return BigDecimal.valueOf(random.nextInt(maxHundredths + 1), 2);
+    }
+
+    private void assertSameState(DebtState expected, DebtState actual, String context) {
+        assertEquals(0, expected.sleepDebt().compareTo(actual.sleepDebt()),
+                () -> "debt differs at " + context + ": " + expected + " vs " + actual);
+        assertEquals(0, expected.sleepSurplus().compareTo(actual.sleepSurplus()),
+                () -> "surplus differs at " + context + ": " + expected + " vs " + actual);
+    }
+}
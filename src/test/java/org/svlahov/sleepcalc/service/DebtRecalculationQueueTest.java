@@ -0,0 +1,136 @@
+package org.svlahov.sleepcalc.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.DebtWatermarkRepository;
+import org.svlahov.sleepcalc.repository.SleepEventRepository;
+import org.svlahov.sleepcalc.repository.UserRepository;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class DebtRecalculationQueueTest {
+
+    @Mock
+    private SleepEventProjector sleepEventProjector;
+
+    @Mock
+    private DebtRecalculationService debtRecalculationService;
+
+    @Mock
+    private SleepEventRepository sleepEventRepository;
+
+    @Mock
+    private DebtWatermarkRepository debtWatermarkRepository;
+
+    @Mock
+    private UserRepository userRepository;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private DebtRecalculationQueue queue;
+
+    private User user;
+
+    @BeforeEach
+    void setUp() {
+        queue = new DebtRecalculationQueue(sleepEventProjector, debtRecalculationService, sleepEventRepository,
+                debtWatermarkRepository, userRepository, new UserWriteLocks(64), meterRegistry, 2);
+        user = new User("queued-user", "password");
+        user.setId(1L);
+        when(userRepository.findById(1L)).thenReturn(Optional.of(user));
+    }
+
+    @AfterEach
+    void tearDown() {
+        queue.shutdown();
+    }
+
+    @Test
+    @DisplayName("enqueue: Writes during a running recalculation should coalesce into one more pass")
+    void enqueue_whileRecalculating_coalescesIntoOneMorePass() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(debtRecalculationService.refreshNextInterval(user))
+                .thenAnswer(invocation -> {
+                    started.countDown();
+                    release.await(5, TimeUnit.SECONDS);
+                    return false;
+                })
+                .thenReturn(false);
+
+        queue.enqueue(user);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // Three more edits while the first pass is running
+        queue.enqueue(user);
+        queue.enqueue(user);
+        queue.enqueue(user);
+        assertEquals(1, queue.backlog());
+        assertEquals(1.0, meterRegistry.get("sleep.recalculation.backlog").gauge().value());
+
+        release.countDown();
+        awaitEmptyBacklog();
+
+        verify(debtRecalculationService, times(2)).refreshNextInterval(user);
+    }
+
+    @Test
+    @DisplayName("enqueue: Stale intervals should be refreshed one at a time until none remain")
+    void enqueue_withSeveralStaleIntervals_refreshesUntilCaughtUp() throws Exception {
+        when(debtRecalculationService.refreshNextInterval(user)).thenReturn(true, true, false);
+
+        queue.enqueue(user);
+        awaitEmptyBacklog();
+
+        verify(debtRecalculationService, times(3)).refreshNextInterval(user);
+    }
+
+    @Test
+    @DisplayName("enqueue: Appended events should be projected before stale debt is refreshed")
+    void enqueue_withAppendedEvents_projectsThemBeforeRefreshing() throws Exception {
+        when(sleepEventProjector.catchUpNextBatch(user)).thenReturn(500, 3, 0);
+        when(debtRecalculationService.refreshNextInterval(user)).thenReturn(false);
+
+        queue.enqueue(user);
+        awaitEmptyBacklog();
+
+        InOrder inOrder = inOrder(sleepEventProjector, debtRecalculationService);
+        inOrder.verify(sleepEventProjector, times(3)).catchUpNextBatch(user);
+        inOrder.verify(debtRecalculationService).refreshNextInterval(user);
+    }
+
+    @Test
+    @DisplayName("resumePending: Users whose event log is ahead of their checkpoint should be scheduled")
+    void resumePending_schedulesUsersWithUnprojectedEvents() throws Exception {
+        when(sleepEventRepository.findUserIdsWithUnprojectedEvents()).thenReturn(List.of(1L));
+        when(sleepEventProjector.catchUpNextBatch(user)).thenReturn(1, 0);
+
+        queue.resumePending();
+        awaitEmptyBacklog();
+
+        verify(sleepEventProjector, times(2)).catchUpNextBatch(user);
+    }
+
+    private void awaitEmptyBacklog() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (queue.backlog() > 0) {
+            assertTrue(System.nanoTime() < deadline, "Queue did not drain");
+            Thread.sleep(10);
+        }
+    }
+}
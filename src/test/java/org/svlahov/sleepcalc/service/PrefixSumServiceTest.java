@@ -0,0 +1,105 @@
+package org.svlahov.sleepcalc.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Transactional;
+import org.svlahov.sleepcalc.dto.CumulativeSleep;
+import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.SleepPrefixSumRepository;
+import org.svlahov.sleepcalc.repository.UserRepository;
+import org.svlahov.sleepcalc.support.TestJwtDynamicProps;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+@Transactional
+class PrefixSumServiceTest extends TestJwtDynamicProps {
+
+        private static final LocalDate FIRST_NIGHT = LocalDate.of(2024, 4, 1);
+
+        @Autowired
+        private PrefixSumService prefixSumService;
+
+        @Autowired
+        private SleepPrefixSumRepository sleepPrefixSumRepository;
+
+        @Autowired
+        private SleepDataRepository sleepDataRepository;
+
+        @Autowired
+        private UserRepository userRepository;
+
+        @Test
+        @DisplayName("rebuild: Should store running totals for every recorded night")
+        void rebuild_withExistingEntries_storesRunningTotals() {
+                User user = userRepository.save(new User("prefix-user", "password"));
+                sleepDataRepository.saveAll(List.of(
+                                entry(user, FIRST_NIGHT, "8.0"),
+                                entry(user, FIRST_NIGHT.plusDays(2), "6.5"),
+                                entry(user, FIRST_NIGHT.plusDays(3), "7.0")));
+
+                prefixSumService.rebuild(user);
+
+                assertCumulative(user, FIRST_NIGHT, FIRST_NIGHT, "8.0", 1);
+                // The gap is covered by the night before it
+                assertCumulative(user, FIRST_NIGHT.plusDays(1), FIRST_NIGHT, "8.0", 1);
+                assertCumulative(user, FIRST_NIGHT.plusDays(3), FIRST_NIGHT.plusDays(3), "21.5", 3);
+                assertTrue(sleepPrefixSumRepository.findLatestAtOrBefore(user.getId(), FIRST_NIGHT.minusDays(1))
+                                .isEmpty());
+        }
+
+        @Test
+        @DisplayName("refresh: Should shift every later total after a backdated or changed night")
+        void refresh_afterBackdatedAndChangedNights_matchesRebuild() {
+                User user = userRepository.save(new User("prefix-refresh-user", "password"));
+                SleepData first = sleepDataRepository.save(entry(user, FIRST_NIGHT, "8.0"));
+                sleepDataRepository.save(entry(user, FIRST_NIGHT.plusDays(5), "7.0"));
+                prefixSumService.refresh(user, List.of(FIRST_NIGHT, FIRST_NIGHT.plusDays(5)));
+
+                // A night inserted in between, and an earlier one corrected
+                sleepDataRepository.save(entry(user, FIRST_NIGHT.plusDays(2), "6.0"));
+                first.setHoursSlept(new BigDecimal("9.0"));
+                prefixSumService.refresh(user, List.of(FIRST_NIGHT.plusDays(2), FIRST_NIGHT));
+
+                assertCumulative(user, FIRST_NIGHT, FIRST_NIGHT, "9.0", 1);
+                assertCumulative(user, FIRST_NIGHT.plusDays(2), FIRST_NIGHT.plusDays(2), "15.0", 2);
+                assertCumulative(user, FIRST_NIGHT.plusDays(5), FIRST_NIGHT.plusDays(5), "22.0", 3);
+        }
+
+        @Test
+        @DisplayName("refresh: Should not touch other users' totals")
+        void refresh_forOneUser_leavesOtherUsersAlone() {
+                User user = userRepository.save(new User("prefix-owner", "password"));
+                User other = userRepository.save(new User("prefix-other", "password"));
+                sleepDataRepository.save(entry(other, FIRST_NIGHT.plusDays(1), "7.0"));
+                prefixSumService.refresh(other, List.of(FIRST_NIGHT.plusDays(1)));
+
+                sleepDataRepository.save(entry(user, FIRST_NIGHT, "8.0"));
+                prefixSumService.refresh(user, List.of(FIRST_NIGHT));
+
+                assertCumulative(other, FIRST_NIGHT.plusDays(1), FIRST_NIGHT.plusDays(1), "7.0", 1);
+        }
+
+        private SleepData entry(User user, LocalDate date, String hours) {
+                return new SleepData(user, date, new BigDecimal(hours), BigDecimal.ZERO, BigDecimal.ZERO);
+        }
+
+        private void assertCumulative(User user, LocalDate through, LocalDate expectedDate, String hours,
+                        int nights) {
+                CumulativeSleep cumulative = sleepPrefixSumRepository.findLatestAtOrBefore(user.getId(), through)
+                                .orElseThrow();
+                assertEquals(expectedDate, cumulative.sleepDate());
+                assertEquals(0, new BigDecimal(hours).compareTo(cumulative.hours()));
+                assertEquals(nights, cumulative.nights());
+        }
+}
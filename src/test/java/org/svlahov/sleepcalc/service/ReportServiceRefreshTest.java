@@ -0,0 +1,106 @@
+package org.svlahov.sleepcalc.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.svlahov.sleepcalc.dto.DailyReportItem;
+import org.svlahov.sleepcalc.dto.WeeklyReportDTO;
+import org.svlahov.sleepcalc.entity.DebtWatermark;
+import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.DebtWatermarkRepository;
+import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.SleepPrefixSumRepository;
+import org.svlahov.sleepcalc.repository.UserRepository;
+import org.svlahov.sleepcalc.repository.WeeklySleepRollupRepository;
+import org.svlahov.sleepcalc.support.TestJwtDynamicProps;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Not transactional on purpose: reports are only cached outside a transaction.
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+@WithMockUser(username = "weekly-refresh-user")
+class ReportServiceRefreshTest extends TestJwtDynamicProps {
+
+        // A Monday
+        private static final LocalDate WEEK_START = LocalDate.of(2025, 9, 1);
+
+        @Autowired
+        private ReportService reportService;
+
+        @Autowired
+        private SleepDataRepository sleepDataRepository;
+
+        @Autowired
+        private DebtWatermarkRepository debtWatermarkRepository;
+
+        @Autowired
+        private WeeklySleepRollupRepository weeklySleepRollupRepository;
+
+        @Autowired
+        private SleepPrefixSumRepository sleepPrefixSumRepository;
+
+        @Autowired
+        private UserRepository userRepository;
+
+        @Autowired
+        private PlatformTransactionManager transactionManager;
+
+        private User user;
+
+        @BeforeEach
+        void setUp() {
+                user = userRepository.save(new User("weekly-refresh-user", "password"));
+
+                // Sunday is correct; 7h on Monday to Wednesday should add 0.5 debt each, but the
+                // stored values were never recalculated
+                sleepDataRepository.saveAll(List.of(
+                                new SleepData(user, WEEK_START.minusDays(1), new BigDecimal("7.5"), BigDecimal.ZERO,
+                                                BigDecimal.ZERO),
+                                new SleepData(user, WEEK_START, new BigDecimal("7.0"), BigDecimal.ZERO,
+                                                BigDecimal.ZERO),
+                                new SleepData(user, WEEK_START.plusDays(1), new BigDecimal("7.0"), BigDecimal.ZERO,
+                                                BigDecimal.ZERO),
+                                new SleepData(user, WEEK_START.plusDays(2), new BigDecimal("7.0"), BigDecimal.ZERO,
+                                                BigDecimal.ZERO)));
+                debtWatermarkRepository.save(new DebtWatermark(user.getId(), WEEK_START));
+        }
+
+        @AfterEach
+        void cleanUp() {
+                new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+                        sleepDataRepository.deleteAllForUser(user.getId());
+                        weeklySleepRollupRepository.deleteAllForUser(user.getId());
+                        sleepPrefixSumRepository.deleteAllForUser(user.getId());
+                        debtWatermarkRepository.findById(user.getId()).ifPresent(debtWatermarkRepository::delete);
+                        userRepository.deleteById(user.getId());
+                });
+        }
+
+        @Test
+        @DisplayName("getWeeklyReport: A pending recalculation in the week should be refreshed before it is cached")
+        void getWeeklyReport_withPendingRecalculation_refreshesBeforeCaching() {
+                WeeklyReportDTO report = reportService.getWeeklyReport(WEEK_START.plusDays(2));
+
+                assertEquals(List.of(0.5, 0.5, 0.5), report.dailyItems().subList(0, 3).stream()
+                                .map(DailyReportItem::debtChange).toList());
+                assertTrue(debtWatermarkRepository.findById(user.getId()).isEmpty());
+
+                // Served from the cache, which the refresh did not leave stale
+                assertEquals(report, reportService.getWeeklyReport(WEEK_START));
+        }
+}
@@ -1,5 +1,8 @@
 package org.svlahov.sleepcalc.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -9,33 +12,66 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.svlahov.sleepcalc.config.AuthenticatedUser;
+import org.svlahov.sleepcalc.dto.CumulativeSleep;
+import org.svlahov.sleepcalc.dto.DailyDelta;
 import org.svlahov.sleepcalc.dto.MonthlyReportDTO;
+import org.svlahov.sleepcalc.dto.RangeReportDTO;
+import org.svlahov.sleepcalc.dto.RangeTotalsItem;
+import org.svlahov.sleepcalc.dto.SleepDataRow;
+import org.svlahov.sleepcalc.dto.WeekTotals;
 import org.svlahov.sleepcalc.dto.WeeklyReportDTO;
-import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.dto.YearReportDTO;
 import org.svlahov.sleepcalc.entity.User;
 import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.SleepPrefixSumRepository;
 import org.svlahov.sleepcalc.repository.UserRepository;
+import org.svlahov.sleepcalc.repository.WeeklySleepRollupRepository;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 
+import java.time.Duration;
 import java.time.LocalDate;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 class ReportServiceTest {
 
+    private static final Long USER_ID = 1L;
+
     @Mock
     private SleepDataRepository sleepDataRepository;
 
     @Mock
     private UserRepository userRepository;
 
+    @Mock
+    private DebtRecalculationService debtRecalculationService;
+
+    @Mock
+    private WeeklySleepRollupRepository weeklySleepRollupRepository;
+
+    @Mock
+    private SleepPrefixSumRepository sleepPrefixSumRepository;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
     @Mock
     private SecurityContext securityContext;
 
@@ -45,11 +81,17 @@ class ReportServiceTest {
     @Mock
     private UserDetails userDetails;
 
+    private ReportCache reportCache;
+
     private ReportServiceImpl reportService;
 
     @BeforeEach
     void setUp() {
-        reportService = new ReportServiceImpl(sleepDataRepository, userRepository);
+        reportCache = new ReportCache(new ObjectMapper().registerModule(new JavaTimeModule()),
+                new SimpleMeterRegistry(), 100, Duration.ofMinutes(10));
+        reportService = new ReportServiceImpl(sleepDataRepository, userRepository, debtRecalculationService,
+                weeklySleepRollupRepository, sleepPrefixSumRepository, reportCache, new UserWriteLocks(64),
+                transactionManager);
 
         SecurityContextHolder.setContext(securityContext);
     }
@@ -58,20 +100,21 @@ class ReportServiceTest {
         when(securityContext.getAuthentication()).thenReturn(authentication);
         when(authentication.getPrincipal()).thenReturn(userDetails);
         when(userDetails.getUsername()).thenReturn("testuser");
-        when(userRepository.findByUsername("testuser")).thenReturn(Optional.of(new User("testuser", "password")));
+        User user = new User("testuser", "password");
+        user.setId(USER_ID);
+        when(userRepository.findByUsername("testuser")).thenReturn(Optional.of(user));
     }
 
     @Test
     void getWeeklyReport_shouldReturnCorrectData() {
         mockUser();
         LocalDate date = LocalDate.of(2023, 10, 27); // A Friday
+        LocalDate monday = LocalDate.of(2023, 10, 23);
 
-        // Mock current week data
-        SleepData d1 = new SleepData(new User("testuser", "pw"), LocalDate.of(2023, 10, 23), new BigDecimal("8.0"),
-                BigDecimal.ZERO, BigDecimal.ZERO);
-        when(sleepDataRepository.findByUser_UsernameAndSleepDateBetween(eq("testuser"), any(LocalDate.class),
-                any(LocalDate.class)))
-                .thenReturn(List.of(d1)); // Simplified for test
+        when(weeklySleepRollupRepository.findWeekTotals(USER_ID, monday.minusWeeks(1), monday))
+                .thenReturn(List.of(rollup(monday, 1, "8.0")));
+        when(sleepDataRepository.findDailyDeltas(USER_ID, monday, monday.plusDays(6)))
+                .thenReturn(List.of(delta(monday, "8.0", "0", "0.5")));
 
         WeeklyReportDTO report = reportService.getWeeklyReport(date);
 
@@ -81,39 +124,260 @@ class ReportServiceTest {
         assertEquals(0.5, report.netSleepSurplus(), 0.01);
     }
 
+    @Test
+    void getWeeklyReport_shouldTakeTotalsFromRollups() {
+        mockUser();
+        LocalDate date = LocalDate.of(2023, 10, 27); // A Friday
+        LocalDate monday = LocalDate.of(2023, 10, 23);
+
+        when(weeklySleepRollupRepository.findWeekTotals(USER_ID, monday.minusWeeks(1), monday))
+                .thenReturn(List.of(rollup(monday.minusWeeks(1), 1, "6.0"), rollup(monday, 2, "12.0")));
+        when(sleepDataRepository.findDailyDeltas(USER_ID, monday, monday.plusDays(6)))
+                .thenReturn(List.of(
+                        delta(monday, "7.0", "0.5", "0"),
+                        delta(monday.plusDays(6), "5.0", "2.5", "0")));
+
+        WeeklyReportDTO report = reportService.getWeeklyReport(date);
+
+        assertEquals(7, report.dailyItems().size());
+        assertEquals(monday, report.dailyItems().get(0).date());
+        assertEquals(7.0, report.dailyItems().get(0).hoursSlept(), 0.01);
+        assertEquals(5.0, report.dailyItems().get(6).hoursSlept(), 0.01);
+        assertEquals(0.5, report.dailyItems().get(0).debtChange(), 0.01);
+        assertEquals(2.5, report.dailyItems().get(6).debtChange(), 0.01);
+        // 12 - 2 * 7.5
+        assertEquals(3.0, report.netSleepDebt(), 0.01);
+        assertEquals(0.0, report.netSleepSurplus(), 0.01);
+        // 12 hours this week vs 6 hours last week
+        assertEquals(100.0, report.percentageChange(), 0.01);
+        // The debt changes must not come from stale entries
+        verify(debtRecalculationService).refreshThrough(any(User.class), eq(monday.plusDays(6)));
+    }
+
+    @Test
+    void getWeeklyReport_withoutEntries_skipsDailyQuery() {
+        mockUser();
+        LocalDate date = LocalDate.of(2023, 10, 27);
+
+        WeeklyReportDTO report = reportService.getWeeklyReport(date);
+
+        verify(sleepDataRepository, never()).findDailyDeltas(any(), any(), any());
+        assertEquals(7, report.dailyItems().size());
+        assertEquals(0.0, report.netSleepDebt(), 0.01);
+    }
+
     @Test
     void getMonthlyReport_shouldReturnCorrectData() {
         mockUser();
         LocalDate date = LocalDate.of(2023, 10, 27);
+        LocalDate currentWeek = LocalDate.of(2023, 10, 23);
 
-        // Mock data for the period
-        SleepData d1 = new SleepData(new User("testuser", "pw"), LocalDate.of(2023, 10, 23), new BigDecimal("8.0"),
-                BigDecimal.ZERO, BigDecimal.ZERO);
-        when(sleepDataRepository.findByUser_UsernameAndSleepDateBetween(eq("testuser"), any(LocalDate.class),
-                any(LocalDate.class)))
-                .thenReturn(List.of(d1));
+        // Oldest week of the previous period, and the first and last week of the current one
+        when(weeklySleepRollupRepository.findWeekTotals(USER_ID, currentWeek.minusWeeks(7),
+                currentWeek))
+                .thenReturn(List.of(
+                        rollup(currentWeek.minusWeeks(7), 2, "12.0"),
+                        rollup(currentWeek.minusWeeks(3), 1, "9.0"),
+                        rollup(currentWeek, 3, "21.0")));
 
         MonthlyReportDTO report = reportService.getMonthlyReport(date);
 
         assertNotNull(report);
         assertEquals(4, report.weeklyItems().size());
+        assertEquals(9.0, report.weeklyItems().get(0).averageHoursSlept(), 0.01);
+        assertEquals(0.0, report.weeklyItems().get(1).averageHoursSlept(), 0.01);
+        assertEquals(7.0, report.weeklyItems().get(3).averageHoursSlept(), 0.01);
+        // 30 hours over 4 nights vs 12 hours over 2 nights
+        assertEquals(7.5, report.averageHoursSlept(), 0.01);
+        assertEquals(25.0, report.percentageChange(), 0.01);
+        verify(sleepDataRepository, never()).findDailyDeltas(any(), any(), any());
+    }
+
+    @Test
+    void getTaggedWeeklyReport_repeated_isServedFromCacheUntilWeekChanges() {
+        mockUser();
+        LocalDate monday = LocalDate.of(2023, 10, 23);
+        when(weeklySleepRollupRepository.findWeekTotals(USER_ID, monday.minusWeeks(1), monday))
+                .thenReturn(List.of(rollup(monday.minusWeeks(1), 1, "6.0"), rollup(monday, 1, "6.0")))
+                .thenReturn(List.of(rollup(monday.minusWeeks(1), 1, "7.0"), rollup(monday, 1, "6.0")));
+
+        ReportService.TaggedReport<WeeklyReportDTO> first = reportService.getTaggedWeeklyReport(monday);
+        // Any date in the same week hits the same entry
+        ReportService.TaggedReport<WeeklyReportDTO> second = reportService.getTaggedWeeklyReport(monday.plusDays(4));
+        assertSame(first, second);
+
+        // A write to the previous week changes this week's trend
+        reportCache.evictWeek(USER_ID, monday.minusWeeks(1));
+        ReportService.TaggedReport<WeeklyReportDTO> third = reportService.getTaggedWeeklyReport(monday);
+
+        verify(weeklySleepRollupRepository, times(2)).findWeekTotals(any(), any(), any());
+        assertNotEquals(first.etag(), third.etag());
     }
 
     @Test
-    void exportReport_shouldReturnCsvString() {
+    void exportReport_shouldWriteCsvRows() throws IOException {
         mockUser();
         LocalDate from = LocalDate.of(2023, 10, 1);
         LocalDate to = LocalDate.of(2023, 10, 31);
 
-        SleepData d1 = new SleepData(new User("testuser", "pw"), LocalDate.of(2023, 10, 23), new BigDecimal("8.0"),
-                BigDecimal.ZERO, BigDecimal.ZERO);
-        when(sleepDataRepository.findByUser_UsernameAndSleepDateBetween("testuser", from, to))
-                .thenReturn(List.of(d1));
+        when(sleepDataRepository.streamExportRows(USER_ID, from, to)).thenReturn(Stream.of(
+                new SleepDataRow(LocalDate.of(2023, 10, 23), new BigDecimal("8.0"), BigDecimal.ZERO,
+                        BigDecimal.ZERO)));
 
-        String csv = reportService.exportReport(from, to);
+        ReportService.CsvExport export = reportService.exportReport(from, to);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        export.writeTo(out);
+        String csv = out.toString(StandardCharsets.UTF_8);
 
-        assertNotNull(csv);
         assertTrue(csv.contains("Date,Hours Slept"));
         assertTrue(csv.contains("2023-10-23,8.0"));
     }
+
+    @Test
+    void exportReport_refreshesBeforeAnyRowIsRead() {
+        mockUser();
+        LocalDate from = LocalDate.of(2023, 10, 1);
+        LocalDate to = LocalDate.of(2023, 10, 31);
+
+        reportService.exportReport(from, to);
+
+        verify(debtRecalculationService).refreshThrough(any(User.class), eq(to));
+        // Rows are only read once the export is written to the response
+        verify(sleepDataRepository, never()).streamExportRows(any(), any(), any());
+    }
+
+    @Test
+    void exportReport_withIdCarryingPrincipal_skipsUserLookup() {
+        User reference = new User("testuser", "password");
+        reference.setId(USER_ID);
+        when(securityContext.getAuthentication()).thenReturn(authentication);
+        when(authentication.getPrincipal())
+                .thenReturn(new AuthenticatedUser(USER_ID, "testuser", "password", List.of()));
+        when(userRepository.getReferenceById(USER_ID)).thenReturn(reference);
+        LocalDate from = LocalDate.of(2023, 10, 1);
+        LocalDate to = LocalDate.of(2023, 10, 31);
+
+        reportService.exportReport(from, to);
+
+        verify(userRepository, never()).findByUsername(any());
+    }
+
+    @Test
+    void getRangeReport_byWeek_shouldDiffPrefixSumsAtBucketEnds() {
+        mockUser();
+        LocalDate from = LocalDate.of(2023, 10, 25); // A Wednesday
+        LocalDate to = LocalDate.of(2023, 11, 3); // The Friday of the following week
+
+        when(sleepPrefixSumRepository.findLatestAtOrBefore(USER_ID, from.minusDays(1)))
+                .thenReturn(Optional.of(cumulative(LocalDate.of(2023, 10, 24), "100.0", 13)));
+        when(sleepPrefixSumRepository.findLatestAtOrBefore(USER_ID, LocalDate.of(2023, 10, 29)))
+                .thenReturn(Optional.of(cumulative(LocalDate.of(2023, 10, 28), "116.0", 15)));
+        when(sleepPrefixSumRepository.findLatestAtOrBefore(USER_ID, to))
+                .thenReturn(Optional.of(cumulative(to, "137.0", 18)));
+
+        RangeReportDTO report = reportService.getRangeReport(from, to, "week");
+
+        assertEquals(2, report.buckets().size());
+        RangeTotalsItem firstWeek = report.buckets().get(0);
+        assertEquals(from, firstWeek.from());
+        assertEquals(LocalDate.of(2023, 10, 29), firstWeek.to());
+        assertEquals(2, firstWeek.nights());
+        assertEquals(16.0, firstWeek.totalHours(), 0.001);
+        assertEquals(8.0, firstWeek.averageHours(), 0.001);
+        assertEquals(1.0, firstWeek.deviationFromTarget(), 0.001);
+
+        assertEquals(5, report.total().nights());
+        assertEquals(37.0, report.total().totalHours(), 0.001);
+        assertEquals(-0.5, report.total().deviationFromTarget(), 0.001);
+        verify(sleepPrefixSumRepository, times(3)).findLatestAtOrBefore(any(), any());
+    }
+
+    @Test
+    void getRangeReport_byDay_shouldReportEachNight() {
+        mockUser();
+        LocalDate from = LocalDate.of(2023, 10, 1);
+        LocalDate to = LocalDate.of(2023, 10, 3);
+        when(sleepDataRepository.findRowsBetween(USER_ID, from, to)).thenReturn(List.of(
+                new SleepDataRow(from, new BigDecimal("6.0"), BigDecimal.ZERO, BigDecimal.ZERO),
+                new SleepDataRow(to, new BigDecimal("8.0"), BigDecimal.ZERO, BigDecimal.ZERO)));
+
+        RangeReportDTO report = reportService.getRangeReport(from, to, "day");
+
+        assertEquals(3, report.buckets().size());
+        assertEquals(0, report.buckets().get(1).nights());
+        assertEquals(2, report.total().nights());
+        assertEquals(7.0, report.total().averageHours(), 0.001);
+        assertEquals(-1.0, report.total().deviationFromTarget(), 0.001);
+    }
+
+    @Test
+    void getRangeReport_withInvalidInput_shouldReject() {
+        LocalDate from = LocalDate.of(2023, 10, 1);
+
+        assertThrows(IllegalArgumentException.class, () -> reportService.getRangeReport(from, from, "year"));
+        assertThrows(IllegalArgumentException.class,
+                () -> reportService.getRangeReport(from, from.minusDays(1), "day"));
+        assertThrows(IllegalArgumentException.class,
+                () -> reportService.getRangeReport(from, from.plusYears(2), "day"));
+    }
+
+    @Test
+    void getYearReport_shouldPackCentiHoursWithSentinelForMissingDays() {
+        mockUser();
+        LocalDate to = LocalDate.of(2023, 12, 31);
+        LocalDate from = LocalDate.of(2023, 1, 1);
+        when(sleepDataRepository.findRowsBetween(USER_ID, from, to)).thenReturn(List.of(
+                new SleepDataRow(from, new BigDecimal("7.25"), new BigDecimal("0.25"), BigDecimal.ZERO),
+                new SleepDataRow(to, new BigDecimal("9.0"), BigDecimal.ZERO, new BigDecimal("1.5"))));
+
+        YearReportDTO report = reportService.getYearReport(to);
+
+        verify(debtRecalculationService).refreshThrough(any(User.class), eq(to));
+        assertEquals(from, report.startDate());
+        assertEquals(365, report.hours().length);
+        assertEquals(725, report.hours()[0]);
+        assertEquals(25, report.debt()[0]);
+        assertEquals(YearReportDTO.MISSING, report.hours()[1]);
+        assertEquals(YearReportDTO.MISSING, report.surplus()[1]);
+        assertEquals(900, report.hours()[364]);
+        assertEquals(150, report.surplus()[364]);
+    }
+
+    @Test
+    void getYearReport_afterRefresh_readsOnPrimary() {
+        mockUser();
+        LocalDate to = LocalDate.of(2023, 12, 31);
+        when(debtRecalculationService.refreshThrough(any(User.class), eq(to))).thenReturn(true);
+        when(sleepDataRepository.findRowsBetween(eq(USER_ID), any(LocalDate.class), eq(to))).thenReturn(List.of());
+
+        reportService.getYearReport(to);
+
+        // A replica may not have the refreshed entries yet
+        verify(transactionManager).getTransaction(argThat(definition -> !definition.isReadOnly()));
+    }
+
+    @Test
+    void getYearReport_withoutRefresh_readsReadOnly() {
+        mockUser();
+        LocalDate to = LocalDate.of(2023, 12, 31);
+        when(sleepDataRepository.findRowsBetween(eq(USER_ID), any(LocalDate.class), eq(to))).thenReturn(List.of());
+
+        reportService.getYearReport(to);
+
+        verify(transactionManager).getTransaction(argThat(definition -> definition.isReadOnly()));
+    }
+
+    private DailyDelta delta(LocalDate date, String hours, String debtChange, String surplusChange) {
+        return new DailyDelta(date, new BigDecimal(hours), new BigDecimal(debtChange), new BigDecimal(surplusChange));
+    }
+
+    private CumulativeSleep cumulative(LocalDate date, String hours, int nights) {
+        return new CumulativeSleep(date, new BigDecimal(hours), nights);
+    }
+
+    private WeekTotals rollup(LocalDate weekStart, int nights, String hoursSum) {
+        BigDecimal hours = new BigDecimal(hoursSum);
+        return new WeekTotals(weekStart, nights, hours,
+                hours.subtract(new BigDecimal("7.5").multiply(BigDecimal.valueOf(nights))));
+    }
 }
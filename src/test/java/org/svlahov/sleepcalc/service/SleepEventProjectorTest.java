@@ -0,0 +1,220 @@
+package org.svlahov.sleepcalc.service;
+
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Transactional;
+import org.svlahov.sleepcalc.dto.SleepDataRow;
+import org.svlahov.sleepcalc.dto.SleepEventRow;
+import org.svlahov.sleepcalc.entity.SleepEvent;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.SleepEventRepository;
+import org.svlahov.sleepcalc.repository.SleepProjectionCheckpointRepository;
+import org.svlahov.sleepcalc.repository.UserRepository;
+import org.svlahov.sleepcalc.support.TestJwtDynamicProps;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+@Transactional
+@WithMockUser(username = "event-log-user")
+class SleepEventProjectorTest extends TestJwtDynamicProps {
+
+        private static final LocalDate FIRST_NIGHT = LocalDate.of(2025, 6, 1);
+        private static final LocalDate FAR_FUTURE = FIRST_NIGHT.plusYears(1);
+
+        @Autowired
+        private SleepService sleepService;
+
+        @Autowired
+        private SleepEventProjector sleepEventProjector;
+
+        @Autowired
+        private DebtRecalculationService debtRecalculationService;
+
+        @Autowired
+        private SleepEventRepository sleepEventRepository;
+
+        @Autowired
+        private SleepProjectionCheckpointRepository checkpointRepository;
+
+        @Autowired
+        private SleepDataRepository sleepDataRepository;
+
+        @Autowired
+        private UserRepository userRepository;
+
+        @Autowired
+        private EntityManager entityManager;
+
+        private User user;
+
+        @BeforeEach
+        void setUp() {
+                user = userRepository.save(new User("event-log-user", "password"));
+        }
+
+        @Test
+        @DisplayName("Writes should only append RECORDED, EDITED and DELETED events until they are projected")
+        void writes_appendEventsInOrder() {
+                assertTrue(sleepService.recordSleep("6:30", FIRST_NIGHT).recalculationPending());
+                sleepService.recordSleep("7:00", FIRST_NIGHT);
+                assertTrue(sleepService.deleteSleep(FIRST_NIGHT).recalculationPending());
+
+                List<SleepEventRow> events = allEvents();
+                assertEquals(List.of(1L, 2L, 3L), events.stream().map(SleepEventRow::sequenceNumber).toList());
+                assertEquals(List.of(SleepEvent.Type.RECORDED, SleepEvent.Type.EDITED, SleepEvent.Type.DELETED),
+                                events.stream().map(SleepEventRow::eventType).toList());
+                assertNull(events.get(2).hoursSlept());
+                assertTrue(checkpointRepository.findById(user.getId()).isEmpty());
+                assertTrue(debtRecalculationService.isPending(user));
+
+                assertEquals(3, sleepEventProjector.catchUp(user));
+
+                assertEquals(3, checkpointRepository.findById(user.getId()).orElseThrow().getSequenceNumber());
+                assertTrue(sleepDataRepository.findHoursSlept(user.getId(), FIRST_NIGHT).isEmpty());
+                assertFalse(debtRecalculationService.isPending(user));
+        }
+
+        @Test
+        @DisplayName("deleteSleep: Later nights should be carried on from the night before the deleted one")
+        void deleteSleep_recalculatesLaterNights() {
+                sleepService.recordSleep(List.of(
+                                new SleepService.SleepRecord("6:30", FIRST_NIGHT),
+                                new SleepService.SleepRecord("5:30", FIRST_NIGHT.plusDays(1)),
+                                new SleepService.SleepRecord("7:30", FIRST_NIGHT.plusDays(2))));
+                sleepEventProjector.catchUp(user);
+
+                sleepService.deleteSleep(FIRST_NIGHT.plusDays(1));
+                sleepEventProjector.catchUp(user);
+                debtRecalculationService.refreshThrough(user, FAR_FUTURE);
+
+                assertEquals(1.0, sleepService.getCurrentSleepState().sleepDebt());
+        }
+
+        @Test
+        @DisplayName("deleteSleep: Should reject a night that was never recorded")
+        void deleteSleep_withoutEntry_throwsException() {
+                assertThrows(IllegalArgumentException.class, () -> sleepService.deleteSleep(FIRST_NIGHT));
+                assertTrue(allEvents().isEmpty());
+        }
+
+        @Test
+        @DisplayName("catchUp: Should apply events appended after the checkpoint, the latest per date winning")
+        void catchUp_appliesEventsAfterCheckpoint() {
+                LocalDateTime recordedAt = LocalDateTime.of(2025, 6, 3, 7, 0);
+                sleepEventRepository.saveAll(List.of(
+                                new SleepEvent(user.getId(), 1, FIRST_NIGHT, SleepEvent.Type.RECORDED,
+                                                new BigDecimal("6.50"), recordedAt),
+                                new SleepEvent(user.getId(), 2, FIRST_NIGHT.plusDays(1), SleepEvent.Type.RECORDED,
+                                                new BigDecimal("5.50"), recordedAt),
+                                new SleepEvent(user.getId(), 3, FIRST_NIGHT, SleepEvent.Type.EDITED,
+                                                new BigDecimal("7.50"), recordedAt)));
+
+                assertEquals(3, sleepEventProjector.catchUp(user));
+                debtRecalculationService.refreshThrough(user, FAR_FUTURE);
+
+                assertEquals(0, new BigDecimal("7.50").compareTo(
+                                sleepDataRepository.findHoursSlept(user.getId(), FIRST_NIGHT).orElseThrow()));
+                assertEquals(2.0, sleepService.getCurrentSleepState().sleepDebt());
+                assertEquals(3, checkpointRepository.findById(user.getId()).orElseThrow().getSequenceNumber());
+                assertEquals(0, sleepEventProjector.catchUp(user));
+        }
+
+        @Test
+        @DisplayName("catchUp: A batch spanning several nights should match projecting them one at a time")
+        void catchUp_batchOfSeveralNights_matchesRebuild() {
+                sleepService.recordSleep(List.of(
+                                new SleepService.SleepRecord("6:00", FIRST_NIGHT),
+                                new SleepService.SleepRecord("9:00", FIRST_NIGHT.plusDays(1)),
+                                new SleepService.SleepRecord("5:45", FIRST_NIGHT.plusDays(2))));
+                sleepEventProjector.catchUp(user);
+                sleepService.recordSleep("8:00", FIRST_NIGHT.plusDays(3));
+                sleepService.deleteSleep(FIRST_NIGHT.plusDays(1));
+                sleepService.recordSleep("7:00", FIRST_NIGHT);
+
+                assertEquals(3, sleepEventProjector.catchUp(user));
+                debtRecalculationService.refreshThrough(user, FAR_FUTURE);
+                List<SleepDataRow> projected = storedRows();
+
+                sleepEventProjector.rebuild(user);
+
+                assertEquals(List.of(FIRST_NIGHT, FIRST_NIGHT.plusDays(2), FIRST_NIGHT.plusDays(3)),
+                                projected.stream().map(SleepDataRow::sleepDate).toList());
+                assertEquals(projected, storedRows());
+        }
+
+        @Test
+        @DisplayName("rebuild: Replaying the log should reproduce what the writes projected")
+        void rebuild_matchesIncrementalProjection() {
+                sleepService.recordSleep(List.of(
+                                new SleepService.SleepRecord("6:00", FIRST_NIGHT),
+                                new SleepService.SleepRecord("9:00", FIRST_NIGHT.plusDays(1)),
+                                new SleepService.SleepRecord("5:45", FIRST_NIGHT.plusDays(2)),
+                                new SleepService.SleepRecord("8:15", FIRST_NIGHT.plusDays(4))));
+                sleepEventProjector.catchUp(user);
+                // Backdated edit, a late night, a deletion and a re-recorded night, each projected on its own
+                sleepService.recordSleep("10:00", FIRST_NIGHT);
+                sleepEventProjector.catchUp(user);
+                sleepService.recordSleep("4:30", FIRST_NIGHT.plusDays(3));
+                sleepEventProjector.catchUp(user);
+                sleepService.deleteSleep(FIRST_NIGHT.plusDays(2));
+                sleepEventProjector.catchUp(user);
+                sleepService.recordSleep("7:15", FIRST_NIGHT.plusDays(2));
+                sleepEventProjector.catchUp(user);
+                debtRecalculationService.refreshThrough(user, FAR_FUTURE);
+                List<SleepDataRow> projected = storedRows();
+
+                assertEquals(8, sleepEventProjector.rebuild(user));
+
+                assertEquals(projected, storedRows());
+                assertFalse(debtRecalculationService.isPending(user));
+                assertEquals(8, checkpointRepository.findById(user.getId()).orElseThrow().getSequenceNumber());
+        }
+
+        @Test
+        @DisplayName("importSleep: Should append every imported line to the log")
+        void importSleep_appendsEvents() {
+                sleepService.recordSleep("6:00", FIRST_NIGHT.plusDays(1));
+
+                sleepService.importSleep(new ByteArrayInputStream("""
+                                Date,Hours Slept,Sleep Debt,Sleep Surplus
+                                2025-06-01,7.50,0.00,0.00
+                                2025-06-02,8:30,0.00,0.00
+                                2025-06-01,9.00,0.00,0.00
+                                """.getBytes(StandardCharsets.UTF_8)));
+
+                List<SleepEventRow> events = allEvents();
+                assertEquals(List.of(SleepEvent.Type.RECORDED, SleepEvent.Type.RECORDED, SleepEvent.Type.EDITED,
+                                SleepEvent.Type.EDITED), events.stream().map(SleepEventRow::eventType).toList());
+                assertEquals(4L, events.get(3).sequenceNumber());
+                assertEquals(4, checkpointRepository.findById(user.getId()).orElseThrow().getSequenceNumber());
+        }
+
+        private List<SleepEventRow> allEvents() {
+                try (Stream<SleepEventRow> events = sleepEventRepository.streamAll(user.getId())) {
+                        return events.toList();
+                }
+        }
+
+        private List<SleepDataRow> storedRows() {
+                entityManager.flush();
+                entityManager.clear();
+                return sleepDataRepository.findRowsBetween(user.getId(), FIRST_NIGHT, FAR_FUTURE);
+        }
+}
@@ -0,0 +1,147 @@
+package org.svlahov.sleepcalc.service;
+
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Transactional;
+import org.svlahov.sleepcalc.dto.SleepDataRow;
+import org.svlahov.sleepcalc.dto.WeekTotals;
+import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.DebtWatermarkRepository;
+import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.UserRepository;
+import org.svlahov.sleepcalc.repository.WeeklySleepRollupRepository;
+import org.svlahov.sleepcalc.service.SleepService.SleepImportResult;
+import org.svlahov.sleepcalc.support.TestJwtDynamicProps;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Runs the batched fallback against H2; the COPY path needs PostgreSQL
+@SpringBootTest(properties = { "sleep.import.max-nights=3", "sleep.import.max-size=1KB" })
+@ActiveProfiles("test")
+@Transactional
+@WithMockUser(username = "import-user")
+class SleepImportTest extends TestJwtDynamicProps {
+
+        // A Monday
+        private static final LocalDate FIRST_NIGHT = LocalDate.of(2024, 4, 1);
+
+        @Autowired
+        private SleepService sleepService;
+
+        @Autowired
+        private SleepDataRepository sleepDataRepository;
+
+        @Autowired
+        private UserRepository userRepository;
+
+        @Autowired
+        private DebtWatermarkRepository debtWatermarkRepository;
+
+        @Autowired
+        private WeeklySleepRollupRepository weeklySleepRollupRepository;
+
+        @Autowired
+        private EntityManager entityManager;
+
+        private User user;
+
+        @BeforeEach
+        void setUp() {
+                user = userRepository.save(new User("import-user", "password"));
+        }
+
+        @Test
+        @DisplayName("importSleep: Should merge the file into the stored nights, the last line for a date winning")
+        void importSleep_withExportedFile_mergesNights() {
+                sleepDataRepository.save(new SleepData(user, FIRST_NIGHT.plusDays(1), new BigDecimal("6.0"),
+                                new BigDecimal("1.5"), BigDecimal.ZERO));
+                entityManager.flush();
+                entityManager.clear();
+
+                SleepImportResult result = sleepService.importSleep(csv("""
+                                Date,Hours Slept,Sleep Debt,Sleep Surplus
+                                2024-04-01,7.50,0.00,0.00
+                                2024-04-02,8:30,0.00,0.00
+
+                                2024-04-01,9.00,0.00,0.00
+                                """));
+
+                assertEquals(3, result.nights());
+                assertEquals(FIRST_NIGHT, result.firstDate());
+                assertEquals(FIRST_NIGHT.plusDays(1), result.lastDate());
+                assertTrue(result.recalculationPending());
+
+                List<SleepDataRow> rows = sleepDataRepository.findRowsBetween(user.getId(), FIRST_NIGHT,
+                                FIRST_NIGHT.plusDays(1));
+                assertEquals(2, rows.size());
+                assertEquals(0, new BigDecimal("9.00").compareTo(rows.get(0).hoursSlept()));
+                assertEquals(0, new BigDecimal("8.50").compareTo(rows.get(1).hoursSlept()));
+
+                // The chain is recalculated from the earliest night, and the rollups already match
+                assertEquals(FIRST_NIGHT, debtWatermarkRepository.findById(user.getId()).orElseThrow().getStaleFrom());
+                List<WeekTotals> weeks = weeklySleepRollupRepository.findWeekTotals(user.getId(), FIRST_NIGHT,
+                                FIRST_NIGHT);
+                assertEquals(2, weeks.get(0).nights());
+                assertEquals(0, new BigDecimal("17.50").compareTo(weeks.get(0).hoursSum()));
+        }
+
+        @Test
+        @DisplayName("importSleep: Should reject the file with the number of the first bad line")
+        void importSleep_withInvalidLine_rejectsFile() {
+                IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                                () -> sleepService.importSleep(csv("""
+                                                Date,Hours Slept,Sleep Debt,Sleep Surplus
+                                                2024-04-01,7.50,0.00,0.00
+                                                2024-04-32,8.00,0.00,0.00
+                                                """)));
+                assertTrue(e.getMessage().startsWith("Line 3"));
+        }
+
+        @Test
+        @DisplayName("importSleep: Should reject a file without entries")
+        void importSleep_withHeaderOnly_rejectsFile() {
+                assertThrows(IllegalArgumentException.class,
+                                () -> sleepService.importSleep(csv("Date,Hours Slept,Sleep Debt,Sleep Surplus\n")));
+        }
+
+        @Test
+        @DisplayName("importSleep: Should reject a file with more nights than allowed before writing any of them")
+        void importSleep_withTooManyNights_rejectsFile() {
+                IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                                () -> sleepService.importSleep(csv("""
+                                                Date,Hours Slept,Sleep Debt,Sleep Surplus
+                                                2024-04-01,7.50,0.00,0.00
+                                                2024-04-02,7.50,0.00,0.00
+                                                2024-04-03,7.50,0.00,0.00
+                                                2024-04-04,7.50,0.00,0.00
+                                                """)));
+                assertTrue(e.getMessage().contains("more than 3 nights"));
+                assertTrue(sleepDataRepository.findRowsBetween(user.getId(), FIRST_NIGHT, FIRST_NIGHT.plusDays(3))
+                                .isEmpty());
+        }
+
+        @Test
+        @DisplayName("importSleep: Should reject a file larger than allowed")
+        void importSleep_withOversizedFile_rejectsFile() {
+                String longLine = "2024-04-01,7.50," + "0".repeat(2048) + "\n";
+                assertThrows(IllegalArgumentException.class, () -> sleepService.importSleep(csv(longLine)));
+        }
+
+        private InputStream csv(String content) {
+                return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+        }
+}
@@ -0,0 +1,188 @@
+package org.svlahov.sleepcalc.service;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.context.ActiveProfiles;
+import org.svlahov.sleepcalc.dto.CumulativeSleep;
+import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.entity.WeeklySleepRollup;
+import org.svlahov.sleepcalc.repository.DebtWatermarkRepository;
+import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.SleepEventRepository;
+import org.svlahov.sleepcalc.repository.SleepPrefixSumRepository;
+import org.svlahov.sleepcalc.repository.SleepProjectionCheckpointRepository;
+import org.svlahov.sleepcalc.repository.UserRepository;
+import org.svlahov.sleepcalc.repository.WeeklySleepRollupRepository;
+import org.svlahov.sleepcalc.support.TestJwtDynamicProps;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Not transactional on purpose: every write commits, so concurrent writers really interleave.
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+class SleepServiceConcurrencyTest extends TestJwtDynamicProps {
+
+        private static final List<String> USERNAMES = List.of("device-sync-user", "other-user-1", "other-user-2");
+        private static final LocalDate FIRST_NIGHT = LocalDate.of(2025, 3, 1);
+        private static final int NIGHTS = 60;
+        private static final LocalDate LAST_NIGHT = FIRST_NIGHT.plusDays(NIGHTS - 1);
+        private static final int THREADS = 8;
+        private static final int WRITES_PER_THREAD = 40;
+
+        // Shortfalls only, so the expected chain is an exact running sum
+        private static final String[] TIMES = { "5:30", "6:00", "6:30", "7:00", "7:30" };
+        private static final BigDecimal TARGET_SLEEP_HOURS = new BigDecimal("7.5");
+
+        @Autowired
+        private SleepServiceImpl sleepService;
+
+        @Autowired
+        private SleepDataRepository sleepDataRepository;
+
+        @Autowired
+        private UserRepository userRepository;
+
+        @Autowired
+        private DebtWatermarkRepository debtWatermarkRepository;
+
+        @Autowired
+        private DebtRecalculationQueue debtRecalculationQueue;
+
+        @Autowired
+        private WeeklySleepRollupRepository weeklySleepRollupRepository;
+
+        @Autowired
+        private SleepPrefixSumRepository sleepPrefixSumRepository;
+
+        @Autowired
+        private SleepEventRepository sleepEventRepository;
+
+        @Autowired
+        private SleepProjectionCheckpointRepository sleepProjectionCheckpointRepository;
+
+        @Test
+        @DisplayName("recordSleep: Concurrent writers should leave every user with a consistent debt chain")
+        void recordSleep_concurrentWriters_keepChainConsistent() throws Exception {
+                for (String username : USERNAMES) {
+                        userRepository.save(new User(username, "password"));
+                }
+
+                ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Void>> results = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                        // Most threads hammer the same user, the rest spread over the others
+                        String username = t < THREADS - 2 ? USERNAMES.get(0) : USERNAMES.get(t - THREADS + 3);
+                        Random random = new Random(t);
+                        Callable<Void> writer = () -> {
+                                SecurityContextHolder.getContext().setAuthentication(
+                                                new UsernamePasswordAuthenticationToken(username, null, List.of()));
+                                try {
+                                        start.await();
+                                        for (int i = 0; i < WRITES_PER_THREAD; i++) {
+                                                LocalDate date = FIRST_NIGHT.plusDays(random.nextInt(NIGHTS));
+                                                sleepService.recordSleep(TIMES[random.nextInt(TIMES.length)], date);
+                                        }
+                                } finally {
+                                        SecurityContextHolder.clearContext();
+                                }
+                                return null;
+                        };
+                        results.add(executor.submit(writer));
+                }
+                start.countDown();
+                for (Future<Void> result : results) {
+                        result.get(60, TimeUnit.SECONDS);
+                }
+                executor.shutdown();
+                awaitRecalculation();
+
+                for (String username : USERNAMES) {
+                        assertConsistentChain(username);
+                }
+        }
+
+        @AfterAll
+        void cleanUp() {
+                for (String username : USERNAMES) {
+                        sleepDataRepository.deleteAll(sleepDataRepository.findByUser_UsernameAndSleepDateBetween(username,
+                                        FIRST_NIGHT, LAST_NIGHT));
+                        userRepository.findByUsername(username).ifPresent(user -> {
+                                weeklySleepRollupRepository.deleteAll(weeklySleepRollupRepository
+                                                .findByUserIdAndWeekStartBetween(user.getId(),
+                                                                WeeklyRollupService.weekStart(FIRST_NIGHT),
+                                                                LAST_NIGHT));
+                                sleepPrefixSumRepository.deleteAllForUser(user.getId());
+                                debtWatermarkRepository.findById(user.getId()).ifPresent(debtWatermarkRepository::delete);
+                                sleepEventRepository.deleteAllForUser(user.getId());
+                                sleepProjectionCheckpointRepository.findById(user.getId())
+                                                .ifPresent(sleepProjectionCheckpointRepository::delete);
+                                userRepository.delete(user);
+                        });
+                }
+        }
+
+        private void awaitRecalculation() throws InterruptedException {
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+                while (debtRecalculationQueue.backlog() > 0 || debtWatermarkRepository.count() > 0
+                                || !sleepEventRepository.findUserIdsWithUnprojectedEvents().isEmpty()) {
+                        assertTrue(System.nanoTime() < deadline, "Background projection and recalculation did not finish");
+                        Thread.sleep(20);
+                }
+        }
+
+        private void assertConsistentChain(String username) {
+                List<SleepData> entries = new ArrayList<>(sleepDataRepository.findByUser_UsernameAndSleepDateBetween(
+                                username, FIRST_NIGHT, LAST_NIGHT));
+                entries.sort(Comparator.comparing(SleepData::getSleepDate));
+
+                assertFalse(entries.isEmpty());
+                assertEquals(entries.size(), entries.stream().map(SleepData::getSleepDate).distinct().count(),
+                                "Each night should be stored once for " + username);
+
+                BigDecimal expectedDebt = BigDecimal.ZERO;
+                for (SleepData entry : entries) {
+                        expectedDebt = expectedDebt.add(TARGET_SLEEP_HOURS.subtract(entry.getHoursSlept()));
+                        assertEquals(0, expectedDebt.compareTo(entry.getSleepDebt()),
+                                        "Debt chain broken for " + username + " on " + entry.getSleepDate());
+                        assertEquals(0, BigDecimal.ZERO.compareTo(entry.getSleepSurplus()));
+                }
+
+                // Every write refreshed its week, so the rollups add up to the stored nights
+                Long userId = userRepository.findByUsername(username).orElseThrow().getId();
+                List<WeeklySleepRollup> rollups = weeklySleepRollupRepository.findByUserIdAndWeekStartBetween(userId,
+                                WeeklyRollupService.weekStart(FIRST_NIGHT), LAST_NIGHT);
+                assertEquals(entries.size(), rollups.stream().mapToInt(WeeklySleepRollup::getNights).sum());
+                BigDecimal hoursSum = entries.stream().map(SleepData::getHoursSlept)
+                                .reduce(BigDecimal.ZERO, BigDecimal::add);
+                assertEquals(0, hoursSum.compareTo(rollups.stream().map(WeeklySleepRollup::getHoursSum)
+                                .reduce(BigDecimal.ZERO, BigDecimal::add)), "Rollups out of step for " + username);
+
+                // The running totals through the last night cover every stored night
+                CumulativeSleep cumulative = sleepPrefixSumRepository.findLatestAtOrBefore(userId, LAST_NIGHT)
+                                .orElseThrow();
+                assertEquals(entries.size(), cumulative.nights());
+                assertEquals(0, hoursSum.compareTo(cumulative.hours()), "Prefix sums out of step for " + username);
+        }
+}
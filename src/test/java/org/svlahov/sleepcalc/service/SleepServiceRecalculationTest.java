@@ -0,0 +1,145 @@
+package org.svlahov.sleepcalc.service;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Transactional;
+import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.DebtWatermarkRepository;
+import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.UserRepository;
+import org.svlahov.sleepcalc.service.SleepService.SleepState;
+import org.svlahov.sleepcalc.support.TestJwtDynamicProps;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+@ActiveProfiles("test")
+@Transactional
+class SleepServiceRecalculationTest extends TestJwtDynamicProps {
+
+        private static final int HISTORY_SIZE = 1_000;
+        private static final LocalDate FIRST_NIGHT = LocalDate.of(2024, 1, 2);
+
+        @Autowired
+        private SleepServiceImpl sleepService;
+
+        @Autowired
+        private SleepDataRepository sleepDataRepository;
+
+        @Autowired
+        private UserRepository userRepository;
+
+        @Autowired
+        private DebtWatermarkRepository debtWatermarkRepository;
+
+        @Autowired
+        private DebtRecalculationService debtRecalculationService;
+
+        @Autowired
+        private SleepEventProjector sleepEventProjector;
+
+        @Autowired
+        private EntityManager entityManager;
+
+        @Autowired
+        private EntityManagerFactory entityManagerFactory;
+
+        private Statistics statistics;
+
+        @BeforeEach
+        void setUp() {
+                statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+                User user = userRepository.save(new User("backfill-user", "password"));
+
+                // 7h every night: a 0.5h shortfall per night, so the debt grows by 0.5 each day
+                List<SleepData> history = new ArrayList<>();
+                for (int i = 0; i < HISTORY_SIZE; i++) {
+                        BigDecimal debt = new BigDecimal("0.5").multiply(BigDecimal.valueOf(i + 1));
+                        history.add(new SleepData(user, FIRST_NIGHT.plusDays(i), new BigDecimal("7.0"), debt,
+                                        BigDecimal.ZERO));
+                }
+                sleepDataRepository.saveAll(history);
+                entityManager.flush();
+                entityManager.clear();
+        }
+
+        @Test
+        @DisplayName("recordSleep: Backfilling before a long history should only write its own night")
+        @WithMockUser(username = "backfill-user")
+        void recordSleep_backfillBeforeLongHistory_marksHistoryStale() {
+                statistics.clear();
+
+                sleepService.recordSleep("5:30", FIRST_NIGHT.minusDays(1));
+                User user = userRepository.findByUsername("backfill-user").orElseThrow();
+                sleepEventProjector.catchUp(user);
+                entityManager.flush();
+
+                assertEquals(0, statistics.getEntityUpdateCount(), "Later nights are left to the queue");
+                assertEquals(FIRST_NIGHT, debtWatermarkRepository.findById(user.getId()).orElseThrow().getStaleFrom());
+                assertTrue(sleepService.getCurrentSleepState().recalculationPending());
+        }
+
+        @Test
+        @DisplayName("refreshNextInterval: Catching up after a backfill should update the stale tail in JDBC batches")
+        @WithMockUser(username = "backfill-user")
+        void refreshNextInterval_afterBackfill_batchesUpdates() {
+                // 2h shortfall before the first night shifts every later debt by 2.0
+                sleepService.recordSleep("5:30", FIRST_NIGHT.minusDays(1));
+                User user = userRepository.findByUsername("backfill-user").orElseThrow();
+                sleepEventProjector.catchUp(user);
+                entityManager.flush();
+                statistics.clear();
+
+                // What the queue does after projecting the night, one month per call
+                int intervals = 1;
+                while (debtRecalculationService.refreshNextInterval(user)) {
+                        intervals++;
+                }
+                entityManager.flush();
+
+                assertEquals(33, intervals, "2024-01 through 2026-09");
+                assertEquals(HISTORY_SIZE, statistics.getEntityUpdateCount(), "Every later night should be updated");
+                assertTrue(statistics.getPrepareStatementCount() < 250,
+                                "Expected a few statements per month, but was " + statistics.getPrepareStatementCount());
+
+                SleepState state = sleepService.getCurrentSleepState();
+                assertEquals(502.0, state.sleepDebt());
+                assertFalse(state.recalculationPending());
+
+                entityManager.clear();
+                SleepData last = sleepDataRepository
+                                .findByUser_UsernameAndSleepDate("backfill-user", FIRST_NIGHT.plusDays(HISTORY_SIZE - 1))
+                                .orElseThrow();
+                assertEquals(0, new BigDecimal("502.0").compareTo(last.getSleepDebt()));
+        }
+
+        @Test
+        @DisplayName("recordSleep: Rewriting a night with the same hours should not touch later entries")
+        @WithMockUser(username = "backfill-user")
+        void recordSleep_withUnchangedHistory_skipsLaterEntries() {
+                statistics.clear();
+
+                sleepService.recordSleep("7:00", FIRST_NIGHT);
+                sleepEventProjector.catchUp(userRepository.findByUsername("backfill-user").orElseThrow());
+                entityManager.flush();
+
+                // At most the rewritten night itself; nothing downstream changed
+                assertTrue(statistics.getEntityUpdateCount() <= 1);
+        }
+}
@@ -3,26 +3,43 @@ package org.svlahov.sleepcalc.service;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Limit;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.svlahov.sleepcalc.dto.SleepDataRow;
+import org.svlahov.sleepcalc.dto.SleepEventRow;
+import org.svlahov.sleepcalc.entity.DebtWatermark;
 import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.entity.SleepEvent;
 import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.repository.DebtWatermarkRepository;
 import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.SleepEventRepository;
+import org.svlahov.sleepcalc.repository.SleepPrefixSumRepository;
+import org.svlahov.sleepcalc.repository.SleepProjectionCheckpointRepository;
 import org.svlahov.sleepcalc.repository.UserRepository;
+import org.svlahov.sleepcalc.repository.WeeklySleepRollupRepository;
 import org.svlahov.sleepcalc.support.TestJwtDynamicProps;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Optional;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.TreeMap;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
-import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -37,9 +54,32 @@ public class SleepServiceTest extends TestJwtDynamicProps {
         @MockitoBean
         private UserRepository userRepository;
 
+        @MockitoBean
+        private DebtWatermarkRepository debtWatermarkRepository;
+
+        @MockitoBean
+        private DebtRecalculationQueue debtRecalculationQueue;
+
+        @MockitoBean
+        private WeeklySleepRollupRepository weeklySleepRollupRepository;
+
+        @MockitoBean
+        private SleepPrefixSumRepository sleepPrefixSumRepository;
+
+        @MockitoBean
+        private SleepEventRepository sleepEventRepository;
+
+        @MockitoBean
+        private SleepProjectionCheckpointRepository sleepProjectionCheckpointRepository;
+
         @Autowired
         private SleepServiceImpl sleepService;
 
+        @Autowired
+        private SleepEventProjector sleepEventProjector;
+
+        private static final Long USER_ID = 1L;
+
         private final LocalDate testDate = LocalDate.now();
         private final LocalDate previousDate = testDate.minusDays(1);
 
@@ -47,9 +87,29 @@ public class SleepServiceTest extends TestJwtDynamicProps {
                 return new SleepData(user, previousDate, new BigDecimal("7.5"), debt, surplus);
         }
 
-        private SleepData createFullTestSleepData(User user, LocalDate date, BigDecimal hours, BigDecimal debt,
-                        BigDecimal surplus) {
-                return new SleepData(user, date, hours, debt, surplus);
+        // The event log is mocked, so the nights a write appended are handed back to the projector
+        private void projectAppendedNights(User user) {
+                @SuppressWarnings("unchecked")
+                ArgumentCaptor<NavigableMap<LocalDate, BigDecimal>> captor = ArgumentCaptor.forClass(NavigableMap.class);
+                verify(sleepEventRepository).appendNights(eq(USER_ID), captor.capture(), any(LocalDateTime.class));
+                List<SleepEventRow> events = new ArrayList<>();
+                captor.getValue().forEach((date, hours) -> events.add(
+                                new SleepEventRow(events.size() + 1L, date, SleepEvent.Type.RECORDED, hours)));
+                when(sleepEventRepository.findAfter(eq(USER_ID), eq(0L), any(Limit.class)))
+                                .thenReturn(events, List.of());
+
+                assertEquals(events.size(), sleepEventProjector.catchUp(user));
+        }
+
+        // Records a single night and returns the entry its projection stored
+        private SleepData recordAndProject(User user, String timeSlept, LocalDate date) {
+                SleepService.SleepState state = sleepService.recordSleep(timeSlept, date);
+                assertTrue(state.recalculationPending(), "The night is applied after the write");
+                projectAppendedNights(user);
+
+                ArgumentCaptor<SleepData> captor = ArgumentCaptor.forClass(SleepData.class);
+                verify(sleepDataRepository).upsert(captor.capture());
+                return captor.getValue();
         }
 
         @Test
@@ -57,6 +117,7 @@ public class SleepServiceTest extends TestJwtDynamicProps {
         @WithMockUser(username = "invalid-time-user")
         void recordSleep_withInvalidFromat_throwsException() {
                 User user = new User("invalid-time-user", "password");
+                user.setId(USER_ID);
                 when(userRepository.findByUsername("invalid-time-user")).thenReturn(Optional.of(user));
                 assertThrows(IllegalArgumentException.class, () -> {
                         sleepService.recordSleep("invalid-time", testDate);
@@ -68,6 +129,7 @@ public class SleepServiceTest extends TestJwtDynamicProps {
         @WithMockUser(username = "out-of-bounds-user")
         void recordSleep_withOutOfBoundsTime_throwsException() {
                 User user = new User("out-of-bounds-user", "password");
+                user.setId(USER_ID);
                 when(userRepository.findByUsername("out-of-bounds-user")).thenReturn(Optional.of(user));
                 assertThrows(IllegalArgumentException.class, () -> {
                         sleepService.recordSleep("8:60", testDate);
@@ -83,28 +145,19 @@ public class SleepServiceTest extends TestJwtDynamicProps {
         @WithMockUser(username = "rested-user")
         void recordSleep_withExtraSleepAsStringAndNoDebt_increaseSurplus() {
                 User user = new User("rested-user", "password");
+                user.setId(USER_ID);
                 when(userRepository.findByUsername("rested-user")).thenReturn(Optional.of(user));
-                when(sleepDataRepository.findTopByUser_UsernameAndSleepDateLessThanOrderBySleepDateDesc(
-                                eq("rested-user"), any(LocalDate.class)))
-                                .thenReturn(Optional.empty());
-                when(sleepDataRepository.findByUser_UsernameAndSleepDateGreaterThanOrderBySleepDateAsc(
-                                eq("rested-user"), any(LocalDate.class)))
-                                .thenReturn(List.of());
-                when(sleepDataRepository.findByUser_UsernameAndSleepDate(eq("rested-user"), any(LocalDate.class)))
+                when(sleepDataRepository.findTopByUser_IdAndSleepDateLessThanOrderBySleepDateDesc(
+                                eq(USER_ID), any(LocalDate.class)))
                                 .thenReturn(Optional.empty());
+                when(sleepDataRepository.upsert(any(SleepData.class))).thenReturn(true);
 
-                when(sleepDataRepository.save(any(SleepData.class)))
-                                .thenAnswer(invocation -> invocation.getArgument(0));
+                SleepData newState = recordAndProject(user, "9:30", testDate);
 
-                SleepService.SleepState newState = sleepService.recordSleep("9:30", testDate);
-
-                assertEquals(0.0, newState.sleepDebt(), "Debt should remain zero");
-                assertEquals(2.0, newState.sleepSurplus(), 0.01, "Surplus should increase by 2.0");
-
-                ArgumentCaptor<SleepData> captor = ArgumentCaptor.forClass(SleepData.class);
-                verify(sleepDataRepository).save(captor.capture());
-                assertEquals(new BigDecimal("9.50"), captor.getValue().getHoursSlept());
-                assertEquals(testDate, captor.getValue().getSleepDate());
+                assertEquals(0.0, newState.getSleepDebt().doubleValue(), "Debt should remain zero");
+                assertEquals(2.0, newState.getSleepSurplus().doubleValue(), 0.01, "Surplus should increase by 2.0");
+                assertEquals(new BigDecimal("9.50"), newState.getHoursSlept());
+                assertEquals(testDate, newState.getSleepDate());
         }
 
         @Test
@@ -112,24 +165,18 @@ public class SleepServiceTest extends TestJwtDynamicProps {
         @WithMockUser(username = "surplus-user")
         void recordSleep_withShortFallAsStringAndSurplus_decreasesSurplus() {
                 User user = new User("surplus-user", "password");
+                user.setId(USER_ID);
                 when(userRepository.findByUsername("surplus-user")).thenReturn(Optional.of(user));
                 SleepData existingData = createTestSleepData(user, new BigDecimal("0.0"), new BigDecimal("3.0"));
-                when(sleepDataRepository.findTopByUser_UsernameAndSleepDateLessThanOrderBySleepDateDesc(
-                                eq("surplus-user"), any(LocalDate.class)))
+                when(sleepDataRepository.findTopByUser_IdAndSleepDateLessThanOrderBySleepDateDesc(
+                                eq(USER_ID), any(LocalDate.class)))
                                 .thenReturn(Optional.of(existingData));
-                when(sleepDataRepository.findByUser_UsernameAndSleepDateGreaterThanOrderBySleepDateAsc(
-                                eq("surplus-user"), any(LocalDate.class)))
-                                .thenReturn(List.of());
-                when(sleepDataRepository.findByUser_UsernameAndSleepDate(eq("surplus-user"), any(LocalDate.class)))
-                                .thenReturn(Optional.empty());
-
-                when(sleepDataRepository.save(any(SleepData.class)))
-                                .thenAnswer(invocation -> invocation.getArgument(0));
+                when(sleepDataRepository.upsert(any(SleepData.class))).thenReturn(true);
 
-                SleepService.SleepState newState = sleepService.recordSleep("6:30", testDate);
+                SleepData newState = recordAndProject(user, "6:30", testDate);
 
-                assertEquals(0.0, newState.sleepDebt(), "Debt should remain zero");
-                assertEquals(2.0, newState.sleepSurplus(), 0.01, "Surplus should decrease by 1.0");
+                assertEquals(0.0, newState.getSleepDebt().doubleValue(), "Debt should remain zero");
+                assertEquals(2.0, newState.getSleepSurplus().doubleValue(), 0.01, "Surplus should decrease by 1.0");
         }
 
         @Test
@@ -137,23 +184,19 @@ public class SleepServiceTest extends TestJwtDynamicProps {
         @WithMockUser(username = "user-in-trouble")
         void recordSleep_withLargeShortfallAsString_depletesSurplusAndIncreasesDebt() {
                 User user = new User("user-in-trouble", "password");
+                user.setId(USER_ID);
                 when(userRepository.findByUsername("user-in-trouble")).thenReturn(Optional.of(user));
                 SleepData existingData = createTestSleepData(user, new BigDecimal("0.0"), new BigDecimal("1.0"));
-                when(sleepDataRepository.findTopByUser_UsernameAndSleepDateLessThanOrderBySleepDateDesc(
-                                eq("user-in-trouble"), any(LocalDate.class)))
+                when(sleepDataRepository.findTopByUser_IdAndSleepDateLessThanOrderBySleepDateDesc(
+                                eq(USER_ID), any(LocalDate.class)))
                                 .thenReturn(Optional.of(existingData));
-                when(sleepDataRepository.findByUser_UsernameAndSleepDateGreaterThanOrderBySleepDateAsc(
-                                eq("user-in-trouble"), any(LocalDate.class)))
-                                .thenReturn(List.of());
-                when(sleepDataRepository.findByUser_UsernameAndSleepDate(eq("user-in-trouble"), any(LocalDate.class)))
-                                .thenReturn(Optional.empty());
-                when(sleepDataRepository.save(any(SleepData.class)))
-                                .thenAnswer(invocation -> invocation.getArgument(0));
+                when(sleepDataRepository.upsert(any(SleepData.class))).thenReturn(true);
 
-                SleepService.SleepState newState = sleepService.recordSleep("4:30", testDate);
+                SleepData newState = recordAndProject(user, "4:30", testDate);
 
-                assertEquals(2.0, newState.sleepDebt(), 0.01, "Debt should increase by the remaining shortfall");
-                assertEquals(0.0, newState.sleepSurplus(), "Surplus should be depleted to zero");
+                assertEquals(2.0, newState.getSleepDebt().doubleValue(), 0.01,
+                                "Debt should increase by the remaining shortfall");
+                assertEquals(0.0, newState.getSleepSurplus().doubleValue(), "Surplus should be depleted to zero");
         }
 
         @Test
@@ -161,24 +204,19 @@ public class SleepServiceTest extends TestJwtDynamicProps {
         @WithMockUser(username = "paying-debt")
         void recordSleep_withExtraSleepString_PayDownDebtBeforeSurplus() {
                 User user = new User("paying-debt", "password");
+                user.setId(USER_ID);
                 when(userRepository.findByUsername("paying-debt")).thenReturn(Optional.of(user));
                 SleepData existingData = createTestSleepData(user, new BigDecimal("1.0"), new BigDecimal("0.0"));
-                when(sleepDataRepository.findTopByUser_UsernameAndSleepDateLessThanOrderBySleepDateDesc(
-                                eq("paying-debt"), any(LocalDate.class)))
+                when(sleepDataRepository.findTopByUser_IdAndSleepDateLessThanOrderBySleepDateDesc(
+                                eq(USER_ID), any(LocalDate.class)))
                                 .thenReturn(Optional.of(existingData));
-                when(sleepDataRepository.findByUser_UsernameAndSleepDateGreaterThanOrderBySleepDateAsc(
-                                eq("paying-debt"), any(LocalDate.class)))
-                                .thenReturn(List.of());
-                when(sleepDataRepository.findByUser_UsernameAndSleepDate(eq("paying-debt"), any(LocalDate.class)))
-                                .thenReturn(Optional.empty());
-
-                when(sleepDataRepository.save(any(SleepData.class)))
-                                .thenAnswer(invocation -> invocation.getArgument(0));
+                when(sleepDataRepository.upsert(any(SleepData.class))).thenReturn(true);
 
-                SleepService.SleepState newState = sleepService.recordSleep("8:30", testDate);
+                SleepData newState = recordAndProject(user, "8:30", testDate);
 
-                assertEquals(0.0, newState.sleepDebt(), "Debt should be paid off to zero");
-                assertEquals(0.0, newState.sleepSurplus(), 0.01, "Surplus should be zero after paying off 1.0 debt");
+                assertEquals(0.0, newState.getSleepDebt().doubleValue(), "Debt should be paid off to zero");
+                assertEquals(0.0, newState.getSleepSurplus().doubleValue(), 0.01,
+                                "Surplus should be zero after paying off 1.0 debt");
         }
 
         @Test
@@ -186,10 +224,11 @@ public class SleepServiceTest extends TestJwtDynamicProps {
         @WithMockUser(username = "test-user")
         void getCurrentSleepState_forExistingUser_returnsDebt() {
                 User user = new User("test-user", "password");
+                user.setId(USER_ID);
                 when(userRepository.findByUsername("test-user")).thenReturn(Optional.of(user));
                 SleepData existingData = createTestSleepData(user, new BigDecimal("10.5"), BigDecimal.ZERO);
 
-                when(sleepDataRepository.findTopByUser_UsernameOrderBySleepDateDesc("test-user"))
+                when(sleepDataRepository.findTopByUser_IdOrderBySleepDateDesc(USER_ID))
                                 .thenReturn(Optional.of(existingData));
 
                 SleepService.SleepState state = sleepService.getCurrentSleepState();
@@ -204,8 +243,9 @@ public class SleepServiceTest extends TestJwtDynamicProps {
         @WithMockUser(username = "new-user")
         void getCurrentSleepState_forNewUser_returnsZeroState() {
                 User user = new User("new-user", "password");
+                user.setId(USER_ID);
                 when(userRepository.findByUsername("new-user")).thenReturn(Optional.of(user));
-                when(sleepDataRepository.findTopByUser_UsernameOrderBySleepDateDesc("new-user"))
+                when(sleepDataRepository.findTopByUser_IdOrderBySleepDateDesc(USER_ID))
                                 .thenReturn(Optional.empty());
 
                 SleepService.SleepState state = sleepService.getCurrentSleepState();
@@ -220,28 +260,16 @@ public class SleepServiceTest extends TestJwtDynamicProps {
         @WithMockUser(username = "new-user")
         void recordSleep_forNewUser_createsAndCalculatesDebt() {
                 User user = new User("new-user", "password");
+                user.setId(USER_ID);
                 when(userRepository.findByUsername("new-user")).thenReturn(Optional.of(user));
-                when(sleepDataRepository.findTopByUser_UsernameAndSleepDateLessThanOrderBySleepDateDesc(eq("new-user"),
-                                any(LocalDate.class)))
-                                .thenReturn(Optional.empty());
-                when(sleepDataRepository.findByUser_UsernameAndSleepDateGreaterThanOrderBySleepDateAsc(eq("new-user"),
+                when(sleepDataRepository.findTopByUser_IdAndSleepDateLessThanOrderBySleepDateDesc(eq(USER_ID),
                                 any(LocalDate.class)))
-                                .thenReturn(List.of());
-                when(sleepDataRepository.findByUser_UsernameAndSleepDate(eq("new-user"), any(LocalDate.class)))
                                 .thenReturn(Optional.empty());
+                when(sleepDataRepository.upsert(any(SleepData.class))).thenReturn(true);
 
-                when(sleepDataRepository.save(any(SleepData.class)))
-                                .thenAnswer(invocation -> invocation.getArgument(0));
+                SleepData savedData = recordAndProject(user, "6:00", testDate);
 
-                SleepService.SleepState newState = sleepService.recordSleep("6:00", testDate);
-
-                assertEquals(1.5, newState.sleepDebt(), 0.01);
-
-                ArgumentCaptor<SleepData> sleepDataCaptor = ArgumentCaptor.forClass(SleepData.class);
-                verify(sleepDataRepository).save(sleepDataCaptor.capture());
-
-                SleepData savedData = sleepDataCaptor.getValue();
-                assertEquals("new-user", sleepDataCaptor.getValue().getUser().getUsername());
+                assertEquals("new-user", savedData.getUser().getUsername());
                 assertEquals(0, new BigDecimal("1.5").compareTo(savedData.getSleepDebt()));
         }
 
@@ -250,34 +278,21 @@ public class SleepServiceTest extends TestJwtDynamicProps {
         @WithMockUser(username = "high-debt-user")
         void recordSleep_forExistingUser_updatesAndCalculatesDebt() {
                 User user = new User("high-debt-user", "password");
+                user.setId(USER_ID);
                 when(userRepository.findByUsername("high-debt-user")).thenReturn(Optional.of(user));
                 SleepData existingData = createTestSleepData(user, new BigDecimal("5.0"), BigDecimal.ZERO);
 
-                when(sleepDataRepository.findTopByUser_UsernameAndSleepDateLessThanOrderBySleepDateDesc(
-                                eq("high-debt-user"), any(LocalDate.class)))
+                when(sleepDataRepository.findTopByUser_IdAndSleepDateLessThanOrderBySleepDateDesc(
+                                eq(USER_ID), any(LocalDate.class)))
                                 .thenReturn(Optional.of(existingData));
-                when(sleepDataRepository.findByUser_UsernameAndSleepDateGreaterThanOrderBySleepDateAsc(
-                                eq("high-debt-user"), any(LocalDate.class)))
-                                .thenReturn(List.of());
-                when(sleepDataRepository.findByUser_UsernameAndSleepDate(eq("high-debt-user"), any(LocalDate.class)))
-                                .thenReturn(Optional.empty());
-
-                when(sleepDataRepository.save(any(SleepData.class)))
-                                .thenAnswer(invocation -> invocation.getArgument(0));
+                when(sleepDataRepository.upsert(any(SleepData.class))).thenReturn(true);
 
-                SleepService.SleepState newState = sleepService.recordSleep("9:30", testDate);
+                SleepData savedData = recordAndProject(user, "9:30", testDate);
 
-                assertEquals(3.35, newState.sleepDebt(), 0.01,
+                assertEquals(0, new BigDecimal("3.35").compareTo(savedData.getSleepDebt()),
                                 "Debt should be reduced by the diminished recovery amount");
-                assertEquals(0.0, newState.sleepSurplus(), 0.01,
+                assertEquals(0, BigDecimal.ZERO.compareTo(savedData.getSleepSurplus()),
                                 "Surplus should be the extra sleep minus the debt that was paid down");
-
-                ArgumentCaptor<SleepData> sleepDataCaptor = ArgumentCaptor.forClass(SleepData.class);
-                verify(sleepDataRepository).save(sleepDataCaptor.capture());
-
-                SleepData savedData = sleepDataCaptor.getValue();
-                assertEquals(0, new BigDecimal("3.35").compareTo(savedData.getSleepDebt()));
-                assertEquals(0, BigDecimal.ZERO.compareTo(savedData.getSleepSurplus()));
         }
 
         @Test
@@ -285,16 +300,16 @@ public class SleepServiceTest extends TestJwtDynamicProps {
         @WithMockUser(username = "history-user")
         void getSleepHistory_shouldReturnMappedDTOList() {
                 User user = new User("history-user", "password");
+                user.setId(USER_ID);
                 when(userRepository.findByUsername("history-user")).thenReturn(Optional.of(user));
 
-                List<SleepData> mockDataList = List.of(
-                                createFullTestSleepData(user, testDate, new BigDecimal("8.0"), new BigDecimal("1.0"),
+                List<SleepDataRow> mockDataList = List.of(
+                                new SleepDataRow(testDate, new BigDecimal("8.0"), new BigDecimal("1.0"),
                                                 new BigDecimal("0.5")),
-                                createFullTestSleepData(user, previousDate, new BigDecimal("7.0"),
-                                                new BigDecimal("1.5"),
+                                new SleepDataRow(previousDate, new BigDecimal("7.0"), new BigDecimal("1.5"),
                                                 BigDecimal.ZERO));
 
-                when(sleepDataRepository.findTop5ByUser_UsernameOrderBySleepDateDesc("history-user"))
+                when(sleepDataRepository.findRecentRows(eq(USER_ID), any(Limit.class)))
                                 .thenReturn(mockDataList);
 
                 List<SleepService.SleepHistoryEntry> history = sleepService.getSleepHistory();
@@ -311,23 +326,61 @@ public class SleepServiceTest extends TestJwtDynamicProps {
                 assertEquals(7.0, history.get(1).hoursSlept());
         }
 
+        @Test
+        @DisplayName("getSleepHistoryPage should return a cursor that continues before the last entry")
+        @WithMockUser(username = "page-user")
+        void getSleepHistoryPage_followingCursor_seeksPastLastEntry() {
+                User user = new User("page-user", "password");
+                user.setId(USER_ID);
+                when(userRepository.findByUsername("page-user")).thenReturn(Optional.of(user));
+                // Three rows for a limit of two: there is an older page
+                when(sleepDataRepository.findRecentRows(USER_ID, Limit.of(3))).thenReturn(List.of(
+                                new SleepDataRow(testDate, new BigDecimal("8.0"), BigDecimal.ZERO, BigDecimal.ZERO),
+                                new SleepDataRow(previousDate, new BigDecimal("7.0"), BigDecimal.ZERO,
+                                                BigDecimal.ZERO),
+                                new SleepDataRow(testDate.minusDays(2), new BigDecimal("6.0"), BigDecimal.ZERO,
+                                                BigDecimal.ZERO)));
+                when(sleepDataRepository.findRowsBefore(USER_ID, previousDate, Limit.of(3))).thenReturn(List.of(
+                                new SleepDataRow(testDate.minusDays(2), new BigDecimal("6.0"), BigDecimal.ZERO,
+                                                BigDecimal.ZERO)));
+
+                SleepService.SleepHistoryPage first = sleepService.getSleepHistoryPage(null, null, 2);
+                SleepService.SleepHistoryPage second = sleepService.getSleepHistoryPage(first.nextCursor(), null, 2);
+
+                assertEquals(2, first.entries().size());
+                assertNotNull(first.nextCursor());
+                assertEquals(1, second.entries().size());
+                assertEquals(testDate.minusDays(2), second.entries().get(0).sleepDate());
+                assertNull(second.nextCursor());
+        }
+
+        @Test
+        @DisplayName("getSleepHistoryPage should reject a bad limit or cursor")
+        @WithMockUser(username = "page-user")
+        void getSleepHistoryPage_withInvalidInput_throwsException() {
+                assertThrows(IllegalArgumentException.class, () -> sleepService.getSleepHistoryPage(null, null, 0));
+                assertThrows(IllegalArgumentException.class, () -> sleepService.getSleepHistoryPage(null, null, 101));
+                assertThrows(IllegalArgumentException.class,
+                                () -> sleepService.getSleepHistoryPage("not a cursor", null, 10));
+        }
+
         @Test
         @DisplayName("getSleepHistory with date range should return mapped entries")
         @WithMockUser(username = "range-user")
         void getSleepHistory_withDateRange_shouldReturnMappedEntries() {
                 User user = new User("range-user", "password");
+                user.setId(USER_ID);
                 when(userRepository.findByUsername("range-user")).thenReturn(Optional.of(user));
 
                 LocalDate from = LocalDate.now().minusDays(5);
                 LocalDate to = LocalDate.now();
 
-                List<SleepData> mockDataList = List.of(
-                                createFullTestSleepData(user, to, new BigDecimal("8.0"), BigDecimal.ZERO,
-                                                BigDecimal.ZERO),
-                                createFullTestSleepData(user, from, new BigDecimal("6.0"), new BigDecimal("1.5"),
+                List<SleepDataRow> mockDataList = List.of(
+                                new SleepDataRow(to, new BigDecimal("8.0"), BigDecimal.ZERO, BigDecimal.ZERO),
+                                new SleepDataRow(from, new BigDecimal("6.0"), new BigDecimal("1.5"),
                                                 BigDecimal.ZERO));
 
-                when(sleepDataRepository.findByUser_UsernameAndSleepDateBetween(eq("range-user"), eq(from), eq(to)))
+                when(sleepDataRepository.findRowsBetween(eq(USER_ID), eq(from), eq(to)))
                                 .thenReturn(mockDataList);
 
                 // Act
@@ -346,14 +399,37 @@ public class SleepServiceTest extends TestJwtDynamicProps {
                 assertEquals(6.0, history.get(1).hoursSlept());
 
                 // Verify the repository was called with the correct arguments
-                verify(sleepDataRepository).findByUser_UsernameAndSleepDateBetween(eq("range-user"), eq(from), eq(to));
+                verify(sleepDataRepository).findRowsBetween(eq(USER_ID), eq(from), eq(to));
         }
 
         @Test
-        @DisplayName("recordSleep: Out-of-order insertion should recalculate subsequent entries")
+        @DisplayName("getSleepHistory with date range should recalculate stale entries before reading them")
+        @WithMockUser(username = "stale-range-user")
+        void getSleepHistory_withPendingRecalculation_refreshesBeforeReading() {
+                User user = new User("stale-range-user", "password");
+                user.setId(USER_ID);
+                when(userRepository.findByUsername("stale-range-user")).thenReturn(Optional.of(user));
+
+                LocalDate from = LocalDate.of(2025, 9, 1);
+                LocalDate to = LocalDate.of(2025, 9, 7);
+                DebtWatermark watermark = new DebtWatermark(USER_ID, LocalDate.of(2025, 9, 3));
+                when(debtWatermarkRepository.findById(USER_ID)).thenReturn(Optional.of(watermark));
+
+                sleepService.getSleepHistory(from, to);
+
+                InOrder inOrder = inOrder(sleepDataRepository);
+                inOrder.verify(sleepDataRepository).findByUser_IdAndSleepDateBetweenOrderBySleepDateAsc(
+                                USER_ID, watermark.getStaleFrom(), to);
+                inOrder.verify(sleepDataRepository).findRowsBetween(USER_ID, from, to);
+                verify(debtWatermarkRepository).delete(watermark);
+        }
+
+        @Test
+        @DisplayName("recordSleep: Out-of-order insertion should leave subsequent entries to the recalculation queue")
         @WithMockUser(username = "history-rewrite-user")
-        void recordSleep_outOfOrder_recalculatesSubsequentEntries() {
+        void recordSleep_outOfOrder_queuesSubsequentEntries() {
                 User user = new User("history-rewrite-user", "password");
+                user.setId(USER_ID);
                 LocalDate day1 = LocalDate.of(2026, 1, 1);
                 LocalDate day2 = LocalDate.of(2026, 1, 2);
                 LocalDate day3 = LocalDate.of(2026, 1, 3);
@@ -364,50 +440,154 @@ public class SleepServiceTest extends TestJwtDynamicProps {
                 // Day 1: 8h sleep -> +0.5 surplus (assuming starting 0)
                 SleepData day1Data = new SleepData(user, day1, new BigDecimal("8.0"), BigDecimal.ZERO,
                                 new BigDecimal("0.5"));
-                // Day 3: 7h sleep (-0.5h debt). If based on Day 1, Surplus: 0.5 - 0.5 = 0.
-                SleepData day3Data = new SleepData(user, day3, new BigDecimal("7.0"), BigDecimal.ZERO, BigDecimal.ZERO);
 
                 // When recording for Day 2, we need it to find Day 1 as predecessor
-                when(sleepDataRepository.findTopByUser_UsernameAndSleepDateLessThanOrderBySleepDateDesc(
-                                eq("history-rewrite-user"), eq(day2)))
+                when(sleepDataRepository.findTopByUser_IdAndSleepDateLessThanOrderBySleepDateDesc(
+                                eq(USER_ID), eq(day2)))
                                 .thenReturn(Optional.of(day1Data));
 
-                // Find subsequent entries (Day 3)
-                when(sleepDataRepository.findByUser_UsernameAndSleepDateGreaterThanOrderBySleepDateAsc(
-                                eq("history-rewrite-user"), eq(day2)))
-                                .thenReturn(List.of(day3Data));
-
-                // existing entry check for day 2
-                when(sleepDataRepository.findByUser_UsernameAndSleepDate(eq("history-rewrite-user"), eq(day2)))
-                                .thenReturn(Optional.empty());
-
-                when(sleepDataRepository.save(any(SleepData.class)))
-                                .thenAnswer(invocation -> invocation.getArgument(0));
+                // Day 2 is inserted, and Day 3 comes after it
+                when(sleepDataRepository.upsert(any(SleepData.class))).thenReturn(true);
+                when(sleepDataRepository.existsByUser_IdAndSleepDateGreaterThan(USER_ID, day2))
+                                .thenReturn(true);
 
                 // Act: Insert Day 2 with 5.5h sleep (2h shortfall).
                 // New state after Day 2 should be:
                 // Previous (Day 1): Surplus 0.5
                 // Change: -2.0
                 // Result: Surplus used (0.5), remaining shortfall 1.5 -> Debt 1.5. Surplus 0.
-                SleepService.SleepState result = sleepService.recordSleep("5:30", day2);
+                SleepData result = recordAndProject(user, "5:30", day2);
 
                 // Verify Day 2 state
-                assertEquals(1.5, result.sleepDebt(), 0.01);
-                assertEquals(0.0, result.sleepSurplus(), 0.01);
+                assertEquals(1.5, result.getSleepDebt().doubleValue(), 0.01);
+                assertEquals(0.0, result.getSleepSurplus().doubleValue(), 0.01);
 
-                // Verify Day 3 is updated
-                // Previous state (Day 2 end): Debt 1.5
-                // Day 3 sleep: 7.0 (Shortfall 0.5)
-                // Result: Debt 1.5 + 0.5 = 2.0.
-                ArgumentCaptor<SleepData> captor = ArgumentCaptor.forClass(SleepData.class);
-                // We expect saves for Day 2 (new) and Day 3 (update)
-                verify(sleepDataRepository, atLeast(2)).save(captor.capture());
+                // Day 3 is not touched by the projection; it is marked stale for the queue's next pass
+                verify(sleepDataRepository, never()).saveAll(any());
+
+                ArgumentCaptor<DebtWatermark> captor = ArgumentCaptor.forClass(DebtWatermark.class);
+                verify(debtWatermarkRepository).save(captor.capture());
+                assertEquals(USER_ID, captor.getValue().getUserId());
+                assertEquals(day3, captor.getValue().getStaleFrom());
+                verify(debtRecalculationQueue).enqueue(user);
+        }
 
-                List<SleepData> saveddata = captor.getAllValues();
-                SleepData savedDay3 = saveddata.stream().filter(d -> d.getSleepDate().equals(day3)).findFirst()
-                                .orElseThrow();
+        @Test
+        @DisplayName("getCurrentSleepState: Should report a pending recalculation")
+        @WithMockUser(username = "pending-user")
+        void getCurrentSleepState_withStaleEntries_reportsPending() {
+                User user = new User("pending-user", "password");
+                user.setId(USER_ID);
+                when(userRepository.findByUsername("pending-user")).thenReturn(Optional.of(user));
+                when(sleepDataRepository.findTopByUser_IdOrderBySleepDateDesc(USER_ID))
+                                .thenReturn(Optional.of(createTestSleepData(user, new BigDecimal("2.0"), BigDecimal.ZERO)));
+                when(debtWatermarkRepository.existsById(USER_ID)).thenReturn(true);
+
+                SleepService.SleepState state = sleepService.getCurrentSleepState();
+
+                assertEquals(2.0, state.sleepDebt());
+                assertTrue(state.recalculationPending());
+        }
 
-                assertEquals(0, new BigDecimal("2.0").compareTo(savedDay3.getSleepDebt()));
-                assertEquals(0, BigDecimal.ZERO.compareTo(savedDay3.getSleepSurplus()));
+        @Test
+        @DisplayName("recordSleep (bulk): Should merge unsorted input with history and save the chain once")
+        @WithMockUser(username = "bulk-user")
+        void recordSleepBulk_mergesWithHistoryAndSavesOnce() {
+                User user = new User("bulk-user", "password");
+                user.setId(USER_ID);
+                LocalDate day1 = LocalDate.of(2026, 1, 1);
+                LocalDate day2 = LocalDate.of(2026, 1, 2);
+                LocalDate day3 = LocalDate.of(2026, 1, 3);
+
+                when(userRepository.findByUsername("bulk-user")).thenReturn(Optional.of(user));
+                when(sleepDataRepository.findTopByUser_IdAndSleepDateLessThanOrderBySleepDateDesc(
+                                eq(USER_ID), eq(day1)))
+                                .thenReturn(Optional.empty());
+
+                // Day 2 already exists with 7h sleep (0.5 debt)
+                SleepData day2Data = new SleepData(user, day2, new BigDecimal("7.0"), new BigDecimal("0.5"),
+                                BigDecimal.ZERO);
+                when(sleepDataRepository.findByUser_IdAndSleepDateBetweenOrderBySleepDateAsc(
+                                eq(USER_ID), eq(day1), eq(day3)))
+                                .thenReturn(List.of(day2Data));
+
+                // Day 3 listed before Day 1 on purpose: 9h on Day 1 (+1.5), Day 2 (-0.5), 6.5h on Day 3 (-1.0)
+                SleepService.SleepState result = sleepService.recordSleep(List.of(
+                                new SleepService.SleepRecord("6:30", day3),
+                                new SleepService.SleepRecord("9:00", day1)));
+                assertTrue(result.recalculationPending());
+                projectAppendedNights(user);
+
+                // Nothing is recorded after Day 3
+                verify(debtWatermarkRepository, never()).save(any());
+
+                @SuppressWarnings("unchecked")
+                ArgumentCaptor<List<SleepData>> captor = ArgumentCaptor.forClass(List.class);
+                verify(sleepDataRepository).saveAll(captor.capture());
+
+                List<SleepData> saved = captor.getValue();
+                assertEquals(List.of(day1, day2, day3), saved.stream().map(SleepData::getSleepDate).toList());
+                assertEquals(0, new BigDecimal("1.0").compareTo(saved.get(1).getSleepSurplus()));
+                assertEquals(0, BigDecimal.ZERO.compareTo(saved.get(1).getSleepDebt()));
+                assertEquals(0, BigDecimal.ZERO.compareTo(saved.get(2).getSleepDebt()));
+                assertEquals(0, BigDecimal.ZERO.compareTo(saved.get(2).getSleepSurplus()));
+        }
+
+        @Test
+        @DisplayName("recordSleep (bulk): Should reject an empty request")
+        @WithMockUser(username = "bulk-user")
+        void recordSleepBulk_withNoRecords_throwsException() {
+                assertThrows(IllegalArgumentException.class, () -> sleepService.recordSleep(List.of()));
+        }
+
+        @Test
+        @DisplayName("recordSleep (bulk): Should reject more than 1000 nights and point to the import")
+        @WithMockUser(username = "bulk-user")
+        void recordSleepBulk_withTooManyRecords_throwsException() {
+                LocalDate firstNight = LocalDate.of(2020, 1, 1);
+                List<SleepService.SleepRecord> records = new ArrayList<>();
+                for (int i = 0; i <= 1000; i++) {
+                        records.add(new SleepService.SleepRecord("7:30", firstNight.plusDays(i)));
+                }
+
+                IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                                () -> sleepService.recordSleep(records));
+                assertTrue(e.getMessage().contains("/api/sleep/import"));
+                verify(sleepEventRepository, never()).appendNights(any(), any(), any());
+        }
+
+        @Test
+        @DisplayName("recordSleep: Should only append the night to the event log and queue its projection")
+        @WithMockUser(username = "event-user")
+        void recordSleep_appendsEventAndQueuesProjection() {
+                User user = new User("event-user", "password");
+                user.setId(USER_ID);
+                when(userRepository.findByUsername("event-user")).thenReturn(Optional.of(user));
+                when(sleepDataRepository.findTopByUser_IdOrderBySleepDateDesc(USER_ID))
+                                .thenReturn(Optional.of(createTestSleepData(user, new BigDecimal("1.0"), BigDecimal.ZERO)));
+
+                SleepService.SleepState state = sleepService.recordSleep("8:00", testDate);
+
+                verify(sleepEventRepository).appendNights(eq(USER_ID),
+                                eq(new TreeMap<>(Map.of(testDate, new BigDecimal("8.00")))), any(LocalDateTime.class));
+                verify(sleepDataRepository, never()).upsert(any(SleepData.class));
+                verify(debtRecalculationQueue).enqueue(user);
+                // The stored state until the queue applies the night
+                assertEquals(1.0, state.sleepDebt());
+                assertTrue(state.recalculationPending());
+        }
+
+        @Test
+        @DisplayName("deleteSleep: Should reject a date without an entry")
+        @WithMockUser(username = "delete-user")
+        void deleteSleep_withoutEntry_throwsException() {
+                User user = new User("delete-user", "password");
+                user.setId(USER_ID);
+                when(userRepository.findByUsername("delete-user")).thenReturn(Optional.of(user));
+                when(sleepEventRepository.appendDeletion(eq(USER_ID), eq(testDate), any(LocalDateTime.class)))
+                                .thenReturn(false);
+
+                assertThrows(IllegalArgumentException.class, () -> sleepService.deleteSleep(testDate));
+                verify(debtRecalculationQueue, never()).enqueue(any());
         }
 }
@@ -0,0 +1,105 @@
+package org.svlahov.sleepcalc.service;
+
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Transactional;
+import org.svlahov.sleepcalc.entity.SleepData;
+import org.svlahov.sleepcalc.entity.User;
+import org.svlahov.sleepcalc.entity.WeeklySleepRollup;
+import org.svlahov.sleepcalc.repository.SleepDataRepository;
+import org.svlahov.sleepcalc.repository.UserRepository;
+import org.svlahov.sleepcalc.repository.WeeklySleepRollupRepository;
+import org.svlahov.sleepcalc.support.TestJwtDynamicProps;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+@Transactional
+class WeeklyRollupServiceTest extends TestJwtDynamicProps {
+
+        // A Monday
+        private static final LocalDate WEEK_START = LocalDate.of(2024, 4, 1);
+
+        @Autowired
+        private WeeklyRollupService weeklyRollupService;
+
+        @Autowired
+        private WeeklySleepRollupRepository weeklySleepRollupRepository;
+
+        @Autowired
+        private SleepDataRepository sleepDataRepository;
+
+        @Autowired
+        private UserRepository userRepository;
+
+        @Autowired
+        private EntityManager entityManager;
+
+        @Test
+        @DisplayName("rebuild: Should summarize existing entries per ISO week")
+        void rebuild_withExistingEntries_createsOneRowPerWeek() {
+                User user = userRepository.save(new User("rollup-user", "password"));
+                sleepDataRepository.saveAll(List.of(
+                                entry(user, WEEK_START, "8.0"),
+                                entry(user, WEEK_START.plusDays(6), "6.5"),
+                                entry(user, WEEK_START.plusDays(7), "7.0")));
+                // A stale row that the rebuild has to replace
+                weeklySleepRollupRepository.save(new WeeklySleepRollup(user.getId(), WEEK_START, 9,
+                                new BigDecimal("99"), BigDecimal.ZERO));
+
+                weeklyRollupService.rebuild(user);
+
+                List<WeeklySleepRollup> rollups = findRollups(user);
+                assertEquals(2, rollups.size());
+                assertRollup(rollups.get(0), WEEK_START, 2, "14.5", "-0.5");
+                assertRollup(rollups.get(1), WEEK_START.plusWeeks(1), 1, "7.0", "-0.5");
+        }
+
+        @Test
+        @DisplayName("refreshWeeks: Should pick up a changed night and drop weeks without entries")
+        void refreshWeeks_afterChanges_matchesStoredEntries() {
+                User user = userRepository.save(new User("rollup-refresh-user", "password"));
+                SleepData monday = sleepDataRepository.save(entry(user, WEEK_START, "8.0"));
+                SleepData nextWeek = sleepDataRepository.save(entry(user, WEEK_START.plusDays(7), "7.0"));
+                weeklyRollupService.refreshWeeks(user, List.of(WEEK_START, WEEK_START.plusDays(7)));
+
+                monday.setHoursSlept(new BigDecimal("9.0"));
+                sleepDataRepository.delete(nextWeek);
+                weeklyRollupService.refreshWeeks(user, List.of(WEEK_START, WEEK_START.plusDays(7)));
+
+                List<WeeklySleepRollup> rollups = findRollups(user);
+                assertEquals(1, rollups.size());
+                assertRollup(rollups.get(0), WEEK_START, 1, "9.0", "1.5");
+        }
+
+        private List<WeeklySleepRollup> findRollups(User user) {
+                entityManager.flush();
+                entityManager.clear();
+                return weeklySleepRollupRepository.findByUserIdAndWeekStartBetween(user.getId(), WEEK_START,
+                                WEEK_START.plusWeeks(1)).stream()
+                                .sorted(Comparator.comparing(WeeklySleepRollup::getWeekStart))
+                                .toList();
+        }
+
+        private SleepData entry(User user, LocalDate date, String hours) {
+                return new SleepData(user, date, new BigDecimal(hours), BigDecimal.ZERO, BigDecimal.ZERO);
+        }
+
+        private void assertRollup(WeeklySleepRollup rollup, LocalDate weekStart, int nights, String hoursSum,
+                        String deviationSum) {
+                assertEquals(weekStart, rollup.getWeekStart());
+                assertEquals(nights, rollup.getNights());
+                assertEquals(0, new BigDecimal(hoursSum).compareTo(rollup.getHoursSum()));
+                assertEquals(0, new BigDecimal(deviationSum).compareTo(rollup.getDeviationSum()));
+        }
+}